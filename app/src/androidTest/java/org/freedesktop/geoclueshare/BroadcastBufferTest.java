@@ -0,0 +1,216 @@
+package org.freedesktop.geoclueshare;
+
+import android.os.Debug;
+
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Checks that broadcasting a sentence encodes it once and allocates nothing per client.
+ */
+public class BroadcastBufferTest extends TestCase {
+
+    private static final String GGA =
+            "$GPGGA,123519,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,*79";
+    private static final int CLIENTS = 50;
+    private static final int SENTENCES = 10;
+    private static final long TIMEOUT = 5000000000L;
+
+    private static final NmeaBroadcastServer.Listener LISTENER =
+            new NmeaBroadcastServer.Listener() {
+                @Override
+                public void onClientConnected(ClientConnection connection, int clients) {
+                }
+
+                @Override
+                public void onClientDisconnected(ClientConnection connection, int clients) {
+                }
+
+                @Override
+                public void onRequestedIntervalChanged(long interval) {
+                }
+            };
+
+    public void testClientsReadTheSameBytes() {
+        BroadcastBuffer buffer = new BroadcastBuffer(1024);
+        ClientConnection[] clients = createClients(buffer, 3);
+
+        broadcast(buffer, clients);
+
+        for (ClientConnection client : clients) {
+            assertTrue(client.poll());
+
+            ByteBuffer view = client.getView();
+            buffer.select(view, client.getCurrentPosition(), client.getCurrentLength(), 0);
+
+            byte[] bytes = new byte[view.remaining()];
+            view.get(bytes);
+            assertEquals(GGA + "\r\n", new String(bytes));
+        }
+    }
+
+    public void testOverwrittenSentenceIsUnavailable() {
+        BroadcastBuffer buffer = new BroadcastBuffer(1024);
+        long first = buffer.put(GGA);
+
+        for (int i = 0; i < 1024 / GGA.length(); i++)
+            buffer.put(GGA);
+
+        assertFalse(buffer.isAvailable(first, GGA.length() + 2));
+    }
+
+    public void testSentenceAgesBeforeItIsOverwritten() {
+        BroadcastBuffer buffer = new BroadcastBuffer(1024);
+        long first = buffer.put(GGA);
+
+        while (!buffer.isAging(first)) {
+            assertTrue(buffer.isAvailable(first, GGA.length() + 2));
+            buffer.put(GGA);
+        }
+
+        /* A quarter of the ring is left before it is gone. */
+        assertTrue(buffer.isAvailable(first, GGA.length() + 2));
+    }
+
+    /**
+     * Publishing allocates nothing, and a sentence published to a real server is written to its
+     * clients without allocating anything per client. The server runs on threads of its own, so
+     * the allocations of the whole process are counted, and a few of other threads are allowed.
+     */
+    public void testNoAllocationsPerClient() throws Exception {
+        assertEquals(0, countPublishAllocations());
+
+        int one = countServerAllocations(1);
+        int many = countServerAllocations(CLIENTS);
+        assertTrue(one + " allocations for one client, " + many + " for " + CLIENTS,
+                many - one < CLIENTS);
+    }
+
+    private static int countPublishAllocations() {
+        SentencePublisher publisher = new SentencePublisher();
+        SentencePublisher.Cursor cursor = publisher.newCursor();
+        SentencePublisher.Sink sink = new SentencePublisher.Sink() {
+            @Override
+            public void onSentence(byte[] data, int offset, int length, int type, long time) {
+            }
+        };
+
+        /* Warm up, so that the copy in the cursor is already big enough. */
+        publisher.publish(GGA, GGA.length(), NmeaScanner.TYPE_GGA);
+        publisher.drain(cursor, sink);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+
+        for (int i = 0; i < SENTENCES; i++) {
+            publisher.publish(GGA, GGA.length(), NmeaScanner.TYPE_GGA);
+            publisher.drain(cursor, sink);
+        }
+
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        return allocations;
+    }
+
+    /**
+     * Publishes sentences to a server with connected clients, each one once all the clients got
+     * the previous one. The clients only read them afterwards, their socket buffers have room.
+     */
+    private static int countServerAllocations(int numberOfClients) throws Exception {
+        NmeaBroadcastServer server = new NmeaBroadcastServer(0, LISTENER);
+        server.open();
+        Thread thread = new Thread(server, "server");
+        thread.start();
+
+        Socket[] sockets = new Socket[numberOfClients];
+        try {
+            for (int i = 0; i < numberOfClients; i++)
+                sockets[i] = new Socket("127.0.0.1", server.getLocalPort());
+
+            List<ClientConnection> clients = server.getClients();
+            long deadline = System.nanoTime() + TIMEOUT;
+            while (clients.size() < numberOfClients
+                    || (server.getSubscribedTypes() & NmeaScanner.TYPE_GGA) == 0) {
+                assertTrue("Clients not connected", System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+
+            /* Warm up, so that nothing lazily initialised is counted. */
+            publish(server, clients, 1);
+
+            Debug.startAllocCounting();
+            Debug.resetGlobalAllocCount();
+
+            for (int i = 0; i < SENTENCES; i++)
+                publish(server, clients, i + 2);
+
+            int allocations = Debug.getGlobalAllocCount();
+            Debug.stopAllocCounting();
+
+            String expected = repeat(GGA + "\r\n", SENTENCES + 1);
+            for (Socket socket : sockets) {
+                byte[] received = new byte[expected.length()];
+                new DataInputStream(socket.getInputStream()).readFully(received);
+                assertEquals(expected, new String(received, "US-ASCII"));
+            }
+
+            return allocations;
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null)
+                    socket.close();
+            }
+            server.close();
+            thread.join();
+        }
+    }
+
+    /**
+     * Publishes a sentence and waits until every client wrote its {@code count}th, without
+     * allocating anything itself.
+     */
+    private static void publish(NmeaBroadcastServer server, List<ClientConnection> clients,
+                                int count) {
+        server.publish(GGA, GGA.length(), NmeaScanner.TYPE_GGA);
+
+        long deadline = System.nanoTime() + TIMEOUT;
+        for (int i = 0; i < clients.size(); i++) {
+            while (clients.get(i).getSentencesWritten() < count) {
+                assertTrue("Sentence not written", System.nanoTime() < deadline);
+                Thread.yield();
+            }
+        }
+    }
+
+    private static String repeat(String string, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++)
+            builder.append(string);
+
+        return builder.toString();
+    }
+
+    private static ClientConnection[] createClients(BroadcastBuffer buffer, int n) {
+        ClientConnection[] clients = new ClientConnection[n];
+
+        for (int i = 0; i < n; i++) {
+            clients[i] = new ClientConnection(null, 8,
+                    ClientConnection.DropPolicy.DROP_OLDEST, 4 * 1024,
+                    ClientConnection.LaggardPolicy.DROP_STALE, buffer.newView());
+        }
+
+        return clients;
+    }
+
+    private static void broadcast(BroadcastBuffer buffer, ClientConnection[] clients) {
+        long position = buffer.put(GGA);
+
+        for (ClientConnection client : clients)
+            client.offer(position, GGA.length() + 2);
+    }
+}
@@ -0,0 +1,240 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Writes queued sentences to a real loopback connection, checking the gathering writes, the
+ * accounting of what was written and dropped, and that a client never receives half a sentence.
+ */
+public class ClientConnectionTest extends TestCase {
+
+    private static final int SENTENCE_LENGTH = 1000;
+
+    private SocketChannel server;
+    private SocketChannel client;
+
+    @Override
+    protected void setUp() throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+
+        client = SocketChannel.open();
+        client.socket().setReceiveBufferSize(4096);
+        client.connect(listener.socket().getLocalSocketAddress());
+
+        server = listener.accept();
+        server.socket().setSendBufferSize(4096);
+        server.configureBlocking(false);
+        client.configureBlocking(false);
+        listener.close();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        server.close();
+        client.close();
+    }
+
+    public void testGatheringWrite() throws IOException {
+        BroadcastBuffer buffer = new BroadcastBuffer(64 * 1024);
+        ClientConnection connection = createConnection(buffer, 8);
+
+        for (int i = 0; i < 3; i++)
+            connection.offer(buffer.put(sentence(i)), SENTENCE_LENGTH);
+
+        assertEquals(3 * SENTENCE_LENGTH, connection.write(buffer));
+        assertEquals(3, connection.getSentencesWritten());
+        assertEquals(0, connection.getPendingBytes());
+        assertTrue(connection.isEmpty());
+
+        String received = receive(3 * SENTENCE_LENGTH);
+        assertEquals(sentence(0) + "\r\n" + sentence(1) + "\r\n" + sentence(2) + "\r\n", received);
+    }
+
+    public void testOverwrittenSentencesAreDropped() throws IOException {
+        BroadcastBuffer buffer = new BroadcastBuffer(4096);
+        ClientConnection connection = createConnection(buffer, 8);
+
+        /* Only half the ring is kept, so the first two are gone once all four are in. */
+        for (int i = 0; i < 4; i++)
+            connection.offer(buffer.put(sentence(i)), SENTENCE_LENGTH);
+
+        assertEquals(2 * SENTENCE_LENGTH, connection.write(buffer));
+
+        assertEquals(2, connection.getSentencesDropped());
+        assertEquals(2, connection.getSentencesWritten());
+        assertEquals(2 * SENTENCE_LENGTH, connection.getBytesDropped());
+        assertEquals(connection.getBytesQueued(),
+                connection.getBytesWritten() + connection.getBytesDropped());
+        assertEquals(sentence(2) + "\r\n" + sentence(3) + "\r\n", receive(2 * SENTENCE_LENGTH));
+    }
+
+    /**
+     * Fills the socket and reads a little at a time until a sentence is written partly, then
+     * overwrites the whole ring before the client reads the rest. The rest of the sentence must
+     * still arrive, and nothing after it may be torn either.
+     */
+    public void testPartlyWrittenSentenceSurvivesOverwrite() throws IOException {
+        /* Longer than what a full socket buffer takes at once, with room for two in the ring. */
+        int length = 3000;
+        BroadcastBuffer buffer = new BroadcastBuffer(4 * length);
+        ClientConnection connection = createConnection(buffer, 2);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        ByteBuffer input = ByteBuffer.allocate(300);
+        int offered = 0;
+
+        /* Until a write stops in the middle of a sentence, not only before one. */
+        while (connection.getBytesWritten() % length == 0) {
+            assertTrue("No partial write", offered < 10000);
+            connection.offer(buffer.put(sentence(offered, length)), length);
+            offered++;
+
+            if (connection.write(buffer) == 0)
+                read(input, received);
+        }
+
+        for (int i = 0; i < 8; i++)
+            buffer.put(sentence(offered + i, length));
+
+        input = ByteBuffer.allocate(4096);
+        for (int idle = 0; idle < 100; idle++) {
+            connection.write(buffer);
+            if (read(input, received))
+                idle = 0;
+        }
+
+        assertTrue(connection.isEmpty());
+        assertFalse(connection.isEvicted());
+        assertEquals(connection.getBytesQueued(),
+                connection.getBytesWritten() + connection.getBytesDropped());
+        assertEquals(connection.getBytesWritten(), received.size());
+
+        String[] lines = received.toString().split("\r\n", -1);
+        assertEquals(connection.getSentencesWritten() + 1, lines.length);
+        assertEquals("", lines[lines.length - 1]);
+        for (int i = 0; i < lines.length - 1; i++)
+            assertEquals(sentence(lines[i].charAt(1) - 'A', length), lines[i]);
+    }
+
+    /**
+     * A write that stops exactly at the end of a sentence leaves the next one whole in the queue,
+     * neither counted as a partial write nor copied out of the ring.
+     */
+    public void testShortWriteAtBoundaryIsNotPartial() throws IOException {
+        BroadcastBuffer buffer = new BroadcastBuffer(64 * 1024);
+        ClientConnection connection = createConnection(buffer, 8);
+        LimitedChannel output = new LimitedChannel(2 * SENTENCE_LENGTH);
+        connection.setOutput(output);
+
+        for (int i = 0; i < 3; i++)
+            connection.offer(buffer.put(sentence(i)), SENTENCE_LENGTH);
+
+        assertEquals(2 * SENTENCE_LENGTH, connection.write(buffer));
+        assertEquals(2, connection.getSentencesWritten());
+        assertEquals(0, connection.getPartialWrites());
+        assertEquals(SENTENCE_LENGTH, connection.getPendingBytes());
+
+        output.limit = SENTENCE_LENGTH;
+        assertEquals(SENTENCE_LENGTH, connection.write(buffer));
+        assertEquals(3, connection.getSentencesWritten());
+        assertEquals(0, connection.getPartialWrites());
+        assertTrue(connection.isEmpty());
+        assertEquals(sentence(0) + "\r\n" + sentence(1) + "\r\n" + sentence(2) + "\r\n",
+                output.received.toString("US-ASCII"));
+    }
+
+    private ClientConnection createConnection(BroadcastBuffer buffer, int capacity) {
+        return new ClientConnection(server, capacity, ClientConnection.DropPolicy.DROP_OLDEST,
+                64 * 1024, ClientConnection.LaggardPolicy.DROP_STALE, buffer.newView());
+    }
+
+    private static String sentence(int index) {
+        return sentence(index, SENTENCE_LENGTH);
+    }
+
+    /**
+     * @return a sentence of {@code length} bytes with its terminator, made of a letter that tells
+     * it apart from its neighbours.
+     */
+    private static String sentence(int index, int length) {
+        char letter = (char) ('A' + index % 26);
+        StringBuilder builder = new StringBuilder("$");
+        while (builder.length() < length - 2)
+            builder.append(letter);
+
+        return builder.toString();
+    }
+
+    private boolean read(ByteBuffer input, ByteArrayOutputStream received) throws IOException {
+        input.clear();
+        if (client.read(input) <= 0)
+            return false;
+
+        received.write(input.array(), 0, input.position());
+        return true;
+    }
+
+    /**
+     * Takes at most {@code limit} bytes in every write, like a socket with that much room left.
+     */
+    private static class LimitedChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int limit;
+
+        LimitedChannel(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            int written = 0;
+            for (int i = offset; i < offset + length && written < limit; i++)
+                written += write(sources[i], limit - written);
+
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            return write(source, limit);
+        }
+
+        private int write(ByteBuffer source, int room) {
+            int length = Math.min(source.remaining(), room);
+            for (int i = 0; i < length; i++)
+                received.write(source.get());
+
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private String receive(int length) throws IOException {
+        ByteBuffer input = ByteBuffer.allocate(length);
+        for (int i = 0; i < 1000 && input.hasRemaining(); i++)
+            client.read(input);
+
+        return new String(input.array(), 0, input.position(), "US-ASCII");
+    }
+}
@@ -0,0 +1,59 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how {@link ClientRequest} parses the request lines of clients, and that it rejects
+ * malformed ones.
+ */
+public class ClientRequestTest extends TestCase {
+
+    public void testSubscribe() {
+        ClientRequest request = ClientRequest.parse(" subscribe GGA, rmc ");
+        assertEquals(ClientRequest.Type.SUBSCRIBE, request.getType());
+        assertEquals(NmeaScanner.TYPE_GGA | NmeaScanner.TYPE_RMC, request.getSubscriptions());
+
+        assertEquals(0, ClientRequest.parse(NmeaBroadcastServer.REQUEST_SUBSCRIBE)
+                .getSubscriptions());
+    }
+
+    public void testIntervals() {
+        ClientRequest request = ClientRequest.parse(NmeaBroadcastServer.REQUEST_INTERVAL + " 500");
+        assertEquals(ClientRequest.Type.INTERVAL, request.getType());
+        assertEquals(500, request.getInterval());
+        assertEquals(0, ClientRequest.parse(NmeaBroadcastServer.REQUEST_INTERVAL + " -5")
+                .getInterval());
+
+        request = ClientRequest.parse(NmeaBroadcastServer.REQUEST_BATCH + ",2000");
+        assertEquals(ClientRequest.Type.BATCH, request.getType());
+        assertEquals(2000, request.getInterval());
+        assertEquals(NmeaBroadcastServer.MAX_BATCH_INTERVAL, ClientRequest.parse(
+                NmeaBroadcastServer.REQUEST_BATCH + " " + Long.MAX_VALUE).getInterval());
+    }
+
+    public void testFormats() {
+        ClientRequest request = ClientRequest.parse(NmeaBroadcastServer.REQUEST_FORMAT + " "
+                + NmeaBroadcastServer.FORMAT_DELTA);
+        assertEquals(ClientRequest.Type.FORMAT, request.getType());
+        assertEquals(NmeaScanner.TYPE_FIX, request.getSubscriptions());
+        assertTrue(request.isDelta());
+
+        request = ClientRequest.parse(NmeaBroadcastServer.REQUEST_FORMAT + " "
+                + NmeaBroadcastServer.FORMAT_BINARY);
+        assertEquals(NmeaScanner.TYPE_FIX, request.getSubscriptions());
+        assertFalse(request.isDelta());
+
+        request = ClientRequest.parse(NmeaBroadcastServer.REQUEST_FORMAT + " "
+                + NmeaBroadcastServer.FORMAT_NMEA);
+        assertEquals(NmeaScanner.TYPE_GGA, request.getSubscriptions());
+    }
+
+    public void testInvalid() {
+        assertNull(ClientRequest.parse(""));
+        assertNull(ClientRequest.parse("HELLO 1"));
+        assertNull(ClientRequest.parse(NmeaBroadcastServer.REQUEST_INTERVAL));
+        assertNull(ClientRequest.parse(NmeaBroadcastServer.REQUEST_INTERVAL + " 1 2"));
+        assertNull(ClientRequest.parse(NmeaBroadcastServer.REQUEST_BATCH + " soon"));
+        assertNull(ClientRequest.parse(NmeaBroadcastServer.REQUEST_FORMAT + " XML"));
+    }
+}
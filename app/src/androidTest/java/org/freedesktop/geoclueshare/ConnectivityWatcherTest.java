@@ -0,0 +1,24 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the conversion of the addresses given by the Wi-Fi service, whose bytes are in the
+ * reverse order of the int.
+ */
+public class ConnectivityWatcherTest extends TestCase {
+
+    public void testToInetAddress() {
+        /* 192.168.1.23 */
+        int ip = 192 | 168 << 8 | 1 << 16 | 23 << 24;
+        assertEquals("192.168.1.23", ConnectivityWatcher.toInetAddress(ip).getHostAddress());
+
+        /* 10.0.0.255, the sign bit is set. */
+        ip = 10 | 255 << 24;
+        assertEquals("10.0.0.255", ConnectivityWatcher.toInetAddress(ip).getHostAddress());
+    }
+
+    public void testNoAddress() {
+        assertNull(ConnectivityWatcher.toInetAddress(0));
+    }
+}
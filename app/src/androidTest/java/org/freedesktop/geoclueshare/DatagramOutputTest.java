@@ -0,0 +1,67 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Sends {@link DatagramOutput} datagrams over the loopback interface, bound to its address as
+ * the Wi-Fi one would be.
+ */
+public class DatagramOutputTest extends TestCase {
+
+    private static final String GGA =
+            "$GPGGA,123519,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,*79";
+
+    private DatagramSocket receiver;
+    private DatagramOutput output;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        receiver = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        receiver.setSoTimeout(2000);
+        output = new DatagramOutput(new InetSocketAddress(loopback, receiver.getLocalPort()),
+                loopback, DatagramOutput.DEFAULT_TTL, NmeaScanner.TYPE_GGA);
+        output.open();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        output.close();
+        receiver.close();
+        super.tearDown();
+    }
+
+    public void testSentenceIsSent() throws Exception {
+        assertFalse(output.send(GGA.getBytes("US-ASCII"), 0, GGA.length(),
+                NmeaScanner.TYPE_RMC));
+        assertTrue(output.send(GGA.getBytes("US-ASCII"), 0, GGA.length(),
+                NmeaScanner.TYPE_GGA));
+
+        assertEquals(GGA + "\r\n", receive());
+        assertEquals(1, output.getSent());
+        assertEquals(1, output.getTtl());
+    }
+
+    public void testNewAddress() throws Exception {
+        output.setLocalAddress(null);
+
+        /* The socket is opened again, on the wildcard address this time. */
+        assertTrue(output.send(GGA.getBytes("US-ASCII"), 0, GGA.length(),
+                NmeaScanner.TYPE_GGA));
+        assertEquals(GGA + "\r\n", receive());
+    }
+
+    private String receive() throws Exception {
+        byte[] buffer = new byte[1024];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        receiver.receive(packet);
+
+        return new String(buffer, 0, packet.getLength(), "US-ASCII");
+    }
+}
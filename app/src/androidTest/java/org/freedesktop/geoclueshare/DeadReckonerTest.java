@@ -0,0 +1,98 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the positions {@link DeadReckoner} estimates between fixes, from their velocity or from
+ * the displacement between them.
+ */
+public class DeadReckonerTest extends TestCase {
+
+    private static final long TIME = 1435600519000L;
+    /* The fixes are received on a clock that has nothing to do with UTC. */
+    private static final long ELAPSED = 86400000L;
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    private final DeadReckoner reckoner = new DeadReckoner();
+    private final double[] fix = new double[5];
+
+    public void testEmpty() {
+        assertEquals(0, reckoner.estimate(ELAPSED, fix));
+        assertEquals(0, reckoner.getTime());
+    }
+
+    public void testVelocity() {
+        /* 10 m/s to the north-east. */
+        assertTrue(add(ELAPSED, 48.0, 11.0, true, 10, 45));
+
+        assertTrue(reckoner.estimate(ELAPSED + 500, fix) != 0);
+        double north = 5 * Math.cos(Math.toRadians(45));
+        assertEquals(north, (fix[0] - 48.0) * METERS_PER_DEGREE, 0.01);
+        assertEquals(north, (fix[1] - 11.0) * METERS_PER_DEGREE * Math.cos(Math.toRadians(48)),
+                0.01);
+        assertEquals(1.5, fix[2], 0);
+        assertEquals(4.0, fix[3], 0);
+        assertEquals(520.0, fix[4], 0);
+    }
+
+    public void testVelocityFromFixes() {
+        /* 11.1 m north and nothing east in a second, then the velocity is unknown. */
+        add(ELAPSED, 48.0, 11.0, false, 0, 0);
+        add(ELAPSED + 1000, 48.0001, 11.0, false, 0, 0);
+
+        assertTrue(reckoner.estimate(ELAPSED + 1200, fix) != 0);
+        assertEquals(0.2 * 0.0001 * METERS_PER_DEGREE, (fix[0] - 48.0001) * METERS_PER_DEGREE,
+                0.01);
+        assertEquals(11.0, fix[1], 1e-9);
+    }
+
+    public void testLimits() {
+        add(ELAPSED, 0, 179.99999, true, 10, 90);
+
+        /* Estimates are only made after the fix. */
+        assertEquals(0, reckoner.estimate(ELAPSED, fix));
+
+        /* Across the antimeridian. */
+        assertTrue(reckoner.estimate(ELAPSED + 1000, fix) != 0);
+        assertTrue(fix[1] < -179.9999);
+
+        /* The position stops moving, then nothing is estimated. */
+        reckoner.estimate(ELAPSED + DeadReckoner.MAX_EXTRAPOLATION, fix);
+        double longitude = fix[1];
+        assertTrue(reckoner.estimate(ELAPSED + DeadReckoner.MAX_AGE, fix) != 0);
+        assertEquals(longitude, fix[1], 0);
+        assertEquals(0, reckoner.estimate(ELAPSED + DeadReckoner.MAX_AGE + 1, fix));
+
+        /* Older fixes and invalid positions are ignored. */
+        assertFalse(add(ELAPSED, 1, 1, false, 0, 0));
+        assertFalse(add(ELAPSED + 1, Double.NaN, 1, false, 0, 0));
+
+        reckoner.reset();
+        assertEquals(0, reckoner.estimate(ELAPSED + 1000, fix));
+    }
+
+    public void testTimeOfEstimates() {
+        add(ELAPSED, 48.1173, 11.516666667, true, 0, 0);
+        assertEquals(TIME + 250, reckoner.estimate(ELAPSED + 250, fix));
+
+        /* The UTC times only stamp the estimates, a fix received later is the latest one. */
+        assertTrue(reckoner.add(ELAPSED + 1000, TIME - 5000, 48.0, 11.0, 1.5, 4.0, true, 520.0,
+                false, 0, 0));
+        assertFalse(reckoner.add(ELAPSED + 1000, TIME + 5000, 48.0, 11.0, 1.5, 4.0, true, 520.0,
+                false, 0, 0));
+        assertEquals(TIME - 5000, reckoner.getTime());
+        assertEquals(TIME - 4500, reckoner.estimate(ELAPSED + 1500, fix));
+
+        reckoner.reset();
+        assertEquals(0, reckoner.getTime());
+    }
+
+    /**
+     * Adds a fix received at {@code elapsed}, whose UTC time is as far past {@link #TIME}.
+     */
+    private boolean add(long elapsed, double latitude, double longitude, boolean hasVelocity,
+                        double speed, double bearing) {
+        return reckoner.add(elapsed, TIME + elapsed - ELAPSED, latitude, longitude, 1.5, 4.0,
+                true, 520.0, hasVelocity, speed, bearing);
+    }
+}
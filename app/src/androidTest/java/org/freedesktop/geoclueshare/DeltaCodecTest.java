@@ -0,0 +1,155 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Feeds a track through a {@link DeltaCodec} encoder and decoder, checking that the decoded
+ * fixes are the original ones and that a decoder resyncs after records are lost.
+ */
+public class DeltaCodecTest extends TestCase {
+
+    private static final int FIXES = 1000;
+
+    private final FixCodec frames = new FixCodec();
+    private final FixCodec expected = new FixCodec();
+    private final DeltaCodec encoder = new DeltaCodec(10);
+    private final DeltaCodec decoder = new DeltaCodec(10);
+    private final Random random = new Random(42);
+    private double latitude = 48.1173;
+    private double longitude = 11.516666667;
+    private long time = 1435600519000L;
+
+    public void testRoundTrip() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[][] sent = new byte[FIXES][];
+
+        for (int i = 0; i < FIXES; i++) {
+            /* Estimated fixes in between the real ones, and now and then a DGPS fix. */
+            int quality = i % 2 == 1 ? FixCodec.QUALITY_ESTIMATED : FixCodec.QUALITY_GPS;
+            sent[i] = nextFrame(i % 100 == 50 ? 2 : quality);
+            write(stream, encoder.encode(sent[i], 0, 0));
+        }
+
+        byte[] data = stream.toByteArray();
+        int offset = 0;
+
+        for (int i = 0; i < FIXES; i++) {
+            int used = decoder.decode(data, offset, data.length - offset);
+            assertTrue(used > 0);
+            assertTrue(decoder.hasFix());
+            assertSameFix(sent[i], decoder.getFix());
+            offset += used;
+        }
+        assertEquals(data.length, offset);
+
+        /* Deltas of a slow walk at 10 Hz are well under half a frame. */
+        assertTrue(data.length < FIXES * FixCodec.FRAME_LENGTH / 2);
+    }
+
+    public void testKeyframes() {
+        for (int i = 0; i < 25; i++) {
+            int length = encoder.encode(nextFrame(FixCodec.QUALITY_GPS), 0, 0);
+            assertEquals(i % 10 == 0, length == FixCodec.LENGTH);
+        }
+
+        /* A change of quality is carried by the delta, a drop forces a keyframe. */
+        assertTrue(encoder.encode(nextFrame(FixCodec.QUALITY_ESTIMATED), 0, 0) < FixCodec.LENGTH);
+        assertTrue(encoder.encode(nextFrame(FixCodec.QUALITY_GPS), 0, 0) < FixCodec.LENGTH);
+        assertEquals(FixCodec.LENGTH, encoder.encode(nextFrame(2), 0, 1));
+        assertTrue(encoder.encode(nextFrame(2), 0, 1) < FixCodec.LENGTH);
+    }
+
+    public void testResyncAfterLoss() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] last = null;
+
+        for (int i = 0; i < 25; i++) {
+            last = nextFrame(FixCodec.QUALITY_GPS);
+            int length = encoder.encode(last, 0, 0);
+
+            /* Lose the fourth record. */
+            if (i != 3)
+                write(stream, length);
+        }
+
+        byte[] data = stream.toByteArray();
+        int offset = 0;
+        int fixes = 0;
+
+        while (offset < data.length) {
+            int used = decoder.decode(data, offset, data.length - offset);
+            assertTrue(used > 0);
+            if (decoder.hasFix())
+                fixes++;
+            offset += used;
+        }
+
+        /* Records 0 to 2, then nothing until the keyframe of record 10. */
+        assertEquals(3 + 15, fixes);
+        assertSameFix(last, decoder.getFix());
+    }
+
+    public void testGarbageIsSkipped() {
+        byte[] frame = nextFrame(FixCodec.QUALITY_GPS);
+        int length = encoder.encode(frame, 0, 0);
+
+        byte[] data = new byte[5 + length + 2];
+        data[0] = '$';
+        data[1] = FixCodec.MAGIC_0;
+        System.arraycopy(encoder.getBuffer(), 0, data, 5, length);
+        data[data.length - 2] = '\r';
+        data[data.length - 1] = '\n';
+
+        int offset = 0;
+        while (!decoder.hasFix()) {
+            int used = decoder.decode(data, offset, data.length - offset);
+            assertTrue(used > 0);
+            offset += used;
+        }
+
+        assertEquals(data.length, offset);
+        assertSameFix(frame, decoder.getFix());
+    }
+
+    public void testIncompleteRecord() {
+        int length = encoder.encode(nextFrame(FixCodec.QUALITY_GPS), 0, 0);
+
+        assertEquals(0, decoder.decode(encoder.getBuffer(), 0, length));
+        assertEquals(0, decoder.decode(encoder.getBuffer(), 0, 2));
+    }
+
+    /**
+     * Encodes the next fix of a slow random walk, 10 fixes per second.
+     */
+    private byte[] nextFrame(int quality) {
+        time += 100;
+        latitude += (random.nextDouble() - 0.5) * 2e-5;
+        longitude += (random.nextDouble() - 0.5) * 2e-5;
+
+        frames.encode(time, latitude, longitude, 0.8 + random.nextInt(3) / 10.0,
+                3 + random.nextDouble(), true, 545 + random.nextDouble(), quality);
+        return frames.getBuffer().clone();
+    }
+
+    private void write(ByteArrayOutputStream stream, int length) {
+        stream.write(encoder.getBuffer(), 0, length);
+        stream.write('\r');
+        stream.write('\n');
+    }
+
+    private void assertSameFix(byte[] frame, FixCodec actual) {
+        assertTrue(expected.decode(frame, 0, frame.length));
+
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.getQuality(), actual.getQuality());
+        assertEquals(expected.getTime(), actual.getTime());
+        assertEquals(expected.getLatitude(), actual.getLatitude());
+        assertEquals(expected.getLongitude(), actual.getLongitude());
+        assertEquals(expected.getAltitude(), actual.getAltitude());
+        assertEquals(expected.getAccuracy(), actual.getAccuracy());
+        assertEquals(expected.getHdop(), actual.getHdop());
+    }
+}
@@ -0,0 +1,106 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks that fixes survive a round trip through {@link FixCodec} within the resolution of the
+ * frame, and that damaged frames are rejected.
+ */
+public class FixCodecTest extends TestCase {
+
+    private static final int ITERATIONS = 100000;
+
+    private final FixCodec encoder = new FixCodec();
+    private final FixCodec decoder = new FixCodec();
+
+    public void testKnownFrame() {
+        encoder.encode(1435600519000L, 48.1173, 11.516666667, 0.9, 4.5, true, 545.4,
+                FixCodec.QUALITY_GPS);
+        byte[] frame = encoder.getBuffer();
+
+        assertEquals((byte) 0xA5, frame[0]);
+        assertEquals('G', frame[1]);
+        assertEquals(FixCodec.VERSION, frame[2]);
+        assertEquals(FixCodec.QUALITY_GPS, frame[3]);
+
+        /* 481173000 = 0x1CAE1E08, little-endian. */
+        assertEquals((byte) 0x08, frame[16]);
+        assertEquals((byte) 0x1E, frame[17]);
+        assertEquals((byte) 0xAE, frame[18]);
+        assertEquals((byte) 0x1C, frame[19]);
+
+        assertTrue(decoder.decode(frame, 0, FixCodec.LENGTH));
+        assertEquals(0, decoder.getSequence());
+        assertEquals(1435600519000L, decoder.getTime());
+        assertEquals(48.1173, decoder.getLatitude(), 1e-9);
+        assertEquals(11.5166667, decoder.getLongitude(), 1e-9);
+        assertEquals(0.9, decoder.getHdop(), 1e-9);
+        assertEquals(4.5, decoder.getAccuracy(), 1e-9);
+        assertTrue(decoder.hasAltitude());
+        assertEquals(545.4, decoder.getAltitude(), 1e-9);
+    }
+
+    public void testRandomFixes() {
+        Random random = new Random(42);
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            long time = (long) (random.nextDouble() * 4102444800000L);
+            double latitude = random.nextDouble() * 180 - 90;
+            double longitude = random.nextDouble() * 360 - 180;
+            double hdop = random.nextDouble() * 50;
+            double accuracy = random.nextDouble() * 500;
+            boolean hasAltitude = random.nextBoolean();
+            double altitude = random.nextDouble() * 10000 - 500;
+            int quality = random.nextInt(9);
+
+            encoder.encode(time, latitude, longitude, hdop, accuracy, hasAltitude, altitude,
+                    quality);
+            assertTrue(decoder.decode(encoder.getBuffer(), 0, FixCodec.LENGTH));
+
+            assertEquals(i, decoder.getSequence());
+            assertEquals(quality, decoder.getQuality());
+            assertEquals(time, decoder.getTime());
+            assertEquals(latitude, decoder.getLatitude(), 0.5e-7);
+            assertEquals(longitude, decoder.getLongitude(), 0.5e-7);
+            assertEquals(hdop, decoder.getHdop(), 0.005);
+            assertEquals(accuracy, decoder.getAccuracy(), 0.005);
+            assertEquals(hasAltitude, decoder.hasAltitude());
+            if (hasAltitude)
+                assertEquals(altitude, decoder.getAltitude(), 0.0005);
+        }
+    }
+
+    public void testOutOfRangeValuesAreClamped() {
+        encoder.encode(0, 0, 0, Double.NaN, 1e6, false, 0, FixCodec.QUALITY_GPS);
+        assertTrue(decoder.decode(encoder.getBuffer(), 0, FixCodec.LENGTH));
+
+        assertEquals(0.0, decoder.getHdop());
+        assertEquals(655.35, decoder.getAccuracy(), 1e-9);
+        assertFalse(decoder.hasAltitude());
+    }
+
+    public void testFrameAtOffset() {
+        encoder.encode(1000, 1, 2, 3, 4, true, 5, FixCodec.QUALITY_GPS);
+
+        byte[] data = new byte[FixCodec.LENGTH + 10];
+        System.arraycopy(encoder.getBuffer(), 0, data, 10, FixCodec.LENGTH);
+
+        assertTrue(decoder.decode(data, 10, FixCodec.LENGTH));
+        assertEquals(1000, decoder.getTime());
+        assertFalse(decoder.decode(data, 10, FixCodec.LENGTH - 1));
+    }
+
+    public void testDamagedFrames() {
+        encoder.encode(1435600519000L, 48.1173, 11.516666667, 0.9, 4.5, true, 545.4,
+                FixCodec.QUALITY_GPS);
+
+        for (int i = 0; i < FixCodec.LENGTH; i++) {
+            byte[] frame = encoder.getBuffer().clone();
+            frame[i] ^= 0x10;
+
+            assertFalse("Byte " + i, decoder.decode(frame, 0, FixCodec.LENGTH));
+        }
+    }
+}
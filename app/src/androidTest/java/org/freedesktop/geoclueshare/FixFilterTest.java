@@ -0,0 +1,169 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Runs {@link FixFilter} over simulated traces, a known track with seeded noise of the advertised
+ * accuracy added to every fix, checking that the estimate is closer to the track than the fixes
+ * and that the accuracy it reports is honest.
+ */
+public class FixFilterTest extends TestCase {
+
+    private static final double LATITUDE = 48.1173;
+    private static final double LONGITUDE = 11.516666667;
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+    private static final long START = 1435600519000L;
+
+    private final FixFilter filter = new FixFilter();
+    private final Random random = new Random(42);
+
+    public void testStationaryNoiseIsSmoothed() {
+        double rawError = 0;
+        double filteredError = 0;
+        int samples = 0;
+
+        for (int i = 0; i < 120; i++) {
+            long time = START + i * 1000L;
+            double[] fix = noisy(0, 0, 10);
+            assertTrue(filter.update(time, fix[0], fix[1], 10, true, 500 + random.nextGaussian()));
+
+            if (i >= 20) {
+                assertTrue(filter.predict(time));
+                rawError += square(distance(fix[0], fix[1], 0, 0));
+                filteredError += square(distance(filter.getLatitude(), filter.getLongitude(), 0,
+                        0));
+                samples++;
+            }
+        }
+
+        double raw = Math.sqrt(rawError / samples);
+        double filtered = Math.sqrt(filteredError / samples);
+        assertTrue("RMS error " + filtered + " m against " + raw + " m", filtered < 0.7 * raw);
+        assertTrue(filter.getAccuracy() < 10);
+        assertEquals(500, filter.getAltitude(), 2);
+    }
+
+    public void testTracksConstantVelocity() {
+        /* Walking east at 1.4 m/s. */
+        double speed = 0;
+        for (int i = 0; i <= 90; i++) {
+            update(i * 1000L, 1.4 * i, 0, 5);
+
+            assertTrue(filter.predict(START + i * 1000L));
+            if (i > 60)
+                speed += filter.getSpeed() / 30;
+        }
+
+        assertEquals(1.4, speed, 0.3);
+        assertTrue(distance(filter.getLatitude(), filter.getLongitude(), 1.4 * 90, 0) < 5);
+
+        /* The walk goes on between fixes. */
+        assertTrue(filter.predict(START + 95000));
+        assertTrue(distance(filter.getLatitude(), filter.getLongitude(), 1.4 * 95, 0) < 8);
+    }
+
+    public void testIndoorGapIsBridgedHonestly() {
+        /* GPS while walking north, then only network fixes every 10 s while standing inside. */
+        for (int i = 0; i < 30; i++)
+            update(i * 1000L, 0, 1.4 * i, 5);
+
+        assertTrue(filter.predict(START + 29000));
+        double gpsAccuracy = filter.getAccuracy();
+        assertTrue(filter.predict(START + 39000));
+        assertTrue(filter.getAccuracy() > gpsAccuracy);
+
+        int within = 0;
+        int ticks = 0;
+
+        for (int i = 30; i < 150; i++) {
+            long time = i * 1000L;
+            if (i % 10 == 0)
+                update(time, 0, 1.4 * 30, 60);
+
+            assertTrue(filter.predict(START + time));
+            double error = distance(filter.getLatitude(), filter.getLongitude(), 0, 1.4 * 30);
+            if (error <= filter.getAccuracy())
+                within++;
+            ticks++;
+
+            assertTrue("Error " + error + " m for an accuracy of " + filter.getAccuracy(),
+                    error < 3 * filter.getAccuracy());
+        }
+
+        /* The accuracy is a 68% radius, it should hold most of the time. */
+        assertTrue(within + " of " + ticks, within >= ticks / 2);
+    }
+
+    public void testRejectedFixes() {
+        assertFalse(filter.predict(START));
+        assertFalse(filter.update(START, Double.NaN, 0, 10, false, 0));
+        assertFalse(filter.update(START, 0, 0, 0, false, 0));
+        assertEquals(0, filter.getTime());
+
+        assertTrue(filter.update(START, LATITUDE, LONGITUDE, 10, false, 0));
+        assertFalse(filter.hasAltitude());
+
+        /* The passive provider repeats GPS fixes, they must not count twice. */
+        assertFalse(filter.update(START, LATITUDE, LONGITUDE, 10, false, 0));
+        assertFalse(filter.update(START - 1000, LATITUDE, LONGITUDE, 10, false, 0));
+        assertEquals(1, filter.getFixCount());
+
+        /* Too long without fixes, the estimate is dropped and the next fix starts over. */
+        assertFalse(filter.predict(START + FixFilter.MAX_GAP + 1));
+        assertTrue(filter.update(START + FixFilter.MAX_GAP + 1, LATITUDE, LONGITUDE, 10, false,
+                0));
+        assertEquals(1, filter.getFixCount());
+    }
+
+    public void testHdopAndAccuracyLevel() {
+        assertEquals(1.0, FixFilter.getHdop(FixFilter.UERE), 1e-9);
+        assertEquals(0.5, FixFilter.getHdop(1), 1e-9);
+        assertEquals(99.9, FixFilter.getHdop(10000), 1e-9);
+        assertEquals(99.9, FixFilter.getHdop(Double.NaN), 1e-9);
+
+        assertEquals("exact", FixFilter.getAccuracyLevel(8));
+        assertEquals("street", FixFilter.getAccuracyLevel(300));
+        assertEquals("neighborhood", FixFilter.getAccuracyLevel(2000));
+        assertEquals("city", FixFilter.getAccuracyLevel(15000));
+        assertEquals("country", FixFilter.getAccuracyLevel(100000));
+    }
+
+    /**
+     * Fuses a noisy fix of a point of the track, given in meters east and north of the start.
+     */
+    private void update(long time, double east, double north, double accuracy) {
+        double[] fix = noisy(east, north, accuracy);
+        assertTrue(filter.update(START + time, fix[0], fix[1], accuracy, false, 0));
+    }
+
+    /**
+     * @return the latitude and longitude of a point of the track, moved by a random error whose
+     * 68% radius is {@code accuracy}.
+     */
+    private double[] noisy(double east, double north, double accuracy) {
+        double sigma = accuracy / Math.sqrt(2);
+        return new double[]{
+                LATITUDE + (north + random.nextGaussian() * sigma) / METERS_PER_DEGREE,
+                LONGITUDE + (east + random.nextGaussian() * sigma) / metersPerDegreeEast()
+        };
+    }
+
+    /**
+     * @return the distance in meters between a position and a point of the track.
+     */
+    private static double distance(double latitude, double longitude, double east, double north) {
+        double dx = (longitude - LONGITUDE) * metersPerDegreeEast() - east;
+        double dy = (latitude - LATITUDE) * METERS_PER_DEGREE - north;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static double metersPerDegreeEast() {
+        return METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE));
+    }
+
+    private static double square(double x) {
+        return x * x;
+    }
+}
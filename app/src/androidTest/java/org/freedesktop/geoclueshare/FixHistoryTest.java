@@ -0,0 +1,96 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link FixHistory} returns the latest fixes by age and overwrites the oldest ones.
+ */
+public class FixHistoryTest extends TestCase {
+
+    private final FixHistory history = new FixHistory(4);
+    private final GgaEncoder expected = new GgaEncoder();
+    private final GgaEncoder actual = new GgaEncoder();
+
+    public void testEmpty() {
+        assertEquals(0, history.size());
+        assertEquals(0, history.getTime(0));
+        assertEquals(0, history.encodeGga(0, actual));
+        assertEquals(0, history.encodeFrame(0, new FixCodec()));
+    }
+
+    public void testLatestFirst() {
+        add(1);
+        add(2);
+        add(3);
+
+        assertEquals(3, history.size());
+        assertEquals(3000, history.getTime(0));
+        assertEquals(1000, history.getTime(2));
+        assertEquals(0, history.getTime(3));
+
+        history.encodeGga(1, actual);
+        expected.encode(2000, 2, 2, 1.5, true, 2, FixCodec.QUALITY_GPS);
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    public void testGgaKeepsQuality() {
+        history.add(1000, 1, 1, 1.5, 3, false, 0, FixCodec.QUALITY_ESTIMATED);
+
+        history.encodeGga(0, actual);
+        expected.encode(1000, 1, 1, 1.5, false, 0, FixCodec.QUALITY_ESTIMATED);
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(String.valueOf(FixCodec.QUALITY_ESTIMATED),
+                actual.toString().split(",")[6]);
+    }
+
+    public void testOldestIsOverwritten() {
+        for (int i = 1; i <= 10; i++)
+            add(i);
+
+        assertEquals(4, history.size());
+        assertEquals(10000, history.getTime(0));
+        assertEquals(7000, history.getTime(3));
+        assertEquals(0, history.getTime(4));
+    }
+
+    public void testInvalidFixesAreIgnored() {
+        assertEquals(-1, history.add(1000, Double.NaN, 0, 1.5, 3, false, 0,
+                FixCodec.QUALITY_GPS));
+        assertEquals(-1, history.add(1000, 0, 200, 1.5, 3, false, 0, FixCodec.QUALITY_GPS));
+        assertEquals(0, history.size());
+    }
+
+    public void testFrame() {
+        add(5);
+
+        FixCodec codec = new FixCodec();
+        assertEquals(FixCodec.LENGTH, history.encodeFrame(0, codec));
+        assertTrue(codec.decode(codec.getBuffer(), 0, FixCodec.LENGTH));
+        assertEquals(5000, codec.getTime());
+        assertEquals(5.0, codec.getLatitude(), 1e-7);
+        assertEquals(3.0, codec.getAccuracy(), 1e-9);
+        assertEquals(FixCodec.QUALITY_GPS, codec.getQuality());
+    }
+
+    public void testSequenceNumbers() {
+        add(1);
+        assertEquals(1, history.nextSequence());
+        add(2);
+
+        /* A replayed fix keeps the number it was added with, whatever the codec. */
+        FixCodec codec = new FixCodec();
+        history.encodeFrame(1, codec);
+        assertTrue(codec.decode(codec.getBuffer(), 0, FixCodec.LENGTH));
+        assertEquals(0, codec.getSequence());
+        history.encodeFrame(0, codec);
+        assertTrue(codec.decode(codec.getBuffer(), 0, FixCodec.LENGTH));
+        assertEquals(2, codec.getSequence());
+
+        assertEquals(3, history.add(3000, 3, 3, 1.5, 3, true, 3, FixCodec.QUALITY_GPS));
+        assertEquals(4, history.nextSequence());
+    }
+
+    private void add(int i) {
+        assertTrue(history.add(i * 1000L, i, i, 1.5, 3, true, i, FixCodec.QUALITY_GPS) >= 0);
+    }
+}
@@ -0,0 +1,130 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Compares {@link GgaEncoder} with the {@code String.format} based encoding it replaced, over
+ * random fixes.
+ */
+public class GgaEncoderTest extends TestCase {
+
+    private static final int ITERATIONS = 100000;
+    private static final double[] HDOPS = {0.5, 1.5, 3.5, 7.5, 15.0, 30.0};
+
+    public void testKnownSentence() {
+        GgaEncoder encoder = new GgaEncoder();
+
+        encoder.encode(1435600519000L, 48.1173, 11.516666667, 0.9, true, 545.4);
+        assertEquals("$GPGGA,175519,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,*59",
+                encoder.toString());
+    }
+
+    public void testQuality() {
+        GgaEncoder encoder = new GgaEncoder();
+
+        encoder.encode(1435600519999L, 48.1173, 11.516666667, 0.9, true, 545.4,
+                FixCodec.QUALITY_ESTIMATED);
+        assertEquals("$GPGGA,175519.99,4807.038,N,01131.000,E,6,,0.9,545.4,M,,M,,*70",
+                encoder.toString());
+    }
+
+    public void testRandomFixes() {
+        Random random = new Random(42);
+        GgaEncoder encoder = new GgaEncoder();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            long time = (long) (random.nextDouble() * 4102444800000L);
+            double latitude = random.nextDouble() * 180 - 90;
+            double longitude = random.nextDouble() * 360 - 180;
+            double hdop = HDOPS[random.nextInt(HDOPS.length)];
+            boolean hasAltitude = random.nextBoolean();
+            double altitude = random.nextDouble() * 10000 - 500;
+
+            encoder.encode(time, latitude, longitude, hdop, hasAltitude, altitude);
+            assertEquals(format(time, latitude, longitude, hdop, hasAltitude, altitude),
+                    encoder.toString());
+
+            /*
+             * Uniform doubles are never close to a tie, so also try decimal ties and their
+             * neighbouring doubles, e.g. 3.35 and 3.3499999999999996.
+             */
+            double altitudeTie = (random.nextInt(200000) * 2 + 1) / 20.0 - 500;
+            double minutesTie = (random.nextInt(60000) * 2 + 1) / 2000.0;
+            int degrees = random.nextInt(180) - 90;
+            double latitudeTie = degrees + (degrees < 0 ? -minutesTie : minutesTie) / 60;
+
+            for (int j = -1; j <= 1; j++) {
+                altitude = altitudeTie + j * Math.ulp(altitudeTie);
+                latitude = latitudeTie + j * Math.ulp(latitudeTie);
+
+                encoder.encode(time, latitude, longitude, hdop, true, altitude);
+                assertEquals(format(time, latitude, longitude, hdop, true, altitude),
+                        encoder.toString());
+            }
+        }
+    }
+
+    public void testEdgeValues() {
+        GgaEncoder encoder = new GgaEncoder();
+        double[] values = {0.0, -0.0, 0.04, -0.04, 0.05, -0.05, 89.99999999, -89.99999999,
+                179.99999999, -179.99999999, 0.0000083, -12.5, 99.95, 1e6, 3.35,
+                3.3499999999999996, 0.25, 0.35, 2.675, -2.675, 1.0000083333333333};
+
+        for (double a : values) {
+            for (double b : values) {
+                double latitude = Math.max(-90, Math.min(90, a));
+                double longitude = Math.max(-180, Math.min(180, b));
+
+                encoder.encode(0, latitude, longitude, Math.abs(b), true, a);
+                assertEquals(format(0, latitude, longitude, Math.abs(b), true, a),
+                        encoder.toString());
+            }
+        }
+    }
+
+    /**
+     * The encoding {@link LocationService} used before {@link GgaEncoder}, in a fixed locale.
+     */
+    private static String format(long time, double latitude, double longitude, double hdop,
+                                 boolean hasAltitude, double altitude) {
+        DateFormat dateFormat = new SimpleDateFormat("HHmmss", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String gga;
+
+        if (hasAltitude) {
+            gga = String.format(Locale.US, "$GPGGA,%s,%s,%s,1,,%.1f,%.1f,M,,M,,",
+                    dateFormat.format(new Date(time)),
+                    formatCoordinate("%02d%06.3f,%s", latitude, "N", "S"),
+                    formatCoordinate("%03d%06.3f,%s", longitude, "E", "W"),
+                    hdop, altitude);
+        } else {
+            gga = String.format(Locale.US, "$GPGGA,%s,%s,%s,1,,%.1f,,M,,M,,",
+                    dateFormat.format(new Date(time)),
+                    formatCoordinate("%02d%06.3f,%s", latitude, "N", "S"),
+                    formatCoordinate("%03d%06.3f,%s", longitude, "E", "W"),
+                    hdop);
+        }
+
+        int checksum = 0;
+        for (int i = 1, n = gga.length(); i < n; i++)
+            checksum ^= (int) gga.charAt(i);
+
+        return String.format(Locale.US, "%s*%02X", gga, checksum);
+    }
+
+    private static String formatCoordinate(String format, double value, String positive,
+                                           String negative) {
+        int degrees = (int) Math.abs(value);
+        double minutes = Math.abs((value - (int) value) * 60);
+
+        return String.format(Locale.US, format, degrees, minutes,
+                value >= 0 ? positive : negative);
+    }
+}
@@ -0,0 +1,102 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds simulated fixes to {@link GpsScheduler}.
+ */
+public class GpsSchedulerTest extends TestCase {
+
+    private static final double LATITUDE = 52.2297;
+    private static final double LONGITUDE = 21.0122;
+
+    /**
+     * Roughly one meter north, in degrees of latitude.
+     */
+    private static final double METER = 1.0 / 111195;
+
+    private GpsScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        scheduler = new GpsScheduler();
+    }
+
+    public void testDefaultInterval() {
+        assertEquals(GpsScheduler.DEFAULT_INTERVAL, scheduler.getInterval());
+    }
+
+    public void testFastestRequestedInterval() {
+        assertTrue(scheduler.setRequestedInterval(200));
+        assertEquals(200, scheduler.getInterval());
+
+        assertTrue(scheduler.setRequestedInterval(0));
+        assertEquals(GpsScheduler.DEFAULT_INTERVAL, scheduler.getInterval());
+
+        scheduler.setRequestedInterval(1);
+        assertEquals(GpsScheduler.MIN_INTERVAL, scheduler.getInterval());
+    }
+
+    public void testBacksOffWhileStationary() {
+        long interval = scheduler.getInterval();
+
+        for (int i = 0; i < GpsScheduler.STATIONARY_FIXES * 20; i++) {
+            /* A few meters of jitter around the same point. */
+            fix((i % 3) * 2 * METER, 5, 0);
+
+            assertTrue(scheduler.getInterval() >= interval);
+            interval = scheduler.getInterval();
+        }
+
+        assertTrue(scheduler.isBackedOff());
+        assertEquals(GpsScheduler.MAX_STATIONARY_INTERVAL, scheduler.getInterval());
+    }
+
+    public void testStepsUpWhenMoving() {
+        for (int i = 0; i < GpsScheduler.STATIONARY_FIXES * 3; i++)
+            fix(0, 5, 0);
+        assertTrue(scheduler.isBackedOff());
+
+        assertTrue(fix(50 * METER, 5, 0));
+        assertFalse(scheduler.isBackedOff());
+        assertEquals(GpsScheduler.DEFAULT_INTERVAL, scheduler.getInterval());
+    }
+
+    public void testSpeedCountsAsMovement() {
+        for (int i = 0; i < GpsScheduler.STATIONARY_FIXES * 3; i++)
+            fix(0, 5, 0);
+        assertTrue(scheduler.isBackedOff());
+
+        fix(0, 5, 3);
+        assertFalse(scheduler.isBackedOff());
+    }
+
+    public void testInaccurateFixesAreNotMovement() {
+        for (int i = 0; i < GpsScheduler.STATIONARY_FIXES * 3; i++)
+            fix((i % 2) * 40 * METER, 50, 0);
+
+        assertTrue(scheduler.isBackedOff());
+    }
+
+    public void testNeverSlowerThanRequested() {
+        scheduler.setRequestedInterval(60000);
+
+        for (int i = 0; i < GpsScheduler.STATIONARY_FIXES * 10; i++)
+            fix(0, 5, 0);
+
+        assertEquals(60000, scheduler.getInterval());
+    }
+
+    public void testReset() {
+        for (int i = 0; i < GpsScheduler.STATIONARY_FIXES * 3; i++)
+            fix(0, 5, 0);
+
+        assertTrue(scheduler.reset());
+        assertEquals(GpsScheduler.DEFAULT_INTERVAL, scheduler.getInterval());
+    }
+
+    private boolean fix(double latitudeOffset, float accuracy, float speed) {
+        return scheduler.onFix(LATITUDE + latitudeOffset, LONGITUDE, accuracy, true, speed);
+    }
+}
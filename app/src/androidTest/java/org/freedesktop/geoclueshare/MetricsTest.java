@@ -0,0 +1,92 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the values reported by {@link Metrics}.
+ */
+public class MetricsTest extends TestCase {
+
+    public void testCounter() {
+        Metrics metrics = new Metrics();
+        Metrics.Counter counter = metrics.counter("sentences");
+
+        counter.increment();
+        counter.add(41);
+
+        assertEquals(42, counter.get());
+        assertEquals("sentences 42\n", metrics.toString());
+    }
+
+    public void testHistogramPercentiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getSum());
+        assertEquals(1000, histogram.getMax());
+
+        /* Power of two buckets, so a percentile is at most twice the real value. */
+        long p50 = histogram.getPercentile(0.5);
+        assertTrue(p50 >= 500 && p50 < 1000);
+        assertEquals(1000, histogram.getPercentile(0.99));
+        assertEquals(1000, histogram.getPercentile(1));
+    }
+
+    public void testEmptyHistogram() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+
+        assertEquals(0, histogram.getPercentile(0.5));
+
+        histogram.record(-5);
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    /**
+     * Every line read while metrics are being registered must pair a name with its own metric.
+     */
+    public void testReadWhileRegistering() throws InterruptedException {
+        final Metrics metrics = new Metrics();
+        Thread registering = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 2000; i++)
+                    metrics.counter("c" + i).add(i);
+            }
+        };
+        registering.start();
+
+        while (registering.isAlive()) {
+            for (String line : metrics.toString().split("\n")) {
+                if (line.length() == 0)
+                    continue;
+
+                String[] words = line.split(" ");
+                assertEquals(words[0], "c" + words[1]);
+            }
+        }
+        registering.join();
+    }
+
+    public void testGaugeAndDuplicateNames() {
+        Metrics metrics = new Metrics();
+        metrics.gauge("clients", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return 3;
+            }
+        });
+
+        assertEquals("clients 3\n", metrics.toString());
+
+        try {
+            metrics.counter("clients");
+            fail("Registered the same name twice");
+        } catch (IllegalArgumentException e) {
+            /* Expected. */
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.freedesktop.geoclueshare;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+
+/**
+ * Checks that the selector loop of {@link NetworkListener} stays idle between fixes.
+ */
+public class NetworkListenerTest extends TestCase {
+
+    private static final String GGA =
+            "$GPGGA,123519,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,*79";
+
+    private NetworkListener listener;
+    private Thread thread;
+    private Socket socket;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        listener = new NetworkListener(new Handler(Looper.getMainLooper()));
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listener.doInBackground();
+            }
+        });
+        thread.start();
+
+        socket = connect();
+        socket.setSoTimeout(5000);
+        waitForIdle();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        socket.close();
+        listener.cancel(true);
+        thread.interrupt();
+        thread.join(5000);
+        listener.onCancelled();
+
+        super.tearDown();
+    }
+
+    public void testNoWakeupsWithoutData() throws Exception {
+        long before = NetworkListener.getWakeups();
+        Thread.sleep(1000);
+
+        assertEquals(before, NetworkListener.getWakeups());
+    }
+
+    public void testWakeupsPerSentence() throws Exception {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream()));
+
+        for (int n = 0; n < 10; n++) {
+            long before = NetworkListener.getWakeups();
+
+            NetworkListener.sendData(GGA);
+            assertEquals(GGA, reader.readLine());
+            waitForIdle();
+
+            long wakeups = NetworkListener.getWakeups() - before;
+
+            /* One wakeup for the sentence, written right away, one more if the socket was full. */
+            assertTrue("Woke up " + wakeups + " times for one sentence", wakeups <= 2);
+        }
+    }
+
+    private static Socket connect() throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("127.0.0.1", 10110);
+            } catch (IOException e) {
+                if (attempt == 100)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void waitForIdle() throws InterruptedException {
+        long wakeups;
+
+        do {
+            wakeups = NetworkListener.getWakeups();
+            Thread.sleep(200);
+        } while (wakeups != NetworkListener.getWakeups());
+    }
+}
@@ -0,0 +1,404 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a {@link NmeaBroadcastServer} on the loopback interface with a real client, checking when
+ * the sentences of a client that asked for batches are written, that fixes and estimated fixes
+ * are logged, which fix interval is requested, and that idle connections to the stats port are
+ * closed.
+ */
+public class NmeaBroadcastServerTest extends TestCase {
+
+    private static final String GGA =
+            "$GPGGA,123519,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,*79";
+    private static final long TIME = 1435600519000L;
+    private static final String[] TALKERS = {"GP", "GL", "GA", "GB"};
+
+    private static final NmeaBroadcastServer.Listener LISTENER =
+            new NmeaBroadcastServer.Listener() {
+                @Override
+                public void onClientConnected(ClientConnection connection, int clients) {
+                }
+
+                @Override
+                public void onClientDisconnected(ClientConnection connection, int clients) {
+                }
+
+                @Override
+                public void onRequestedIntervalChanged(long interval) {
+                }
+            };
+
+    private NmeaBroadcastServer server;
+    private Thread thread;
+    private Socket socket;
+
+    @Override
+    protected void setUp() throws IOException {
+        server = new NmeaBroadcastServer(0, LISTENER);
+        server.setQueueDepth(64);
+        server.setHighWaterMark(1024 * 1024);
+        server.open();
+
+        thread = new Thread(server, "server");
+        thread.start();
+
+        socket = new Socket("127.0.0.1", server.getLocalPort());
+        socket.setSoTimeout(100);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        socket.close();
+        server.close();
+        thread.join();
+    }
+
+    public void testBatchIsHeldUntilDue() throws Exception {
+        request(NmeaBroadcastServer.REQUEST_BATCH + " 2000", 2000);
+        skipToStartOfBatch(2000);
+
+        publish(GGA);
+        assertEquals(0, receive(500).length());
+
+        /* The batch is due at the next multiple of the interval. */
+        assertEquals(GGA + "\r\n", receive(GGA.length() + 2, 2500));
+    }
+
+    public void testCancelledBatchIsWrittenAtOnce() throws Exception {
+        request(NmeaBroadcastServer.REQUEST_BATCH + " 60000", 60000);
+        skipToStartOfBatch(60000);
+
+        publish(GGA);
+        assertEquals(0, receive(300).length());
+
+        request(NmeaBroadcastServer.REQUEST_BATCH + " 0", 0);
+        assertEquals(GGA + "\r\n", receive(GGA.length() + 2, 1000));
+    }
+
+    /**
+     * Sentences long enough for a few of them to use a quarter of the ring of the worker must be
+     * written before they are overwritten, long before the batch is due.
+     */
+    public void testBatchIsWrittenBeforeItIsOverwritten() throws Exception {
+        request(NmeaBroadcastServer.REQUEST_BATCH + " 60000", 60000);
+        skipToStartOfBatch(60000);
+
+        StringBuilder expected = new StringBuilder();
+        for (String talker : TALKERS) {
+            String sentence = longSentence(talker, 6000);
+            server.publish(sentence, sentence.length(), NmeaScanner.TYPE_GGA);
+            expected.append(sentence).append("\r\n");
+        }
+
+        assertEquals(expected.toString(), receive(expected.length(), 3000));
+        assertEquals(0, server.getClients().get(0).getSentencesDropped());
+    }
+
+    public void testFixesAndEstimatesAreLogged() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                "NmeaBroadcastServerTest-" + System.nanoTime());
+        TrackLog log = new TrackLog(directory, 1000, 2);
+        log.open();
+
+        NmeaBroadcastServer logged = new NmeaBroadcastServer(0, LISTENER);
+        logged.setMinFixInterval(1000);
+        logged.setTrackLog(log);
+        logged.open();
+        Thread loggedThread = new Thread(logged, "logged");
+        loggedThread.start();
+
+        Socket client = new Socket("127.0.0.1", logged.getLocalPort());
+        Socket other = new Socket("127.0.0.1", logged.getLocalPort());
+        try {
+            for (Socket socket : new Socket[]{client, other})
+                socket.getOutputStream().write((NmeaBroadcastServer.REQUEST_INTERVAL + " 200\n")
+                        .getBytes("US-ASCII"));
+            for (int i = 0; i < 100 && !hasInterval(logged, 200); i++)
+                Thread.sleep(10);
+
+            logged.publish(GGA, GGA.length(), NmeaScanner.TYPE_GGA);
+            logged.getDeadReckoner().add(NmeaBroadcastServer.now(), TIME, 48.1173, 11.516666667,
+                    1.5, 4.0, false, 0, true, 10, 90);
+            logged.addFix(TIME, 48.1173, 11.516666667, 1.5, 4.0, false, 0, FixCodec.QUALITY_GPS);
+
+            /* The clients get the fix, then the same estimates with their own fix quality. */
+            client.setSoTimeout(2000);
+            other.setSoTimeout(2000);
+            InputStream input = client.getInputStream();
+            assertEquals(GGA, readLine(input));
+            String estimate = readLine(input);
+            assertTrue(estimate.split(",")[1].startsWith("175519."));
+            assertEquals(String.valueOf(FixCodec.QUALITY_ESTIMATED), estimate.split(",")[6]);
+
+            input = other.getInputStream();
+            assertEquals(GGA, readLine(input));
+            assertEquals(estimate, readLine(input));
+        } finally {
+            client.close();
+            other.close();
+            logged.close();
+            loggedThread.join();
+        }
+
+        TrackLog.Reader reader = new TrackLog.Reader(directory);
+        assertTrue(reader.next());
+        assertEquals(TIME, reader.getTime());
+        assertEquals(2, reader.getClients());
+        assertEquals(FixCodec.QUALITY_GPS, reader.getQuality());
+        assertTrue(reader.next());
+        assertEquals(2, reader.getClients());
+        assertTrue(reader.getTime() > TIME);
+        assertEquals(FixCodec.QUALITY_ESTIMATED, reader.getQuality());
+
+        /* Every estimate is logged once. */
+        long time = reader.getTime();
+        while (reader.next()) {
+            assertTrue(reader.getTime() > time);
+            time = reader.getTime();
+        }
+
+        for (File file : directory.listFiles())
+            assertTrue(file.delete());
+        assertTrue(directory.delete());
+    }
+
+    /**
+     * A client that never asks for an interval, like Geoclue, still wants the default one, and
+     * isn't slowed down by a client that asks for a longer one.
+     */
+    public void testSilentClientKeepsDefaultInterval() throws Exception {
+        final AtomicLong reported = new AtomicLong(-1);
+        NmeaBroadcastServer intervals = new NmeaBroadcastServer(0,
+                new NmeaBroadcastServer.Listener() {
+                    @Override
+                    public void onClientConnected(ClientConnection connection, int clients) {
+                    }
+
+                    @Override
+                    public void onClientDisconnected(ClientConnection connection, int clients) {
+                    }
+
+                    @Override
+                    public void onRequestedIntervalChanged(long interval) {
+                        reported.set(interval);
+                    }
+                });
+        intervals.open();
+        Thread intervalsThread = new Thread(intervals, "intervals");
+        intervalsThread.start();
+
+        Socket silent = new Socket("127.0.0.1", intervals.getLocalPort());
+        Socket slow = new Socket("127.0.0.1", intervals.getLocalPort());
+        try {
+            slow.getOutputStream().write((NmeaBroadcastServer.REQUEST_INTERVAL + " 16000\n")
+                    .getBytes("US-ASCII"));
+            for (int i = 0; i < 100 && !hasRequested(intervals, 16000); i++)
+                Thread.sleep(10);
+            assertTrue(hasRequested(intervals, 16000));
+            assertEquals(GpsScheduler.DEFAULT_INTERVAL, reported.get());
+
+            /* Once the silent client is gone, the slow one has its way. */
+            silent.close();
+            for (int i = 0; i < 100 && reported.get() != 16000; i++)
+                Thread.sleep(10);
+            assertEquals(16000, reported.get());
+        } finally {
+            silent.close();
+            slow.close();
+            intervals.close();
+            intervalsThread.join();
+        }
+    }
+
+    /**
+     * A client that reads slower than the sentences come, so that its queue is never empty for
+     * longer than the write timeout, isn't evicted as long as it takes some of it.
+     */
+    public void testSlowReaderIsNotEvicted() throws Exception {
+        NmeaBroadcastServer slow = new NmeaBroadcastServer(0, LISTENER);
+        slow.setQueueDepth(1024);
+        slow.setHighWaterMark(1024 * 1024);
+        slow.setSendBufferSize(4096);
+        slow.setWriteTimeout(200);
+        slow.open();
+        Thread slowThread = new Thread(slow, "slow");
+        slowThread.start();
+
+        Socket reader = new Socket();
+        reader.setReceiveBufferSize(4096);
+        reader.connect(new InetSocketAddress("127.0.0.1", slow.getLocalPort()));
+        try {
+            for (int i = 0; i < 100 && slow.getClientCount() == 0; i++)
+                Thread.sleep(10);
+
+            /* 100 kB/s for 1.2 s, read at 80 kB/s at most. */
+            String sentence = longSentence("GP", 1000);
+            InputStream input = reader.getInputStream();
+            byte[] buffer = new byte[800];
+            int expected = 0;
+            int received = 0;
+            long end = System.currentTimeMillis() + 5000;
+
+            reader.setSoTimeout(100);
+            for (int i = 0; i < 120 || received < expected; i++) {
+                if (i < 120) {
+                    slow.publish(sentence, sentence.length(), NmeaScanner.TYPE_GGA);
+                    expected += sentence.length() + 2;
+                }
+
+                Thread.sleep(10);
+                try {
+                    int n = input.read(buffer);
+                    assertTrue("Evicted", n != -1);
+                    received += n;
+                } catch (SocketTimeoutException e) {
+                    /* Nothing yet. */
+                }
+                assertTrue("Received " + received + " of " + expected,
+                        System.currentTimeMillis() < end);
+            }
+
+            assertEquals(expected, received);
+            assertEquals(1, slow.getClientCount());
+        } finally {
+            reader.close();
+            slow.close();
+            slowThread.join();
+        }
+    }
+
+    public void testIdleStatsConnectionIsClosed() throws Exception {
+        ServerSocket free = new ServerSocket(0);
+        int statsPort = free.getLocalPort();
+        free.close();
+
+        NmeaBroadcastServer stats = new NmeaBroadcastServer(0, LISTENER);
+        stats.setStatsPort(statsPort);
+        stats.setWriteTimeout(200);
+        stats.open();
+        Thread statsThread = new Thread(stats, "stats");
+        statsThread.start();
+
+        Socket idle = new Socket("127.0.0.1", statsPort);
+        try {
+            /* It never sends a request, so the server gives up on it. */
+            idle.setSoTimeout(2000);
+            assertEquals(-1, idle.getInputStream().read());
+        } finally {
+            idle.close();
+            stats.close();
+            statsThread.join();
+        }
+    }
+
+    private void request(String line, long batchInterval) throws Exception {
+        OutputStream output = socket.getOutputStream();
+        output.write((line + "\n").getBytes("US-ASCII"));
+        output.flush();
+
+        for (int i = 0; i < 100; i++) {
+            if (server.getClientCount() == 1
+                    && server.getClients().get(0).getBatchInterval() == batchInterval)
+                return;
+            Thread.sleep(10);
+        }
+        fail("Request not handled: " + line);
+    }
+
+    private static boolean hasInterval(NmeaBroadcastServer server, long interval) {
+        if (server.getClientCount() < 2)
+            return false;
+
+        for (ClientConnection client : server.getClients()) {
+            if (client.getRequestedInterval() != interval)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether two clients are connected and one of them asked for an interval.
+     */
+    private static boolean hasRequested(NmeaBroadcastServer server, long interval) {
+        if (server.getClientCount() < 2)
+            return false;
+
+        for (ClientConnection client : server.getClients()) {
+            if (client.getRequestedInterval() == interval)
+                return true;
+        }
+        return false;
+    }
+
+    private void publish(String sentence) {
+        server.publish(sentence, sentence.length(), NmeaScanner.TYPE_GGA);
+    }
+
+    /**
+     * Waits until a batch that starts now would be due in more than a second.
+     */
+    private static void skipToStartOfBatch(long interval) throws InterruptedException {
+        long now = System.nanoTime() / 1000000;
+        long due = (now / interval + 1) * interval;
+
+        if (due - now < 1000)
+            Thread.sleep(due - now + 10);
+    }
+
+    private String receive(long time) throws IOException {
+        return receive(Integer.MAX_VALUE, time);
+    }
+
+    /**
+     * @return what was received until {@code length} bytes were or the time ran out.
+     */
+    private String receive(int length, long time) throws IOException {
+        InputStream input = socket.getInputStream();
+        StringBuilder received = new StringBuilder();
+        byte[] buffer = new byte[4096];
+        long end = System.currentTimeMillis() + time;
+
+        while (received.length() < length && System.currentTimeMillis() < end) {
+            try {
+                int n = input.read(buffer);
+                if (n == -1)
+                    break;
+                received.append(new String(buffer, 0, n, "US-ASCII"));
+            } catch (SocketTimeoutException e) {
+                /* Nothing yet. */
+            }
+        }
+
+        return received.toString();
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+
+        while ((c = input.read()) != '\n' && c != -1)
+            line.append((char) c);
+
+        return line.toString().trim();
+    }
+
+    private static String longSentence(String talker, int length) {
+        StringBuilder builder = new StringBuilder("$").append(talker).append("GGA,");
+        while (builder.length() < length)
+            builder.append('0');
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,112 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replays small logs with a {@link NmeaFileSource}, checking the sentences and their pace.
+ */
+public class NmeaFileSourceTest extends TestCase {
+
+    private File file;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    private final FixSource.Listener listener = new FixSource.Listener() {
+        @Override
+        public void onNmeaReceived(long timestamp, String nmea) {
+            received.add(nmea);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("NmeaFileSourceTest", ".nmea");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        assertTrue(file.delete());
+        super.tearDown();
+    }
+
+    public void testMaxSpeed() throws Exception {
+        write("$GPGGA,235959.50,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,",
+                "",
+                "$GPGSA,A,3,04,05,,,,,,,,,,,2.5,1.3,2.1",
+                "$GPGGA,000000.50,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,",
+                "garbage");
+
+        NmeaFileSource source = new NmeaFileSource(file, NmeaFileSource.MAX_SPEED, false);
+        source.start(listener);
+        source.join();
+
+        assertNull(source.getError());
+        assertEquals(4, source.getSentences());
+        assertEquals(4, received.size());
+        assertEquals("$GPGSA,A,3,04,05,,,,,,,,,,,2.5,1.3,2.1", received.get(1));
+        assertEquals("garbage", received.get(3));
+    }
+
+    public void testPace() throws Exception {
+        /* Three epochs half a second apart, across midnight, replayed 5 times faster. */
+        write("$GPRMC,235959.50,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W",
+                "$GPGGA,235959.50,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,",
+                "$GPRMC,000000.00,A,4807.038,N,01131.000,E,022.4,084.4,240394,003.1,W",
+                "$GPRMC,000000.50,A,4807.038,N,01131.000,E,022.4,084.4,240394,003.1,W");
+
+        long start = System.nanoTime();
+        NmeaFileSource source = new NmeaFileSource(file, 5, false);
+        source.start(listener);
+        source.join();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(4, received.size());
+        assertTrue("Replayed in " + elapsed + " ms", elapsed >= 190 && elapsed < 2000);
+    }
+
+    public void testLongGapIsSkipped() throws Exception {
+        write("$GPGGA,120000,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,",
+                "$GPGGA,130000,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,");
+
+        long start = System.nanoTime();
+        NmeaFileSource source = new NmeaFileSource(file, 1, false);
+        source.start(listener);
+        source.join();
+
+        assertEquals(2, received.size());
+        assertTrue((System.nanoTime() - start) / 1000000 < 2000);
+    }
+
+    public void testLoopUntilStopped() throws Exception {
+        write("$GPGGA,120000,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,",
+                "$GPGGA,120001,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,");
+
+        NmeaFileSource source = new NmeaFileSource(file, 1, true);
+        source.start(listener);
+        while (received.size() < 3)
+            Thread.sleep(10);
+        source.stop();
+
+        int count = received.size();
+        Thread.sleep(50);
+        assertEquals(count, received.size());
+        assertEquals(count, source.getSentences());
+        assertTrue(received.get(2).startsWith("$GPGGA,120000"));
+    }
+
+    private void write(String... lines) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            for (String line : lines)
+                writer.write(line + "\r\n");
+        } finally {
+            writer.close();
+        }
+    }
+}
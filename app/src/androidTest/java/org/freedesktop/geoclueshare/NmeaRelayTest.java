@@ -0,0 +1,108 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks which sentences a {@link NmeaRelay} forwards, and that GGA sentences without a valid
+ * time are replaced by the fallback fix.
+ */
+public class NmeaRelayTest extends TestCase {
+
+    private static final String GGA =
+            "$GPGGA,123519,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,*5A";
+    private static final String GGA_NO_TIME =
+            "$GPGGA,,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,";
+    private static final String GGA_NO_FIX =
+            "$GPGGA,123520,,,,,0,00,99.9,,M,,M,,";
+    private static final String RMC =
+            "$GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W";
+
+    private final List<String> sent = new ArrayList<String>();
+    private final List<Integer> types = new ArrayList<Integer>();
+    private int subscribedTypes = NmeaScanner.TYPE_GGA;
+
+    private final NmeaRelay relay = new NmeaRelay(new NmeaRelay.Output() {
+        @Override
+        public int getSubscribedTypes() {
+            return subscribedTypes;
+        }
+
+        @Override
+        public void publish(CharSequence data, int length, int type) {
+            sent.add(data.subSequence(0, length).toString());
+            types.add(type);
+        }
+
+        @Override
+        public void publish(byte[] data, int length, int type) {
+            sent.add(new String(data, 0, length));
+            types.add(type);
+        }
+    });
+
+    public void testSubscribedTypes() {
+        relay.onNmeaReceived(0, RMC);
+        assertTrue(sent.isEmpty());
+
+        subscribedTypes |= NmeaScanner.TYPE_RMC;
+        relay.onNmeaReceived(0, RMC);
+        relay.onNmeaReceived(0, GGA);
+
+        assertEquals(2, sent.size());
+        assertEquals(RMC, sent.get(0));
+        assertEquals(NmeaScanner.TYPE_RMC, (int) types.get(0));
+        assertEquals(GGA, sent.get(1));
+        assertEquals(NmeaScanner.TYPE_GGA, (int) types.get(1));
+        assertEquals(2, relay.getRelayed());
+    }
+
+    public void testOtherTalkersGgaIsDropped() {
+        relay.onNmeaReceived(0, "$GNGGA,123519,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,");
+        assertTrue(sent.isEmpty());
+    }
+
+    public void testFallback() {
+        /* Nothing to replace it with yet. */
+        relay.onNmeaReceived(0, GGA_NO_TIME);
+        assertTrue(sent.isEmpty());
+
+        relay.setFallback(1435600519000L, 48.1173, 11.516666667, 0.9, true, 545.4,
+                FixCodec.QUALITY_GPS);
+        relay.onNmeaReceived(0, GGA_NO_TIME);
+        relay.onNmeaReceived(0, GGA_NO_TIME);
+
+        GgaEncoder expected = new GgaEncoder();
+        expected.encode(1435600519000L, 48.1173, 11.516666667, 0.9, true, 545.4,
+                FixCodec.QUALITY_GPS);
+        assertEquals(1, sent.size());
+        assertEquals(expected.toString(), sent.get(0));
+
+        /* A valid sentence supersedes the fallback. */
+        relay.setFallback(1435600520000L, 48.1173, 11.516666667, 0.9, true, 545.4,
+                FixCodec.QUALITY_GPS);
+        relay.onNmeaReceived(0, GGA);
+        relay.onNmeaReceived(0, GGA_NO_TIME);
+        assertEquals(2, sent.size());
+        assertEquals(GGA, sent.get(1));
+        assertEquals(5, relay.getGgaReceived());
+    }
+
+    public void testNoFixIsReplaced() {
+        relay.onNmeaReceived(0, GGA_NO_FIX);
+        assertTrue(sent.isEmpty());
+
+        relay.setFallback(1435600520000L, 48.1173, 11.516666667, 12.5, false, 0,
+                FixCodec.QUALITY_ESTIMATED);
+        relay.onNmeaReceived(0, GGA_NO_FIX);
+
+        /* Without the quality of a GPS fix, as it isn't one. */
+        GgaEncoder expected = new GgaEncoder();
+        expected.encode(1435600520000L, 48.1173, 11.516666667, 12.5, false, 0,
+                FixCodec.QUALITY_ESTIMATED);
+        assertEquals(1, sent.size());
+        assertEquals(expected.toString(), sent.get(0));
+    }
+}
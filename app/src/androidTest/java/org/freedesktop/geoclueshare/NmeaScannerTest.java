@@ -0,0 +1,115 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how {@link NmeaScanner} classifies sentences, verifies their checksum and finds their
+ * fields.
+ */
+public class NmeaScannerTest extends TestCase {
+
+    private static final String GGA =
+            "$GPGGA,123519,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,*5A";
+    private static final String RMC =
+            "$GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A";
+    private static final int ALL_TYPES = NmeaScanner.TYPE_GGA | NmeaScanner.TYPE_RMC
+            | NmeaScanner.TYPE_GSA | NmeaScanner.TYPE_GSV | NmeaScanner.TYPE_VTG;
+
+    private final NmeaScanner scanner = new NmeaScanner();
+
+    public void testTypeMask() {
+        assertEquals(NmeaScanner.TYPE_GGA, scanner.scan(GGA, NmeaScanner.TYPE_GGA));
+        assertEquals(NmeaScanner.TYPE_GGA, scanner.scan(GGA, ALL_TYPES));
+        assertEquals(NmeaScanner.TYPE_NONE, scanner.scan(GGA, NmeaScanner.TYPE_RMC));
+        assertEquals(NmeaScanner.TYPE_RMC, scanner.scan(RMC, ALL_TYPES));
+        assertEquals(NmeaScanner.TYPE_NONE, scanner.scan(RMC, NmeaScanner.TYPE_GGA));
+
+        assertEquals(NmeaScanner.TYPE_GSA, scanner.scan("$GNGSA,A,3,01,02,,,,,,,,,,,1.8,1.0,1.5",
+                ALL_TYPES));
+        assertEquals(NmeaScanner.TYPE_GSV, scanner.scan("$GPGSV,1,1,01,01,40,083,46", ALL_TYPES));
+        assertEquals(NmeaScanner.TYPE_VTG, scanner.scan("$GPVTG,054.7,T,,M,005.5,N,010.2,K",
+                ALL_TYPES));
+        assertEquals(NmeaScanner.TYPE_NONE, scanner.scan("$GPZDA,201530.00,04,07,2002,00,00",
+                -1));
+    }
+
+    public void testTalker() {
+        scanner.scan(GGA, ALL_TYPES);
+        assertEquals(NmeaScanner.TALKER_GP, scanner.getTalker());
+
+        scanner.scan("$GLGGA,123519,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,", ALL_TYPES);
+        assertEquals(('G' << 8) | 'L', scanner.getTalker());
+    }
+
+    public void testMalformed() {
+        assertEquals(NmeaScanner.TYPE_NONE, scanner.scan("", ALL_TYPES));
+        assertEquals(NmeaScanner.TYPE_NONE, scanner.scan("$GPGGA", ALL_TYPES));
+        assertEquals(NmeaScanner.TYPE_NONE, scanner.scan("GPGGA,123519", ALL_TYPES));
+        assertEquals(NmeaScanner.TYPE_NONE, scanner.scan("$GPGGA;123519", ALL_TYPES));
+    }
+
+    public void testChecksum() {
+        assertEquals(NmeaScanner.TYPE_GGA, scanner.scan(GGA + "\r\n", ALL_TYPES));
+        assertEquals(GGA.length(), scanner.getLength());
+
+        /* Wrong, lower case, truncated and missing checksums. */
+        assertEquals(NmeaScanner.TYPE_NONE, scanner.scan(GGA.replace("*5A", "*5B"), ALL_TYPES));
+        assertEquals(NmeaScanner.TYPE_NONE,
+                scanner.scan(GGA.replace("4807.038", "4807.039"), ALL_TYPES));
+        assertEquals(NmeaScanner.TYPE_RMC, scanner.scan(RMC.replace("*6A", "*6a"), ALL_TYPES));
+        assertEquals(NmeaScanner.TYPE_NONE, scanner.scan(GGA.replace("*5A", "*5"), ALL_TYPES));
+        assertEquals(NmeaScanner.TYPE_NONE, scanner.scan(GGA.replace("*5A", "*5G"), ALL_TYPES));
+
+        String unchecked = GGA.substring(0, GGA.indexOf('*'));
+        assertEquals(NmeaScanner.TYPE_GGA, scanner.scan(unchecked + "\r\n", ALL_TYPES));
+        assertEquals(unchecked.length(), scanner.getLength());
+    }
+
+    public void testFieldOffsets() {
+        scanner.scan(GGA, ALL_TYPES);
+        assertEquals(15, scanner.getFieldCount());
+
+        /* The address field, without the '$'. */
+        assertEquals("GPGGA", field(GGA, 0));
+        assertEquals("123519", field(GGA, 1));
+        assertEquals("4807.038", field(GGA, 2));
+        assertEquals("1", field(GGA, 6));
+        assertEquals("", field(GGA, 7));
+        assertEquals("545.4", field(GGA, 9));
+
+        /* The last field ends at the checksum, or at the line terminator without one. */
+        assertEquals("", field(GGA, 14));
+        String rmc = RMC.substring(0, RMC.indexOf('*')) + "\r\n";
+        scanner.scan(rmc, ALL_TYPES);
+        assertEquals("W", field(rmc, scanner.getFieldCount() - 1));
+    }
+
+    public void testTooManyFields() {
+        StringBuilder gsv = new StringBuilder("$GPGSV");
+        for (int i = 0; i < NmeaScanner.MAX_FIELDS + 10; i++)
+            gsv.append(',').append(i);
+
+        assertEquals(NmeaScanner.TYPE_GSV, scanner.scan(gsv, ALL_TYPES));
+        assertEquals(NmeaScanner.MAX_FIELDS, scanner.getFieldCount());
+        assertEquals(String.valueOf(NmeaScanner.MAX_FIELDS - 2),
+                field(gsv.toString(), NmeaScanner.MAX_FIELDS - 1));
+    }
+
+    public void testValidTime() {
+        scanner.scan(GGA, ALL_TYPES);
+        assertTrue(scanner.hasValidTime());
+
+        scanner.scan("$GPGGA,,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,", ALL_TYPES);
+        assertFalse(scanner.hasValidTime());
+
+        scanner.scan("$GPGGA,12351a,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,", ALL_TYPES);
+        assertFalse(scanner.hasValidTime());
+
+        scanner.scan("$GPGGA,12351,4807.038,N,01131.000,E,1,,0.9,545.4,M,,M,,", ALL_TYPES);
+        assertFalse(scanner.hasValidTime());
+    }
+
+    private String field(String sentence, int index) {
+        return sentence.substring(scanner.fieldStart(index), scanner.fieldEnd(index));
+    }
+}
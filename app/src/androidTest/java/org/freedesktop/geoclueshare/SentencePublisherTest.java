@@ -0,0 +1,171 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that {@link SentencePublisher} only hands out the latest sentences, whole and once.
+ */
+public class SentencePublisherTest extends TestCase {
+
+    private SentencePublisher publisher;
+    private SentencePublisher.Cursor cursor;
+    private final List<String> drained = new ArrayList<String>();
+    private final SentencePublisher.Sink sink = new SentencePublisher.Sink() {
+        @Override
+        public void onSentence(byte[] data, int offset, int length, int type, long time) {
+            drained.add(new String(data, offset, length));
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        publisher = new SentencePublisher();
+        cursor = publisher.newCursor();
+    }
+
+    public void testKeepsLatestOfEachType() {
+        publisher.publish("$GPGGA,1", 8, NmeaScanner.TYPE_GGA);
+        publisher.publish("$GPRMC,1", 8, NmeaScanner.TYPE_RMC);
+        publisher.publish("$GPGGA,2", 8, NmeaScanner.TYPE_GGA);
+
+        assertEquals(2, publisher.drain(cursor, sink));
+        assertEquals("$GPRMC,1", drained.get(0));
+        assertEquals("$GPGGA,2", drained.get(1));
+
+        assertEquals(0, publisher.drain(cursor, sink));
+    }
+
+    public void testTalkersDontReplaceEachOther() {
+        publisher.publish("$GPGSA,1", 8, NmeaScanner.TYPE_GSA);
+        publisher.publish("$GLGSA,1", 8, NmeaScanner.TYPE_GSA);
+
+        assertEquals(2, publisher.drain(cursor, sink));
+    }
+
+    public void testGroupIsSentOnce() {
+        publisher.publish("$GPGSV,3,1", 10, NmeaScanner.TYPE_GSV);
+        publisher.publish("$GPGSV,3,2", 10, NmeaScanner.TYPE_GSV);
+        assertEquals(2, publisher.drain(cursor, sink));
+
+        publisher.publish("$GPGSV,3,3", 10, NmeaScanner.TYPE_GSV);
+        assertEquals(1, publisher.drain(cursor, sink));
+        assertEquals("$GPGSV,3,3", drained.get(2));
+
+        /* A sentence of another type ends the run, the next GSV starts a new group. */
+        publisher.publish("$GPGGA,1", 8, NmeaScanner.TYPE_GGA);
+        publisher.publish("$GPGSV,1,1", 10, NmeaScanner.TYPE_GSV);
+        assertEquals(2, publisher.drain(cursor, sink));
+        assertEquals("$GPGSV,1,1", drained.get(4));
+    }
+
+    public void testFirstPartStartsNewGroup() {
+        publisher.publish("$GPGSV,2,1,08", 13, NmeaScanner.TYPE_GSV);
+        publisher.publish("$GPGSV,2,2,08", 13, NmeaScanner.TYPE_GSV);
+        publisher.publish("$GPGSV,2,1,09", 13, NmeaScanner.TYPE_GSV);
+
+        /* The message of the next epoch replaces the whole previous one. */
+        assertEquals(1, publisher.drain(cursor, sink));
+        assertEquals("$GPGSV,2,1,09", drained.get(0));
+
+        publisher.publish("$GPGSV,2,2,09", 13, NmeaScanner.TYPE_GSV);
+        assertEquals(1, publisher.drain(cursor, sink));
+        assertEquals("$GPGSV,2,2,09", drained.get(1));
+    }
+
+    public void testRunIsCapped() {
+        for (int i = 0; i < 10 * SentencePublisher.MAX_RUN + 3; i++) {
+            String sentence = "$GNGSA,A,3," + i;
+            publisher.publish(sentence, sentence.length(), NmeaScanner.TYPE_GSA);
+        }
+
+        /* Only the last group is left, with what was published since the last split. */
+        assertEquals(3, publisher.drain(cursor, sink));
+        assertEquals("$GNGSA,A,3," + (10 * SentencePublisher.MAX_RUN + 2), drained.get(2));
+    }
+
+    public void testNewCursorSkipsOldSentences() {
+        publisher.publish("$GPGGA,1", 8, NmeaScanner.TYPE_GGA);
+
+        assertEquals(0, publisher.drain(publisher.newCursor(), sink));
+        assertEquals(1, publisher.drain(cursor, sink));
+    }
+
+    public void testEncodedSentence() {
+        byte[] data = "$GPGGA,1xxxx".getBytes();
+        publisher.publish(data, 8, NmeaScanner.TYPE_GGA);
+        data[7] = '2';
+
+        publisher.drain(cursor, sink);
+        assertEquals("$GPGGA,1", drained.get(0));
+    }
+
+    /**
+     * Two producer threads publish runs of GSA sentences to the same slot, like the GPS callbacks
+     * and a replayed log can. The group left must be whole and no longer than a run may be.
+     */
+    public void testConcurrentPublishers() throws InterruptedException {
+        Thread[] producers = new Thread[2];
+
+        for (int p = 0; p < producers.length; p++) {
+            final String prefix = "$GNGSA," + p + ",";
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        String sentence = prefix + i;
+                        publisher.publish(sentence, sentence.length(), NmeaScanner.TYPE_GSA);
+                    }
+                }
+            };
+            producers[p].start();
+        }
+
+        for (Thread producer : producers)
+            producer.join();
+
+        int count = publisher.drain(cursor, sink);
+        assertTrue(count > 0 && count <= SentencePublisher.MAX_RUN);
+        for (String sentence : drained)
+            assertTrue(sentence, sentence.matches("\\$GNGSA,[01],\\d+"));
+    }
+
+    /**
+     * A producer thread publishes numbered sentences as fast as it can. The consumer must see them
+     * whole and in increasing order, without any number twice.
+     */
+    public void testConcurrentPublishing() throws InterruptedException {
+        final int count = 200000;
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= count; i++) {
+                    String sentence = "$GPGGA," + i + "," + i;
+                    publisher.publish(sentence, sentence.length(), NmeaScanner.TYPE_GGA);
+                }
+            }
+        };
+        producer.start();
+
+        int last = 0;
+        while (last < count) {
+            drained.clear();
+            publisher.drain(cursor, sink);
+
+            for (String sentence : drained) {
+                String[] fields = sentence.split(",");
+                assertEquals(fields[1], fields[2]);
+
+                int number = Integer.parseInt(fields[1]);
+                assertTrue(number > last);
+                last = number;
+            }
+        }
+
+        producer.join();
+    }
+}
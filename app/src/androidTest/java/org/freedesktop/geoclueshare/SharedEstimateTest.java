@@ -0,0 +1,72 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Checks that {@link SharedEstimate} numbers every estimate once and logs it once, with the
+ * clients of all the workers it was queued to.
+ */
+public class SharedEstimateTest extends TestCase {
+
+    private static final long TIME = 1435600519000L;
+    private static final double[] FIX = {48.1173, 11.516666667, 1.5, 4.0, Double.NaN};
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = new File(System.getProperty("java.io.tmpdir"),
+                "SharedEstimateTest-" + System.nanoTime());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                assertTrue(file.delete());
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testSequenceNumbers() {
+        FixHistory history = new FixHistory(4);
+        SharedEstimate estimates = new SharedEstimate(history, null);
+
+        int sequence = estimates.number(1000, TIME, FIX);
+        assertEquals(sequence, estimates.number(1000, TIME, FIX));
+        assertEquals(sequence + 1, estimates.number(1200, TIME + 200, FIX));
+        assertEquals(sequence + 2, history.nextSequence());
+    }
+
+    public void testLoggedOnce() throws IOException {
+        TrackLog log = new TrackLog(directory, 100, 2);
+        log.open();
+        SharedEstimate estimates = new SharedEstimate(new FixHistory(4), log);
+
+        /* Two workers queue the first estimate, nobody gets the second one. */
+        estimates.number(1000, TIME, FIX);
+        estimates.addClients(1000, 2);
+        estimates.number(1000, TIME, FIX);
+        estimates.addClients(1000, 3);
+        estimates.number(1200, TIME + 200, FIX);
+        estimates.log();
+        estimates.log();
+        estimates.addClients(1000, 1);
+        log.flush();
+        log.close();
+
+        TrackLog.Reader reader = new TrackLog.Reader(directory);
+        assertTrue(reader.next());
+        assertEquals(TIME, reader.getTime());
+        assertEquals(5, reader.getClients());
+        assertFalse(reader.hasAltitude());
+        assertEquals(FixCodec.QUALITY_ESTIMATED, reader.getQuality());
+        assertFalse(reader.next());
+    }
+}
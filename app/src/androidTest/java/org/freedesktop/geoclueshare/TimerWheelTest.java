@@ -0,0 +1,102 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives a {@link TimerWheel} with a fake clock, checking that timers expire on the tick of their
+ * deadline and never before it.
+ */
+public class TimerWheelTest extends TestCase {
+
+    private final TimerWheel wheel = new TimerWheel(100, 8, 1000);
+    private final List<Object> expired = new ArrayList<Object>();
+    private final TimerWheel.Callback callback = new TimerWheel.Callback() {
+        @Override
+        public void onExpired(TimerWheel.Timer timer) {
+            assertFalse(timer.isScheduled());
+            expired.add(timer.attachment());
+        }
+    };
+
+    public void testExpiresOnDeadline() {
+        TimerWheel.Timer a = new TimerWheel.Timer("a");
+        TimerWheel.Timer b = new TimerWheel.Timer("b");
+        wheel.schedule(a, 1250);
+        wheel.schedule(b, 1400);
+
+        assertEquals(2, wheel.size());
+        assertEquals(300, wheel.getTimeout(1000));
+
+        /* Deadlines expire on the first tick at or after them. */
+        assertEquals(0, wheel.expire(1299, callback));
+        assertEquals(1, wheel.expire(1300, callback));
+        assertEquals("a", expired.get(0));
+        assertEquals(100, wheel.getTimeout(1300));
+        assertEquals(0, wheel.expire(1399, callback));
+        assertEquals(1, wheel.expire(1400, callback));
+        assertEquals("b", expired.get(1));
+
+        assertEquals(0, wheel.size());
+        assertEquals(0, wheel.getTimeout(1400));
+    }
+
+    public void testCancelAndReschedule() {
+        TimerWheel.Timer a = new TimerWheel.Timer("a");
+        TimerWheel.Timer b = new TimerWheel.Timer("b");
+        TimerWheel.Timer c = new TimerWheel.Timer("c");
+        wheel.schedule(a, 1200);
+        wheel.schedule(b, 1200);
+        wheel.schedule(c, 1200);
+
+        wheel.cancel(b);
+        wheel.cancel(b);
+        wheel.schedule(c, 1500);
+        assertEquals(2, wheel.size());
+
+        wheel.expire(1200, callback);
+        assertEquals(1, expired.size());
+        assertEquals("a", expired.get(0));
+
+        wheel.expire(1500, callback);
+        assertEquals(2, expired.size());
+        assertEquals("c", expired.get(1));
+        assertEquals(0, wheel.size());
+    }
+
+    public void testBeyondOneTurn() {
+        /* 8 slots of 100 ms, a deadline 2.5 turns ahead. */
+        TimerWheel.Timer a = new TimerWheel.Timer("a");
+        wheel.schedule(a, 3000);
+
+        for (long now = 1000; now < 3000; now += 100)
+            wheel.expire(now, callback);
+        assertTrue(expired.isEmpty());
+        assertTrue(a.isScheduled());
+
+        wheel.expire(3000, callback);
+        assertEquals(1, expired.size());
+    }
+
+    public void testLongSleep() {
+        TimerWheel.Timer a = new TimerWheel.Timer("a");
+        TimerWheel.Timer b = new TimerWheel.Timer("b");
+        wheel.schedule(a, 1100);
+        wheel.schedule(b, 1700);
+
+        /* Many turns later, every timer is expired at once. */
+        assertEquals(2, wheel.expire(60000, callback));
+        assertEquals(0, wheel.size());
+    }
+
+    public void testPastDeadline() {
+        wheel.expire(2000, callback);
+
+        TimerWheel.Timer a = new TimerWheel.Timer("a");
+        wheel.schedule(a, 1500);
+        assertEquals(100, wheel.getTimeout(2000));
+        assertEquals(1, wheel.expire(2100, callback));
+    }
+}
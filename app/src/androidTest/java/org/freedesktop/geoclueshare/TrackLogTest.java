@@ -0,0 +1,164 @@
+package org.freedesktop.geoclueshare;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes {@link TrackLog}s into a temporary directory and reads them back.
+ */
+public class TrackLogTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = new File(System.getProperty("java.io.tmpdir"),
+                "TrackLogTest-" + System.nanoTime());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                assertTrue(file.delete());
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws IOException {
+        TrackLog log = new TrackLog(directory, 100, 10);
+        log.open();
+        assertTrue(log.append(1435600519000L, 48.1173, -11.516666667, true, 545.4, 4.5, 3,
+                FixCodec.QUALITY_GPS));
+        assertTrue(log.append(1435600520000L, -48.1173, 11.5, false, 0, 1000, 0, 6));
+        assertFalse(log.append(0, 0, 0, false, 0, 0, 0, 0));
+        log.close();
+
+        TrackLog.Reader reader = new TrackLog.Reader(directory);
+        assertTrue(reader.next());
+        assertEquals(1435600519000L, reader.getTime());
+        assertEquals(48.1173, reader.getLatitude(), 1e-9);
+        assertEquals(-11.5166667, reader.getLongitude(), 1e-9);
+        assertTrue(reader.hasAltitude());
+        assertEquals(545.4, reader.getAltitude(), 1e-9);
+        assertEquals(4.5, reader.getAccuracy(), 1e-9);
+        assertEquals(3, reader.getClients());
+        assertEquals(FixCodec.QUALITY_GPS, reader.getQuality());
+
+        assertTrue(reader.next());
+        assertEquals(1435600520000L, reader.getTime());
+        assertFalse(reader.hasAltitude());
+        assertEquals(1000.0, reader.getAccuracy(), 1e-9);
+        assertEquals(6, reader.getQuality());
+
+        assertFalse(reader.next());
+    }
+
+    public void testRotation() throws IOException {
+        TrackLog log = new TrackLog(directory, 10, 3);
+        log.open();
+        for (int i = 1; i <= 45; i++)
+            assertTrue(log.append(i, 0, 0, false, 0, 0, 0, 0));
+        log.close();
+
+        /* Five segments were written, the two oldest were deleted. */
+        assertEquals(3, directory.list().length);
+
+        TrackLog.Reader reader = new TrackLog.Reader(directory);
+        for (int i = 21; i <= 45; i++) {
+            assertTrue(reader.next());
+            assertEquals(i, reader.getTime());
+        }
+        assertFalse(reader.next());
+    }
+
+    public void testReopenContinues() throws IOException {
+        TrackLog log = new TrackLog(directory, 10, 3);
+        log.open();
+        for (int i = 1; i <= 5; i++)
+            log.append(i, 0, 0, false, 0, 0, 0, 0);
+        log.close();
+
+        log.open();
+        for (int i = 6; i <= 12; i++)
+            log.append(i, 0, 0, false, 0, 0, 0, 0);
+        log.close();
+
+        TrackLog.Reader reader = new TrackLog.Reader(directory);
+        for (int i = 1; i <= 12; i++) {
+            assertTrue(reader.next());
+            assertEquals(i, reader.getTime());
+        }
+        assertFalse(reader.next());
+    }
+
+    public void testQueuedRecords() throws IOException {
+        TrackLog log = new TrackLog(directory, 1000, 3);
+        log.open();
+
+        /* A full queue loses nothing, across segments, and the rest is counted. */
+        for (int i = 1; i <= TrackLog.QUEUE_RECORDS + 2; i++)
+            assertEquals(i <= TrackLog.QUEUE_RECORDS, log.offer(i, 48.1173, 11.5, true, 545.4,
+                    4.5, 2, FixCodec.QUALITY_ESTIMATED));
+        assertEquals(2, log.getDropped());
+        assertEquals(TrackLog.QUEUE_RECORDS, log.flush());
+
+        assertTrue(log.offer(TrackLog.QUEUE_RECORDS + 1, 0, 0, false, 0, 0, 0, 0));
+        assertEquals(1, log.flush());
+        assertEquals(0, log.flush());
+        assertEquals(TrackLog.QUEUE_RECORDS + 1, log.getRecords());
+        log.close();
+
+        TrackLog.Reader reader = new TrackLog.Reader(directory);
+        for (int i = 1; i <= TrackLog.QUEUE_RECORDS; i++) {
+            assertTrue(reader.next());
+            assertEquals(i, reader.getTime());
+            assertEquals(48.1173, reader.getLatitude(), 1e-9);
+            assertEquals(545.4, reader.getAltitude(), 1e-9);
+            assertEquals(2, reader.getClients());
+            assertEquals(FixCodec.QUALITY_ESTIMATED, reader.getQuality());
+        }
+        assertTrue(reader.next());
+        assertEquals(TrackLog.QUEUE_RECORDS + 1, reader.getTime());
+        assertFalse(reader.hasAltitude());
+        assertFalse(reader.next());
+    }
+
+    public void testUnflushedRecordsAreCounted() throws IOException {
+        TrackLog log = new TrackLog(directory, 10, 3);
+        log.open();
+        for (int i = 1; i <= 15; i++)
+            assertTrue(log.offer(i, 48.1173, 11.5, false, 0, 4.5, 1, FixCodec.QUALITY_GPS));
+
+        /* The segment fills up, and the next one can't be created without the directory. */
+        for (File file : directory.listFiles())
+            assertTrue(file.delete());
+        assertTrue(directory.delete());
+
+        assertEquals(10, log.flush());
+        assertEquals(5, log.getDropped());
+        assertEquals(10, log.getRecords());
+
+        /* The log is closed now, what is queued next is counted too. */
+        assertTrue(log.offer(16, 48.1173, 11.5, false, 0, 4.5, 1, FixCodec.QUALITY_GPS));
+        assertEquals(0, log.flush());
+        assertEquals(6, log.getDropped());
+        log.close();
+    }
+
+    public void testEmpty() throws IOException {
+        assertFalse(new TrackLog.Reader(directory).next());
+
+        TrackLog log = new TrackLog(directory, 10, 3);
+        assertFalse(log.append(1, 0, 0, false, 0, 0, 0, 0));
+        log.open();
+        log.close();
+
+        assertFalse(new TrackLog.Reader(directory).next());
+    }
+}
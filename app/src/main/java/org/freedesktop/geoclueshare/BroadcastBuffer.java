@@ -0,0 +1,179 @@
+package org.freedesktop.geoclueshare;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code BroadcastBuffer} is a direct ring buffer that every outgoing sentence is encoded into
+ * exactly once. Clients don't get a copy of the sentence, only its position in the ring, and
+ * write it out through their own read-only view obtained from {@link #newView()}.
+ * <p>Positions are absolute byte counts since the buffer was created, so a sentence that has been
+ * overwritten by newer data can be detected with {@link #isAvailable(long, int)}.</p>
+ */
+public class BroadcastBuffer {
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer readOnly;
+    private final int capacity;
+    private volatile long position = 0;
+
+    /**
+     * @param capacity the size of the ring in bytes.
+     */
+    public BroadcastBuffer(int capacity) {
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.readOnly = buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes a sentence followed by {@code "\r\n"} into the ring. Characters outside of ASCII are
+     * replaced with {@code '?'}.
+     *
+     * @param data the sentence.
+     * @return the position of the encoded sentence. Its length is {@code data.length() + 2}.
+     */
+    public long put(CharSequence data) {
+        return put(data, data.length());
+    }
+
+    /**
+     * Same as {@link #put(CharSequence)} for the first {@code length} characters of a sentence.
+     *
+     * @param data   the sentence.
+     * @param length the number of characters to encode.
+     * @return the position of the encoded sentence. Its length is {@code length + 2}.
+     */
+    public long put(CharSequence data, int length) {
+        long start = reserve(length + 2);
+        int index = (int) (start % capacity);
+
+        for (int i = 0; i < length; i++) {
+            char c = data.charAt(i);
+            buffer.put(index + i, (byte) (c < 0x80 ? c : '?'));
+        }
+
+        return commit(start, length + 2);
+    }
+
+    /**
+     * Copies an already encoded sentence followed by {@code "\r\n"} into the ring.
+     *
+     * @param data   the array holding the sentence.
+     * @param length the length of the sentence.
+     * @return the position of the encoded sentence. Its length is {@code length + 2}.
+     */
+    public long put(byte[] data, int length) {
+        return put(data, 0, length);
+    }
+
+    /**
+     * Same as {@link #put(byte[], int)} for a sentence that doesn't start the array.
+     *
+     * @param data   the array holding the sentence.
+     * @param offset the offset of the sentence in {@code data}.
+     * @param length the length of the sentence.
+     * @return the position of the encoded sentence. Its length is {@code length + 2}.
+     */
+    public long put(byte[] data, int offset, int length) {
+        long start = reserve(length + 2);
+        int index = (int) (start % capacity);
+
+        for (int i = 0; i < length; i++)
+            buffer.put(index + i, data[offset + i]);
+
+        return commit(start, length + 2);
+    }
+
+    /**
+     * Finds room for a sentence. Sentences are never split across the end of the ring.
+     */
+    private long reserve(int length) {
+        if (length > capacity / 4)
+            throw new IllegalArgumentException("Sentence is too long: " + length);
+
+        long start = position;
+        int index = (int) (start % capacity);
+
+        if (index + length > capacity)
+            start += capacity - index;
+
+        return start;
+    }
+
+    private long commit(long start, int length) {
+        int index = (int) (start % capacity);
+
+        buffer.put(index + length - 2, (byte) '\r');
+        buffer.put(index + length - 1, (byte) '\n');
+
+        position = start + length;
+        return start;
+    }
+
+    /**
+     * Checks whether a sentence is still in the ring. Anything older than half the ring is
+     * considered gone, which leaves the other half as a margin for a writer running concurrently
+     * with a reader.
+     *
+     * @param position the position returned by {@link #put}.
+     * @param length   the length of the encoded sentence.
+     * @return {@code true} if the sentence can still be read.
+     */
+    public boolean isAvailable(long position, int length) {
+        return this.position - position <= capacity / 2 && position + length <= this.position;
+    }
+
+    /**
+     * Checks whether a sentence has used up half of the time it stays available, i.e. a quarter
+     * of the ring was written after it. A reader holding it back should write it now.
+     *
+     * @param position the position returned by {@link #put}.
+     * @return {@code true} if the sentence will soon be overwritten.
+     */
+    public boolean isAging(long position) {
+        return this.position - position > capacity / 4;
+    }
+
+    /**
+     * @return a new read-only view of the ring with its own position and limit. It is meant to be
+     * created once per client and reused for every sentence through {@link #select}.
+     */
+    public ByteBuffer newView() {
+        return readOnly.duplicate();
+    }
+
+    /**
+     * Points a view returned by {@link #newView()} at a part of a sentence.
+     *
+     * @param view     the view.
+     * @param position the position returned by {@link #put}.
+     * @param length   the length of the encoded sentence.
+     * @param offset   the number of bytes of the sentence to skip.
+     */
+    public void select(ByteBuffer view, long position, int length, int offset) {
+        int index = (int) (position % capacity);
+
+        view.limit(index + length);
+        view.position(index + offset);
+    }
+}
@@ -0,0 +1,669 @@
+package org.freedesktop.geoclueshare;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code ClientConnection} holds the state of a single connected client. An instance is attached
+ * to the client's {@link java.nio.channels.SelectionKey} so that every connection has its own
+ * outbound queue, even when several clients share the same address.
+ * <p>The queue is bounded to {@link #capacity()} sentences. What happens when it is full is
+ * decided by the {@link DropPolicy} given on construction.</p>
+ * <p>Sentences are not copied into the queue. It only holds their positions in a shared
+ * {@link BroadcastBuffer}, which the client reads through its own views.</p>
+ * <p>{@link #write(BroadcastBuffer)} never blocks. It writes every queued sentence in one
+ * gathering write, through one view of the buffer per sentence. A sentence that could only be
+ * written partly stays current and is resumed on the next call. Its remaining bytes are copied
+ * out of the ring first, so that newer sentences can't overwrite it and the client never gets
+ * half a sentence. If a slow client lets more than its high-water mark of bytes pile up, the
+ * {@link LaggardPolicy} decides whether stale sentences are dropped or the client is
+ * evicted.</p>
+ * <p>Clients can send requests to the server as lines of text, which are collected with
+ * {@link #read()} and {@link #nextLine()}.</p>
+ */
+public class ClientConnection {
+
+    /**
+     * What to do with a new sentence when the outbound queue of a client is full.
+     */
+    public enum DropPolicy {
+        /**
+         * Discard the oldest queued sentence to make room for the new one.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Discard everything that is queued and keep only the new sentence.
+         */
+        COALESCE_LATEST
+    }
+
+    /**
+     * What to do when a client has more bytes pending than its high-water mark.
+     */
+    public enum LaggardPolicy {
+        /**
+         * Drop the oldest queued sentences until the new one fits.
+         */
+        DROP_STALE,
+
+        /**
+         * Stop queueing for the client and mark it evicted, so that it gets disconnected.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * The longest request line accepted from a client. Longer lines are discarded.
+     */
+    public static final int MAX_LINE_LENGTH = 128;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final SocketChannel channel;
+    /* What the sentences are written to, the channel unless a test stands in for the socket. */
+    private GatheringByteChannel output;
+    private SelectionKey key;
+    private final ByteBuffer input = ByteBuffer.allocate(MAX_LINE_LENGTH);
+    private volatile int subscriptions = NmeaScanner.TYPE_GGA;
+    private long requestedInterval = 0;
+    private long batchInterval = 0;
+    private DeltaCodec deltaCodec;
+    private final TimerWheel.Timer writeTimer = new TimerWheel.Timer(this);
+    private final TimerWheel.Timer reckonTimer = new TimerWheel.Timer(this);
+    private final TimerWheel.Timer flushTimer = new TimerWheel.Timer(this);
+    private final DropPolicy dropPolicy;
+    private final LaggardPolicy laggardPolicy;
+    private final int highWaterMark;
+    private final long[] positions;
+    private final int[] lengths;
+    private final long[] times;
+    private final ByteBuffer view;
+    private ByteBuffer[] views;
+    private ByteBuffer remainder;
+    private int head = 0;
+    private int size = 0;
+
+    private boolean hasCurrent = false;
+    private long currentPosition;
+    private int currentLength;
+    private int currentOffset;
+    private long currentTime;
+    private boolean currentCopied = false;
+
+    private int pendingBytes = 0;
+    private long bytesQueued = 0;
+    private long bytesWritten = 0;
+    private long bytesDropped = 0;
+    private long sentencesWritten = 0;
+    private long sentencesDropped = 0;
+    private long partialWrites = 0;
+    private boolean evicted = false;
+
+    /**
+     * @param channel    the channel of the connected client.
+     * @param capacity   the maximum number of sentences queued for the client.
+     * @param dropPolicy    what to do when the queue is full.
+     * @param highWaterMark the maximum number of bytes pending for the client.
+     * @param laggardPolicy what to do when the high-water mark would be exceeded.
+     * @param view          the view of the {@link BroadcastBuffer} this client reads sentences
+     *                      from.
+     */
+    public ClientConnection(SocketChannel channel, int capacity, DropPolicy dropPolicy,
+                            int highWaterMark, LaggardPolicy laggardPolicy, ByteBuffer view) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be at least 1");
+
+        this.channel = channel;
+        this.output = channel;
+        this.dropPolicy = dropPolicy;
+        this.highWaterMark = highWaterMark;
+        this.laggardPolicy = laggardPolicy;
+        this.positions = new long[capacity];
+        this.lengths = new int[capacity];
+        this.times = new long[capacity];
+        this.view = view;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Writes the sentences to another channel than that of the client, to control how much of
+     * them every write takes.
+     */
+    void setOutput(GatheringByteChannel output) {
+        this.output = output;
+    }
+
+    /**
+     * @return the view of the shared {@link BroadcastBuffer} owned by this client.
+     */
+    public ByteBuffer getView() {
+        return view;
+    }
+
+    /**
+     * @return the {@code NmeaScanner.TYPE_*} flags of the sentence types the client wants.
+     */
+    public int getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * @param subscriptions the {@code NmeaScanner.TYPE_*} flags of the sentence types the client
+     *                      wants. Only GGA sentences are sent until this is called.
+     */
+    public void setSubscriptions(int subscriptions) {
+        this.subscriptions = subscriptions;
+    }
+
+    /**
+     * @return the codec of the client's {@code FixCodec} frames if it asked for deltas, or
+     * {@code null}. It is only used on the thread serving the client.
+     */
+    public DeltaCodec getDeltaCodec() {
+        return deltaCodec;
+    }
+
+    /**
+     * @param deltaCodec the codec to send the client deltas of its frames with, or {@code null}
+     *                   to send whole frames.
+     */
+    public void setDeltaCodec(DeltaCodec deltaCodec) {
+        this.deltaCodec = deltaCodec;
+    }
+
+    /**
+     * @return the key of the channel with the selector of the thread serving the client, or
+     * {@code null} before it is registered. Unlike {@link SocketChannel#keyFor}, it is found
+     * without iterating over the keys of the channel.
+     */
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * @return the timer of the deadline by which the client must have drained its queue, owned by
+     * the thread serving the client.
+     */
+    public TimerWheel.Timer getWriteTimer() {
+        return writeTimer;
+    }
+
+    /**
+     * @return the timer of the next estimated fix of a client that wants fixes more often than
+     * the GPS delivers them, owned by the thread serving the client.
+     */
+    public TimerWheel.Timer getReckonTimer() {
+        return reckonTimer;
+    }
+
+    /**
+     * @return the timer of the next flush of a client that gets its sentences in batches, owned
+     * by the thread serving the client.
+     */
+    public TimerWheel.Timer getFlushTimer() {
+        return flushTimer;
+    }
+
+    /**
+     * @return the time in milliseconds the client accepts its sentences to be held back for, so
+     * that they are written together, or 0 if they are written as soon as possible.
+     */
+    public long getBatchInterval() {
+        return batchInterval;
+    }
+
+    /**
+     * @param batchInterval the time in milliseconds sentences may be held back for the client, or
+     *                      0 to write them as soon as possible.
+     */
+    public void setBatchInterval(long batchInterval) {
+        this.batchInterval = batchInterval;
+    }
+
+    /**
+     * @return the interval between fixes the client asked for in milliseconds, or 0 if it didn't.
+     */
+    public long getRequestedInterval() {
+        return requestedInterval;
+    }
+
+    /**
+     * @param requestedInterval the interval between fixes the client wants in milliseconds, or 0
+     *                          for no preference.
+     */
+    public void setRequestedInterval(long requestedInterval) {
+        this.requestedInterval = requestedInterval;
+    }
+
+    /**
+     * Reads whatever the client has sent without blocking.
+     *
+     * @return the number of bytes read, or -1 if the client closed the connection.
+     * @throws IOException if reading from the channel fails.
+     */
+    public int read() throws IOException {
+        if (!input.hasRemaining()) {
+            /* A line longer than we accept, throw it away. */
+            input.clear();
+        }
+
+        return channel.read(input);
+    }
+
+    /**
+     * Takes the next complete line out of the data read so far.
+     *
+     * @return the line without its terminator, or {@code null} if no complete line was received.
+     */
+    public String nextLine() {
+        for (int i = 0, n = input.position(); i < n; i++) {
+            if (input.get(i) != '\n')
+                continue;
+
+            int end = i;
+            if (end > 0 && input.get(end - 1) == '\r')
+                end--;
+
+            String line = new String(input.array(), 0, end, ASCII);
+
+            input.flip();
+            input.position(i + 1);
+            input.compact();
+
+            return line;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the maximum number of sentences that can be queued for this client.
+     */
+    public int capacity() {
+        return positions.length;
+    }
+
+    /**
+     * Same as {@link #offer(long, int, long)} for a sentence of unknown origin.
+     */
+    public boolean offer(long position, int length) {
+        return offer(position, length, 0);
+    }
+
+    /**
+     * Queues a sentence for this client, applying the {@link DropPolicy} if the queue is full and
+     * the {@link LaggardPolicy} if the high-water mark would be exceeded.
+     *
+     * @param position the position of the sentence in the {@link BroadcastBuffer}.
+     * @param length   the length of the encoded sentence.
+     * @param time     the {@link System#nanoTime()} at which the sentence was received, or 0 if
+     *                 unknown. It is used to measure the latency in {@link #write}.
+     * @return {@code true} if a queued sentence had to be dropped to make room, or if the client
+     * has been evicted.
+     */
+    public synchronized boolean offer(long position, int length, long time) {
+        if (evicted)
+            return true;
+
+        boolean dropped = false;
+
+        if (size == positions.length) {
+            dropped = true;
+            if (dropPolicy == DropPolicy.DROP_OLDEST)
+                dropOldest();
+            else
+                clear();
+        }
+
+        if (pendingBytes + length > highWaterMark) {
+            dropped = true;
+            if (laggardPolicy == LaggardPolicy.DISCONNECT) {
+                clear();
+                evicted = true;
+                return true;
+            }
+
+            while (size > 0 && pendingBytes + length > highWaterMark)
+                dropOldest();
+        }
+
+        int tail = (head + size) % positions.length;
+        positions[tail] = position;
+        lengths[tail] = length;
+        times[tail] = time;
+        size++;
+        pendingBytes += length;
+        bytesQueued += length;
+
+        return dropped;
+    }
+
+    /**
+     * Removes the oldest queued sentence and makes it the current one, available through
+     * {@link #getCurrentPosition()} and {@link #getCurrentLength()}.
+     *
+     * @return {@code false} if nothing is queued.
+     */
+    public synchronized boolean poll() {
+        if (size == 0)
+            return false;
+
+        currentPosition = positions[head];
+        currentLength = lengths[head];
+        currentTime = times[head];
+        currentOffset = 0;
+        currentCopied = false;
+        hasCurrent = true;
+        head = (head + 1) % positions.length;
+        size--;
+
+        return true;
+    }
+
+    /**
+     * Same as {@link #write(BroadcastBuffer, Metrics.Histogram)} without measuring latency.
+     */
+    public int write(BroadcastBuffer sentences) throws IOException {
+        return write(sentences, null);
+    }
+
+    /**
+     * Writes as much of the pending data as the channel accepts without blocking, in one
+     * gathering write of all the queued sentences. A single sentence is written on its own,
+     * since Android copies the buffers of a gathering write into a new one. A sentence that is
+     * written partly is resumed from where it stopped on the next call, from a copy of its
+     * remaining bytes.
+     *
+     * @param sentences the buffer the queued sentences were encoded into.
+     * @param latency   if not {@code null}, records the time in microseconds from the reception
+     *                  of every sentence that is completely written to the end of its write.
+     * @return the number of bytes written.
+     * @throws IOException if writing to the channel fails.
+     */
+    public int write(BroadcastBuffer sentences, Metrics.Histogram latency) throws IOException {
+        int total = 0;
+
+        while (hasCurrent || poll()) {
+            if (!currentCopied && !sentences.isAvailable(currentPosition, currentLength)) {
+                /* Overwritten before we got to it, nothing of it was sent. */
+                synchronized (this) {
+                    pendingBytes -= currentLength;
+                    bytesDropped += currentLength;
+                    sentencesDropped++;
+                    hasCurrent = false;
+                }
+                continue;
+            }
+
+            int count = gather(sentences);
+            long gathered = 0;
+            for (int i = 0; i < count; i++)
+                gathered += views[i].remaining();
+
+            long written = count == 1 ? output.write(views[0]) : output.write(views, 0, count);
+            total += written;
+            boolean full = written < gathered;
+
+            /* Account for the sentences written, completely or partly, in the order they were. */
+            for (int i = 0; i < count; i++) {
+                if (i > 0 && (written == 0 || !poll()))
+                    break;
+
+                int length = (int) Math.min(written, currentLength - currentOffset);
+                written -= length;
+
+                synchronized (this) {
+                    currentOffset += length;
+                    pendingBytes -= length;
+                    bytesWritten += length;
+                }
+
+                if (currentOffset < currentLength) {
+                    /* Stopped before it rather than in the middle, there is nothing to keep. */
+                    if (currentOffset == 0)
+                        return total;
+
+                    synchronized (this) {
+                        partialWrites++;
+                    }
+                    keepRemainder(sentences);
+                    return total;
+                }
+
+                if (latency != null && currentTime != 0)
+                    latency.record((System.nanoTime() - currentTime) / 1000);
+
+                synchronized (this) {
+                    sentencesWritten++;
+                }
+                hasCurrent = false;
+            }
+
+            /* The socket buffer is full, at the boundary of a sentence. */
+            if (full)
+                return total;
+        }
+
+        return total;
+    }
+
+    /**
+     * Points the views at the rest of the current sentence and at the queued ones that follow,
+     * up to the first one that was overwritten.
+     *
+     * @return the number of views to write.
+     */
+    private int gather(BroadcastBuffer sentences) {
+        if (views == null) {
+            views = new ByteBuffer[positions.length + 1];
+            views[0] = view;
+            for (int i = 1; i < views.length; i++)
+                views[i] = sentences.newView();
+        }
+
+        if (currentCopied) {
+            views[0] = remainder;
+        } else {
+            views[0] = view;
+            sentences.select(view, currentPosition, currentLength, currentOffset);
+        }
+        int count = 1;
+
+        synchronized (this) {
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % positions.length;
+                if (!sentences.isAvailable(positions[index], lengths[index]))
+                    break;
+
+                sentences.select(views[count++], positions[index], lengths[index], 0);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Copies what is left of the current sentence out of the ring, unless it was already, so that
+     * it can be finished even if newer sentences overwrite it. If it was overwritten while being
+     * copied, which takes the writer lapping half the ring meanwhile, the copy can't be trusted
+     * and the client is evicted rather than sent a torn sentence.
+     */
+    private void keepRemainder(BroadcastBuffer sentences) {
+        if (currentCopied)
+            return;
+
+        int length = currentLength - currentOffset;
+        if (remainder == null || remainder.capacity() < length)
+            remainder = ByteBuffer.allocate(Math.max(length, MAX_LINE_LENGTH));
+
+        sentences.select(view, currentPosition, currentLength, currentOffset);
+        remainder.clear();
+        remainder.put(view);
+        remainder.flip();
+        currentCopied = true;
+
+        if (!sentences.isAvailable(currentPosition, currentLength))
+            evict();
+    }
+
+    /**
+     * @return the position of the sentence taken by the last {@link #poll()}.
+     */
+    public long getCurrentPosition() {
+        return currentPosition;
+    }
+
+    /**
+     * @return the length of the sentence taken by the last {@link #poll()}.
+     */
+    public int getCurrentLength() {
+        return currentLength;
+    }
+
+    /**
+     * @return {@code true} if nothing is queued and no sentence is partly written.
+     */
+    public synchronized boolean isEmpty() {
+        return size == 0 && !hasCurrent;
+    }
+
+    /**
+     * @return the position in the {@link BroadcastBuffer} of the oldest sentence still to be
+     * written from it, or -1 if there is none. A partly written sentence was copied out of it.
+     */
+    public synchronized long getOldestPosition() {
+        if (hasCurrent && !currentCopied)
+            return currentPosition;
+
+        return size > 0 ? positions[head] : -1;
+    }
+
+    /**
+     * @return {@code true} if half the queue or half the high-water mark is used, so that a batch
+     * should be written before anything has to be dropped.
+     */
+    public synchronized boolean isHalfFull() {
+        return size * 2 >= positions.length || pendingBytes * 2 >= highWaterMark;
+    }
+
+    /**
+     * @return {@code true} if the client exceeded its high-water mark under
+     * {@link LaggardPolicy#DISCONNECT}, or was evicted with {@link #evict()}, and should be
+     * disconnected.
+     */
+    public synchronized boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * Discards everything queued and stops queueing for the client, e.g. because it didn't drain
+     * its queue in time. It should be disconnected.
+     */
+    public synchronized void evict() {
+        clear();
+        evicted = true;
+    }
+
+    /**
+     * @return the number of bytes queued for the client that haven't been written yet.
+     */
+    public synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return the total number of bytes ever queued for the client.
+     */
+    public synchronized long getBytesQueued() {
+        return bytesQueued;
+    }
+
+    /**
+     * @return the total number of bytes written to the client.
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the total number of sentences completely written to the client.
+     */
+    public synchronized long getSentencesWritten() {
+        return sentencesWritten;
+    }
+
+    /**
+     * @return the total number of queued bytes that were dropped instead of written.
+     */
+    public synchronized long getBytesDropped() {
+        return bytesDropped;
+    }
+
+    /**
+     * @return the total number of queued sentences that were dropped instead of written.
+     */
+    public synchronized long getSentencesDropped() {
+        return sentencesDropped;
+    }
+
+    /**
+     * @return the number of times a write stopped in the middle of a sentence because the socket
+     * buffer was full.
+     */
+    public synchronized long getPartialWrites() {
+        return partialWrites;
+    }
+
+    /**
+     * Discards every queued sentence. A sentence that is partly written is kept, so that the
+     * client never receives half a sentence.
+     */
+    public synchronized void clear() {
+        while (size > 0)
+            dropOldest();
+
+        head = 0;
+    }
+
+    private void dropOldest() {
+        int length = lengths[head];
+
+        pendingBytes -= length;
+        bytesDropped += length;
+        sentencesDropped++;
+        head = (head + 1) % positions.length;
+        size--;
+    }
+}
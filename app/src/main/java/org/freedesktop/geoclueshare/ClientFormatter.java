@@ -0,0 +1,189 @@
+package org.freedesktop.geoclueshare;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code ClientFormatter} queues for a single client the fixes that are not broadcast to all of
+ * them, in the format the client asked for: the recent fixes replayed from a {@link FixHistory},
+ * the fixes estimated by a {@link DeadReckoner}, shared through a {@link SharedEstimate}, and
+ * {@link DeltaCodec} records, which depend on what the client got before. They are encoded into
+ * the {@link BroadcastBuffer} the client reads from, and queued with
+ * {@link ClientConnection#offer}.
+ * <p>Every worker of {@link NmeaBroadcastServer} has its own formatter. A formatter is not thread
+ * safe, and doesn't allocate.</p>
+ */
+public class ClientFormatter {
+
+    private final BroadcastBuffer sentences;
+    private final FixHistory history;
+    private final DeadReckoner reckoner;
+    private final SharedEstimate shared;
+    private final GgaEncoder encoder = new GgaEncoder();
+    private final FixCodec codec = new FixCodec();
+    private final double[] estimate = new double[5];
+
+    /* The estimate being queued, and where it was put into the ring in either format. */
+    private long estimateDue = -1;
+    private long estimateTime;
+    private int estimateSequence;
+    private int estimateClients;
+    private long ggaPosition = -1;
+    private int ggaLength;
+    private long framePosition = -1;
+    private int frameLength;
+
+    /**
+     * @param sentences the ring the clients read from.
+     * @param history   the recent fixes.
+     * @param reckoner  the reckoner the fixes are estimated with.
+     * @param shared    numbers and logs the estimates, for all the workers.
+     */
+    public ClientFormatter(BroadcastBuffer sentences, FixHistory history, DeadReckoner reckoner,
+                           SharedEstimate shared) {
+        this.sentences = sentences;
+        this.history = history;
+        this.reckoner = reckoner;
+        this.shared = shared;
+    }
+
+    /**
+     * Queues the recent fixes, oldest first.
+     *
+     * @param client the client.
+     * @param count  the number of fixes, at most the size of the history.
+     */
+    public void replay(ClientConnection client, int count) {
+        int subscriptions = client.getSubscriptions();
+
+        for (int age = Math.min(count, history.size()) - 1; age >= 0; age--) {
+            if ((subscriptions & NmeaScanner.TYPE_FIX) != 0) {
+                int length = history.encodeFrame(age, codec);
+                if (length != 0)
+                    offerFrame(client, length);
+            } else if ((subscriptions & NmeaScanner.TYPE_GGA) != 0) {
+                int length = history.encodeGga(age, encoder);
+                if (length != 0)
+                    client.offer(sentences.put(encoder.getBuffer(), 0, length), length + 2, 0);
+            }
+        }
+    }
+
+    /**
+     * Queues the fix estimated for a due time, with the fix quality
+     * {@link FixCodec#QUALITY_ESTIMATED}. The estimate is made, numbered and put into the ring
+     * once for all the clients due at that time, until {@link #endEstimates()}. Only
+     * {@link DeltaCodec} records are encoded for each client.
+     *
+     * @param client the client.
+     * @param due    the time the estimate is due, on the clock of the reckoner, see
+     *               {@link DeadReckoner#add}.
+     * @return {@code false} if nothing was queued, because the client subscribed to neither GGA
+     * sentences nor frames, or there was no fix to estimate from.
+     */
+    public boolean offerEstimate(ClientConnection client, long due) {
+        int subscriptions = client.getSubscriptions();
+        if ((subscriptions & (NmeaScanner.TYPE_FIX | NmeaScanner.TYPE_GGA)) == 0)
+            return false;
+
+        if (due != estimateDue) {
+            endEstimates();
+            estimateDue = due;
+            estimateTime = reckoner.estimate(due, estimate);
+            if (estimateTime != 0)
+                estimateSequence = shared.number(due, estimateTime, estimate);
+        }
+        if (estimateTime == 0)
+            return false;
+
+        if ((subscriptions & NmeaScanner.TYPE_FIX) != 0) {
+            if (client.getDeltaCodec() != null) {
+                encodeFrame();
+                offerDelta(client, codec.getBuffer(), 0, 0);
+            } else {
+                if (framePosition == -1) {
+                    frameLength = encodeFrame();
+                    framePosition = sentences.put(codec.getBuffer(), 0, frameLength);
+                }
+                client.offer(framePosition, frameLength + 2, 0);
+            }
+        } else {
+            if (ggaPosition == -1) {
+                ggaLength = encoder.encode(estimateTime, estimate[0], estimate[1], estimate[2],
+                        !Double.isNaN(estimate[4]), estimate[4], FixCodec.QUALITY_ESTIMATED);
+                ggaPosition = sentences.put(encoder.getBuffer(), 0, ggaLength);
+            }
+            client.offer(ggaPosition, ggaLength + 2, 0);
+        }
+
+        estimateClients++;
+        return true;
+    }
+
+    /**
+     * Counts the clients the current estimate was queued to, and forgets where it was put, as
+     * the ring may be overwritten before the next one is due. It is called once the estimates
+     * due at a tick are queued.
+     */
+    public void endEstimates() {
+        if (estimateClients > 0)
+            shared.addClients(estimateDue, estimateClients);
+
+        estimateDue = -1;
+        estimateClients = 0;
+        ggaPosition = -1;
+        framePosition = -1;
+    }
+
+    /**
+     * Queues a frame as a delta, for a client that asked for {@link DeltaCodec} records.
+     *
+     * @param client the client.
+     * @param frame  the array holding the frame.
+     * @param offset the offset of the frame in {@code frame}.
+     * @param time   the time the frame was published, see {@link ClientConnection#offer}.
+     */
+    public void offerDelta(ClientConnection client, byte[] frame, int offset, long time) {
+        DeltaCodec delta = client.getDeltaCodec();
+        int length = delta.encode(frame, offset, client.getSentencesDropped());
+
+        client.offer(sentences.put(delta.getBuffer(), 0, length), length + 2, time);
+    }
+
+    /**
+     * Encodes the current estimate into {@link #codec}.
+     *
+     * @return the length of the frame.
+     */
+    private int encodeFrame() {
+        return codec.encode(estimateSequence, estimateTime, estimate[0], estimate[1], estimate[2],
+                estimate[3], !Double.isNaN(estimate[4]), estimate[4], FixCodec.QUALITY_ESTIMATED);
+    }
+
+    /**
+     * Queues the frame of {@link #codec}, as a delta if the client asked for them.
+     */
+    private void offerFrame(ClientConnection client, int length) {
+        if (client.getDeltaCodec() != null)
+            offerDelta(client, codec.getBuffer(), 0, 0);
+        else
+            client.offer(sentences.put(codec.getBuffer(), 0, length), length + 2, 0);
+    }
+}
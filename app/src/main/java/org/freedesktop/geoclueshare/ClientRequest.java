@@ -0,0 +1,135 @@
+package org.freedesktop.geoclueshare;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code ClientRequest} is a request line sent by a client of {@link NmeaBroadcastServer},
+ * parsed: {@link NmeaBroadcastServer#REQUEST_SUBSCRIBE},
+ * {@link NmeaBroadcastServer#REQUEST_INTERVAL}, {@link NmeaBroadcastServer#REQUEST_BATCH} or
+ * {@link NmeaBroadcastServer#REQUEST_FORMAT}. Words are separated by spaces or commas and are case
+ * insensitive.
+ * <p>Parsing has no effect on the client, the server applies the request.</p>
+ */
+public class ClientRequest {
+
+    /**
+     * The kinds of requests.
+     */
+    public enum Type {
+        SUBSCRIBE,
+        INTERVAL,
+        BATCH,
+        FORMAT
+    }
+
+    private final Type type;
+    private final int subscriptions;
+    private final long interval;
+    private final boolean delta;
+
+    private ClientRequest(Type type, int subscriptions, long interval, boolean delta) {
+        this.type = type;
+        this.subscriptions = subscriptions;
+        this.interval = interval;
+        this.delta = delta;
+    }
+
+    /**
+     * Parses a request line.
+     *
+     * @param line the line, without its terminator.
+     * @return the request, or {@code null} if the line isn't a valid one.
+     */
+    public static ClientRequest parse(String line) {
+        String[] words = line.trim().split("[\\s,]+");
+
+        if (words[0].equalsIgnoreCase(NmeaBroadcastServer.REQUEST_SUBSCRIBE)) {
+            int types = 0;
+            for (int i = 1; i < words.length; i++)
+                types |= NmeaScanner.parseType(words[i]);
+
+            return new ClientRequest(Type.SUBSCRIBE, types, 0, false);
+        }
+
+        if (words.length != 2)
+            return null;
+
+        if (words[0].equalsIgnoreCase(NmeaBroadcastServer.REQUEST_INTERVAL)) {
+            long interval = parseInterval(words[1]);
+            return interval < 0 ? null : new ClientRequest(Type.INTERVAL, 0, interval, false);
+        } else if (words[0].equalsIgnoreCase(NmeaBroadcastServer.REQUEST_BATCH)) {
+            long interval = parseInterval(words[1]);
+            return interval < 0 ? null : new ClientRequest(Type.BATCH, 0,
+                    Math.min(interval, NmeaBroadcastServer.MAX_BATCH_INTERVAL), false);
+        } else if (words[0].equalsIgnoreCase(NmeaBroadcastServer.REQUEST_FORMAT)) {
+            if (words[1].equalsIgnoreCase(NmeaBroadcastServer.FORMAT_BINARY))
+                return new ClientRequest(Type.FORMAT, NmeaScanner.TYPE_FIX, 0, false);
+            else if (words[1].equalsIgnoreCase(NmeaBroadcastServer.FORMAT_DELTA))
+                return new ClientRequest(Type.FORMAT, NmeaScanner.TYPE_FIX, 0, true);
+            else if (words[1].equalsIgnoreCase(NmeaBroadcastServer.FORMAT_NMEA))
+                return new ClientRequest(Type.FORMAT, NmeaScanner.TYPE_GGA, 0, false);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the kind of request.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the {@code NmeaScanner.TYPE_*} flags a {@link Type#SUBSCRIBE} or {@link Type#FORMAT}
+     * request asks for.
+     */
+    public int getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * @return the interval in milliseconds of an {@link Type#INTERVAL} or {@link Type#BATCH}
+     * request, 0 or more. That of a batch is at most
+     * {@link NmeaBroadcastServer#MAX_BATCH_INTERVAL}.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return whether a {@link Type#FORMAT} request asks for {@link DeltaCodec} records.
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    /**
+     * @return a number of milliseconds, negative ones taken as 0, or -1 if it isn't a number.
+     */
+    private static long parseInterval(String word) {
+        try {
+            return Math.max(0, Long.parseLong(word));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
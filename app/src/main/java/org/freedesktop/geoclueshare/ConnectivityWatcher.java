@@ -0,0 +1,119 @@
+package org.freedesktop.geoclueshare;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code ConnectivityWatcher} follows the address of the Wi-Fi interface, which changes after a
+ * DHCP renewal or a roam to another access point, and has {@link Zeroconf} move the mDNS
+ * advertisement to the new address.
+ * <p>Only the mDNS responder is restarted. The TCP server listens on every interface, so it
+ * keeps running and the clients that are still reachable stay connected.</p>
+ * <p>Connectivity broadcasts come in bursts, nothing happens unless the address actually
+ * changed, or came back after the Wi-Fi was disconnected, since the multicast group memberships
+ * of the responder went with the interface then.</p>
+ */
+public class ConnectivityWatcher extends BroadcastReceiver {
+    private static final String TAG = "ConnectivityWatcher";
+
+    private WifiManager wifi;
+    private String address;
+
+    /**
+     * Starts watching. The current address is taken as the one mDNS is bound to.
+     *
+     * @param context the context to register the receiver with.
+     */
+    public void register(Context context) {
+        wifi = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        address = getWifiAddress(wifi);
+
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        context.registerReceiver(this, filter);
+    }
+
+    /**
+     * Stops watching.
+     *
+     * @param context the context given to {@link #register(Context)}.
+     */
+    public void unregister(Context context) {
+        context.unregisterReceiver(this);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String current = getWifiAddress(wifi);
+
+        /* Without an address there's nothing to bind to, wait for the next one. */
+        if (current == null || current.equals(address)) {
+            address = current;
+            return;
+        }
+
+        Log.d(TAG, "Wi-Fi address changed from " + address + " to " + current);
+        address = current;
+        Zeroconf.rebind(current);
+        NetworkListener.rebindDatagrams(current);
+    }
+
+    /**
+     * @param wifi the Wi-Fi service.
+     * @return the IPv4 address of the Wi-Fi interface as a string, or {@code null} if it has
+     * none.
+     */
+    public static String getWifiAddress(WifiManager wifi) {
+        InetAddress address = toInetAddress(wifi.getConnectionInfo().getIpAddress());
+        return address != null ? address.getHostAddress() : null;
+    }
+
+    /**
+     * Converts an IPv4 address as returned by {@code WifiInfo.getIpAddress()}, with the first
+     * byte of the address in the lowest byte of the int.
+     *
+     * @param ip the address.
+     * @return the address, or {@code null} for 0, which means there is none.
+     */
+    public static InetAddress toInetAddress(int ip) {
+        if (ip == 0)
+            return null;
+
+        byte[] bytes = {(byte) ip, (byte) (ip >>> 8), (byte) (ip >>> 16), (byte) (ip >>> 24)};
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            /* Only thrown for a wrong number of bytes. */
+            return null;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.freedesktop.geoclueshare;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code DatagramOutput} sends every sentence once as a UDP datagram, to a multicast group or a
+ * broadcast address, so that the cost of a fix doesn't depend on the number of listeners.
+ * <p>Every datagram holds a single sentence terminated with {@code "\r\n"}, the way NMEA 0183
+ * over UDP is usually received. A datagram that can't be sent is dropped. Sending only blocks
+ * while the socket buffer is full, which a few sentences a second don't fill.</p>
+ * <p>The datagrams leave through the Wi-Fi interface: the socket is bound to its address, which
+ * is also the multicast interface, so that they don't take the default route over the cellular
+ * network when both are up. Multicast datagrams are sent with a time to live of
+ * {@link #DEFAULT_TTL} unless told otherwise, so that they stay on the LAN.</p>
+ * <p>An output is not thread safe, it is meant to be used from a single selector thread, except
+ * for {@link #setLocalAddress(InetAddress)}.</p>
+ */
+public class DatagramOutput {
+
+    /**
+     * The time to live of the multicast datagrams, one hop.
+     */
+    public static final int DEFAULT_TTL = 1;
+
+    private final InetSocketAddress target;
+    private final int ttl;
+    private final int types;
+    private final byte[] buffer = new byte[GgaEncoder.MAX_LENGTH * 2];
+    private final DatagramPacket packet;
+    private MulticastSocket socket;
+    private volatile InetAddress localAddress;
+    private InetAddress boundAddress;
+    private volatile long sent = 0;
+    private volatile long dropped = 0;
+
+    /**
+     * @param target       the multicast group or broadcast address, with the port to send to.
+     * @param localAddress the address of the interface to send through, that of Wi-Fi, or
+     *                     {@code null} to follow the routing table.
+     * @param ttl          the time to live of multicast datagrams, e.g. {@link #DEFAULT_TTL}.
+     * @param types        the {@code NmeaScanner.TYPE_*} flags of the sentence types to send.
+     */
+    public DatagramOutput(InetSocketAddress target, InetAddress localAddress, int ttl, int types) {
+        this.target = target;
+        this.localAddress = localAddress;
+        this.ttl = ttl;
+        this.types = types;
+        this.packet = new DatagramPacket(buffer, 0, target.getAddress(), target.getPort());
+    }
+
+    /**
+     * Opens the socket, bound to the local address if there is one.
+     *
+     * @throws IOException if the socket can't be opened.
+     */
+    public void open() throws IOException {
+        InetAddress address = localAddress;
+        MulticastSocket opened = new MulticastSocket(new InetSocketAddress(address, 0));
+
+        try {
+            opened.setBroadcast(true);
+            opened.setTimeToLive(ttl);
+            if (address != null)
+                opened.setInterface(address);
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+
+        socket = opened;
+        boundAddress = address;
+    }
+
+    /**
+     * Moves the output to another interface, e.g. when the Wi-Fi address changed. The socket is
+     * opened again before the next datagram is sent. It can be called from any thread.
+     *
+     * @param localAddress the address of the interface to send through, or {@code null} to
+     *                     follow the routing table.
+     */
+    public void setLocalAddress(InetAddress localAddress) {
+        this.localAddress = localAddress;
+    }
+
+    /**
+     * Sends a sentence if it is of one of the types of the output.
+     *
+     * @param data   the array holding the sentence, without line terminators.
+     * @param offset the offset of the sentence in {@code data}.
+     * @param length the length of the sentence.
+     * @param type   the {@code NmeaScanner.TYPE_*} flag of the sentence type.
+     * @return {@code true} if the sentence was sent.
+     */
+    public boolean send(byte[] data, int offset, int length, int type) {
+        if ((types & type) == 0)
+            return false;
+
+        if (length + 2 > buffer.length) {
+            dropped++;
+            return false;
+        }
+
+        System.arraycopy(data, offset, buffer, 0, length);
+        buffer[length] = '\r';
+        buffer[length + 1] = '\n';
+        packet.setLength(length + 2);
+
+        try {
+            if (socket == null || localAddress != boundAddress) {
+                close();
+                open();
+            }
+            socket.send(packet);
+        } catch (IOException e) {
+            /* No route to the group while Wi-Fi is down, try again with the next sentence. */
+            dropped++;
+            return false;
+        }
+
+        sent++;
+        return true;
+    }
+
+    /**
+     * @return the {@code NmeaScanner.TYPE_*} flags of the sentence types sent.
+     */
+    public int getTypes() {
+        return types;
+    }
+
+    /**
+     * @return where the datagrams are sent to.
+     */
+    public InetSocketAddress getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the time to live of the multicast datagrams.
+     */
+    public int getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @return the number of datagrams sent.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return the number of sentences that could not be sent.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Closes the socket.
+     */
+    public void close() {
+        if (socket == null)
+            return;
+
+        socket.close();
+        socket = null;
+    }
+}
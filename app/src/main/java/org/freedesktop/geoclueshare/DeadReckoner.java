@@ -0,0 +1,191 @@
+package org.freedesktop.geoclueshare;
+
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code DeadReckoner} estimates where the device is between two fixes, so that clients can be
+ * served positions more often than the GPS delivers them without making it work harder.
+ * <p>It keeps the last two fixes. A position at a later time is extrapolated from the latest fix
+ * along its velocity: the speed and bearing of the fix when they are known, or else the
+ * displacement from the previous fix. The position moves for at most
+ * {@link #MAX_EXTRAPOLATION} past the fix and then stays put, and nothing is estimated once the
+ * fix is older than {@link #MAX_AGE}. The altitude, accuracy and HDOP are those of the fix.</p>
+ * <p>Estimated fixes are sent with the fix quality {@link FixCodec#QUALITY_ESTIMATED}, so that
+ * clients can tell them from real ones.</p>
+ * <p>Fixes are ordered and extrapolated by the time they were received on a monotonic clock of
+ * the owner, which the wall clock of the phone can't jump. An estimate is stamped with the UTC
+ * time of the latest fix plus the time elapsed since it was received.</p>
+ * <p>A reckoner is thread safe: fixes are added by the location thread and estimated by the
+ * network threads. Neither allocates.</p>
+ */
+public class DeadReckoner {
+
+    /**
+     * How long past the latest fix the position keeps moving, in milliseconds.
+     */
+    public static final long MAX_EXTRAPOLATION = 2000;
+
+    /**
+     * The age of the latest fix beyond which nothing is estimated, in milliseconds.
+     */
+    public static final long MAX_AGE = 30 * 1000;
+
+    private static final double EARTH_RADIUS = 6371008.8;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+    private long elapsed = 0;
+    private long time;
+    private double latitude;
+    private double longitude;
+    private double hdop;
+    private double accuracy;
+    private boolean hasAltitude;
+    private double altitude;
+
+    /* Meters per second. */
+    private double velocityNorth;
+    private double velocityEast;
+
+    /**
+     * Adds a fix. Fixes without a valid position, or not received after the latest one, are
+     * ignored.
+     *
+     * @param elapsed     the time the fix was received in milliseconds, on the monotonic clock
+     *                    the estimates are asked for with.
+     * @param time        UTC time of the fix in milliseconds since the epoch.
+     * @param latitude    latitude in degrees.
+     * @param longitude   longitude in degrees.
+     * @param hdop        horizontal dilution of precision.
+     * @param accuracy    accuracy in meters.
+     * @param hasAltitude whether {@code altitude} is known.
+     * @param altitude    altitude in meters.
+     * @param hasVelocity whether {@code speed} and {@code bearing} are known.
+     * @param speed       speed in meters per second.
+     * @param bearing     bearing in degrees east of true north.
+     * @return {@code true} if the fix was added.
+     */
+    public synchronized boolean add(long elapsed, long time, double latitude, double longitude,
+                                    double hdop, double accuracy, boolean hasAltitude,
+                                    double altitude, boolean hasVelocity, double speed,
+                                    double bearing) {
+        if (!(Math.abs(latitude) <= 90) || !(Math.abs(longitude) <= 180)
+                || elapsed <= this.elapsed)
+            return false;
+
+        if (hasVelocity && !Double.isNaN(speed) && !Double.isNaN(bearing)) {
+            velocityNorth = speed * Math.cos(Math.toRadians(bearing));
+            velocityEast = speed * Math.sin(Math.toRadians(bearing));
+        } else if (this.elapsed != 0 && elapsed - this.elapsed <= MAX_AGE) {
+            double seconds = (elapsed - this.elapsed) / 1000.0;
+            velocityNorth = (latitude - this.latitude) * METERS_PER_DEGREE / seconds;
+            velocityEast = wrap(longitude - this.longitude) * METERS_PER_DEGREE
+                    * Math.cos(Math.toRadians(latitude)) / seconds;
+        } else {
+            velocityNorth = 0;
+            velocityEast = 0;
+        }
+
+        this.elapsed = elapsed;
+        this.time = time;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.hdop = hdop;
+        this.accuracy = accuracy;
+        this.hasAltitude = hasAltitude;
+        this.altitude = altitude;
+
+        return true;
+    }
+
+    /**
+     * Forgets the fixes, e.g. when the GPS is stopped.
+     */
+    public synchronized void reset() {
+        elapsed = 0;
+    }
+
+    /**
+     * @return the UTC time of the latest fix in milliseconds since the epoch, or 0 if there is
+     * none.
+     */
+    public synchronized long getTime() {
+        return elapsed != 0 ? time : 0;
+    }
+
+    /**
+     * Estimates the position at a given time.
+     *
+     * @param elapsed the time on the clock of {@link #add}, after the latest fix was received.
+     * @param fix     receives the latitude, longitude, HDOP, accuracy and altitude or
+     *                {@code NaN} if it isn't known.
+     * @return the UTC time of the estimate in milliseconds since the epoch, or 0 if there is no
+     * fix to estimate from at that time.
+     */
+    public synchronized long estimate(long elapsed, double[] fix) {
+        if (!isValid(elapsed))
+            return 0;
+
+        fix[0] = estimateLatitude(elapsed);
+        fix[1] = estimateLongitude(elapsed, fix[0]);
+        fix[2] = hdop;
+        fix[3] = accuracy;
+        fix[4] = hasAltitude ? altitude : Double.NaN;
+
+        return time + elapsed - this.elapsed;
+    }
+
+    private boolean isValid(long elapsed) {
+        return this.elapsed != 0 && elapsed > this.elapsed && elapsed - this.elapsed <= MAX_AGE;
+    }
+
+    private double estimateLatitude(long elapsed) {
+        double latitude = this.latitude + velocityNorth * seconds(elapsed) / METERS_PER_DEGREE;
+        return Math.max(-90, Math.min(90, latitude));
+    }
+
+    private double estimateLongitude(long elapsed, double latitude) {
+        double cos = Math.cos(Math.toRadians(latitude));
+        if (cos < 1e-6)
+            return longitude;
+
+        return wrap(longitude + velocityEast * seconds(elapsed) / (METERS_PER_DEGREE * cos));
+    }
+
+    /**
+     * @return the time the position has moved for since the latest fix, in seconds.
+     */
+    private double seconds(long elapsed) {
+        return Math.min(elapsed - this.elapsed, MAX_EXTRAPOLATION) / 1000.0;
+    }
+
+    /**
+     * @return a longitude, or a difference of longitudes, between -180 and 180 degrees.
+     */
+    private static double wrap(double longitude) {
+        while (longitude > 180)
+            longitude -= 360;
+        while (longitude < -180)
+            longitude += 360;
+
+        return longitude;
+    }
+}
@@ -0,0 +1,230 @@
+package org.freedesktop.geoclueshare;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code DeltaCodec} turns a stream of {@link FixCodec} frames into keyframes and deltas, for
+ * clients of high-rate feeds where consecutive fixes differ only in their last digits.
+ * <p>A keyframe is a whole {@link FixCodec} frame. A delta is:</p>
+ * <pre>
+ *  0  2  magic, 0xA5 'D'
+ *  2  1  number n of bytes of the differences
+ *  3  1  low byte of the sequence number of the fix the differences apply to
+ *  4  1  fix quality, as in GGA
+ *  5  n  differences of the raw values of the frame with the previous fix, as zig-zag varints
+ *        in the order of {@link FixCodec#readFields}
+ * </pre>
+ * <p>Like frames, every record is followed by {@code "\r\n"}. A delta of a fix at walking speed
+ * and 10 Hz takes about 16 bytes on the wire, against {@value FixCodec#FRAME_LENGTH} for a
+ * frame.</p>
+ * <p>An encoder sends a keyframe first, then every {@code keyframeInterval} fixes and whenever
+ * records were dropped for its client. The quality is in every delta, so that estimated fixes
+ * sent between real ones don't each cost a keyframe. A decoder that missed a record ignores the
+ * deltas that don't apply to the last fix it has, until the next keyframe.</p>
+ * <p>A codec is either used to encode or to decode, and is not thread safe.</p>
+ */
+public class DeltaCodec {
+
+    /**
+     * The default number of fixes between keyframes.
+     */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 10;
+
+    /**
+     * The maximum length of a record, without the trailing {@code "\r\n"}.
+     */
+    public static final int MAX_LENGTH = 5 + FixCodec.FIELDS * 10;
+
+    private static final byte MAGIC_DELTA = 'D';
+    private static final int HEADER_LENGTH = 5;
+
+    private final int keyframeInterval;
+    private final byte[] buffer = new byte[MAX_LENGTH];
+    private final long[] fields = new long[FixCodec.FIELDS];
+    private final long[] previous = new long[FixCodec.FIELDS];
+    private final FixCodec fix = new FixCodec();
+    private boolean hasPrevious = false;
+    private int sinceKeyframe = 0;
+    private long drops = 0;
+    private int length = 0;
+    private boolean hasFix = false;
+
+    /**
+     * @param keyframeInterval the number of fixes between keyframes.
+     */
+    public DeltaCodec(int keyframeInterval) {
+        if (keyframeInterval < 1)
+            throw new IllegalArgumentException("Keyframe interval must be at least 1");
+
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Encodes a frame as a keyframe or as a delta with the previous one.
+     *
+     * @param frame  the array holding a valid {@link FixCodec} frame.
+     * @param offset the offset of the frame in {@code frame}.
+     * @param drops  the number of records dropped for the client so far. A keyframe is sent when
+     *               it changed since the last call.
+     * @return the length of the record, available through {@link #getBuffer()}.
+     */
+    public int encode(byte[] frame, int offset, long drops) {
+        int quality = FixCodec.readFields(frame, offset, fields);
+
+        if (!hasPrevious || drops != this.drops || sinceKeyframe >= keyframeInterval - 1) {
+            System.arraycopy(frame, offset, buffer, 0, FixCodec.LENGTH);
+            length = FixCodec.LENGTH;
+            sinceKeyframe = 0;
+        } else {
+            buffer[0] = FixCodec.MAGIC_0;
+            buffer[1] = MAGIC_DELTA;
+            buffer[3] = (byte) previous[0];
+            buffer[4] = (byte) quality;
+            length = HEADER_LENGTH;
+
+            /* Sequence numbers wrap around as unsigned 32 bit numbers. */
+            putVarint((int) (fields[0] - previous[0]));
+            for (int i = 1; i < FixCodec.FIELDS; i++)
+                putVarint(fields[i] - previous[i]);
+
+            buffer[2] = (byte) (length - HEADER_LENGTH);
+            sinceKeyframe++;
+        }
+
+        System.arraycopy(fields, 0, previous, 0, FixCodec.FIELDS);
+        hasPrevious = true;
+        this.drops = drops;
+
+        return length;
+    }
+
+    /**
+     * @return the array the record is encoded into. Only the first {@link #length()} bytes are
+     * valid.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the length of the last encoded record.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Decodes the next record of a stream. Bytes that don't start a record are skipped one at a
+     * time, until the stream is in sync again.
+     *
+     * @param data   the array holding the stream.
+     * @param offset the offset of the next record in {@code data}.
+     * @param length the number of bytes available from {@code offset}.
+     * @return the number of bytes used, including the trailing {@code "\r\n"}, or 0 if more data
+     * is needed. Check {@link #hasFix()} to know whether they held a fix.
+     */
+    public int decode(byte[] data, int offset, int length) {
+        hasFix = false;
+
+        if (length < HEADER_LENGTH)
+            return 0;
+
+        if (FixCodec.isFrame(data, offset, length)) {
+            if (length < FixCodec.FRAME_LENGTH)
+                return 0;
+
+            if (!fix.decode(data, offset, length)) {
+                hasPrevious = false;
+                return 1;
+            }
+
+            FixCodec.readFields(data, offset, previous);
+            hasPrevious = true;
+            hasFix = true;
+            return FixCodec.FRAME_LENGTH;
+        }
+
+        if (data[offset] != FixCodec.MAGIC_0 || data[offset + 1] != MAGIC_DELTA) {
+            hasPrevious = false;
+            return 1;
+        }
+
+        int size = HEADER_LENGTH + (data[offset + 2] & 0xFF) + 2;
+        if (length < size)
+            return 0;
+
+        if (!hasPrevious || data[offset + 3] != (byte) previous[0])
+            return size;
+
+        int index = offset + HEADER_LENGTH;
+        int end = offset + size - 2;
+        for (int i = 0; i < FixCodec.FIELDS; i++) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+
+            do {
+                if (index == end) {
+                    hasPrevious = false;
+                    return size;
+                }
+
+                b = data[index++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            fields[i] = previous[i] + ((value >>> 1) ^ -(value & 1));
+        }
+        fields[0] &= 0xFFFFFFFFL;
+
+        System.arraycopy(fields, 0, previous, 0, FixCodec.FIELDS);
+        fix.encodeFields(fields, data[offset + 4] & 0xFF);
+        fix.decode(fix.getBuffer(), 0, FixCodec.LENGTH);
+        hasFix = true;
+
+        return size;
+    }
+
+    /**
+     * @return {@code true} if the last decoded record held a fix.
+     */
+    public boolean hasFix() {
+        return hasFix;
+    }
+
+    /**
+     * @return the codec holding the fix of the last decoded record, if {@link #hasFix()}.
+     */
+    public FixCodec getFix() {
+        return fix;
+    }
+
+    private void putVarint(long value) {
+        long zigZag = (value << 1) ^ (value >> 63);
+
+        while ((zigZag & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((zigZag & 0x7F) | 0x80);
+            zigZag >>>= 7;
+        }
+        buffer[length++] = (byte) zigZag;
+    }
+}
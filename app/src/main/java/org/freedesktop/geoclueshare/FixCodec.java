@@ -0,0 +1,316 @@
+package org.freedesktop.geoclueshare;
+
+import java.util.zip.CRC32;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code FixCodec} encodes and decodes fixes as fixed-width binary frames, for clients that would
+ * rather not format and parse GGA sentences. A frame carries the same fields as a GGA sentence
+ * plus the accuracy, in half the bytes.
+ * <p>All numbers are little-endian:</p>
+ * <pre>
+ *  0  2  magic, 0xA5 'G'
+ *  2  1  version, 1
+ *  3  1  fix quality, as in GGA
+ *  4  4  sequence number, unsigned
+ *  8  8  UTC time of the fix in milliseconds since the epoch
+ * 16  4  latitude in 1e-7 degrees
+ * 20  4  longitude in 1e-7 degrees
+ * 24  4  altitude in millimeters, or 0x80000000 if unknown
+ * 28  2  accuracy in centimeters, unsigned, at most 65535
+ * 30  2  HDOP in hundredths, unsigned, at most 65535
+ * 32  4  CRC-32 of the bytes 0 to 31
+ * 36  2  "\r\n"
+ * </pre>
+ * <p>The trailing {@code "\r\n"} isn't encoded, it is appended by {@link BroadcastBuffer} like for
+ * sentences, so frames go through the same path to the clients.</p>
+ * <p>A codec is not thread safe. The encoded frame is valid until the next call to
+ * {@link #encode}, the decoded fields until the next call to {@link #decode}.</p>
+ */
+public class FixCodec {
+
+    /**
+     * The length of an encoded frame, without the trailing {@code "\r\n"}.
+     */
+    public static final int LENGTH = 36;
+
+    /**
+     * The length of a frame as it is sent, with the trailing {@code "\r\n"}.
+     */
+    public static final int FRAME_LENGTH = LENGTH + 2;
+
+    /**
+     * The version of the frame layout.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The fix quality of a fix from the GPS.
+     */
+    public static final int QUALITY_GPS = 1;
+
+    /**
+     * The fix quality of a fix estimated by dead reckoning, see {@link DeadReckoner}.
+     */
+    public static final int QUALITY_ESTIMATED = 6;
+
+    /**
+     * The number of raw values of a frame, see {@link #readFields}.
+     */
+    static final int FIELDS = 7;
+
+    /**
+     * The first byte of every frame, and of the records of {@link DeltaCodec}.
+     */
+    static final byte MAGIC_0 = (byte) 0xA5;
+
+    private static final byte MAGIC_1 = 'G';
+    private static final int NO_ALTITUDE = Integer.MIN_VALUE;
+    private static final int CRC_OFFSET = 32;
+    private static final double SCALE = 1e7;
+
+    private final byte[] buffer = new byte[LENGTH];
+    private final CRC32 crc = new CRC32();
+    private int nextSequence = 0;
+
+    private int quality;
+    private long sequence;
+    private long time;
+    private double latitude;
+    private double longitude;
+    private boolean hasAltitude;
+    private double altitude;
+    private double accuracy;
+    private double hdop;
+
+    /**
+     * Encodes a fix into a frame with the next sequence number.
+     *
+     * @param time        UTC time of the fix in milliseconds since the epoch.
+     * @param latitude    latitude in degrees.
+     * @param longitude   longitude in degrees.
+     * @param hdop        horizontal dilution of precision.
+     * @param accuracy    accuracy in meters.
+     * @param hasAltitude whether {@code altitude} is known.
+     * @param altitude    altitude in meters.
+     * @param quality     the fix quality, e.g. {@link #QUALITY_GPS}.
+     * @return the length of the encoded frame, {@link #LENGTH}.
+     */
+    public int encode(long time, double latitude, double longitude, double hdop, double accuracy,
+                      boolean hasAltitude, double altitude, int quality) {
+        return encode(nextSequence++, time, latitude, longitude, hdop, accuracy, hasAltitude,
+                altitude, quality);
+    }
+
+    /**
+     * Encodes a fix into a frame with a given sequence number, e.g. one of
+     * {@link FixHistory#nextSequence()} so that the frames of several codecs sent to the same
+     * clients are numbered in a single sequence.
+     *
+     * @param sequence    the sequence number.
+     * @param time        UTC time of the fix in milliseconds since the epoch.
+     * @param latitude    latitude in degrees.
+     * @param longitude   longitude in degrees.
+     * @param hdop        horizontal dilution of precision.
+     * @param accuracy    accuracy in meters.
+     * @param hasAltitude whether {@code altitude} is known.
+     * @param altitude    altitude in meters.
+     * @param quality     the fix quality, e.g. {@link #QUALITY_GPS}.
+     * @return the length of the encoded frame, {@link #LENGTH}.
+     */
+    public int encode(int sequence, long time, double latitude, double longitude, double hdop,
+                      double accuracy, boolean hasAltitude, double altitude, int quality) {
+        return write(sequence, time, (int) Math.round(latitude * SCALE),
+                (int) Math.round(longitude * SCALE),
+                hasAltitude ? (int) Math.round(altitude * 1000) : NO_ALTITUDE,
+                unsigned(accuracy * 100), unsigned(hdop * 100), quality);
+    }
+
+    /**
+     * Encodes a frame from the raw values of {@link #readFields}, keeping their sequence number.
+     *
+     * @param fields  the {@link #FIELDS} raw values.
+     * @param quality the fix quality.
+     * @return the length of the encoded frame, {@link #LENGTH}.
+     */
+    int encodeFields(long[] fields, int quality) {
+        return write((int) fields[0], fields[1], (int) fields[2], (int) fields[3],
+                (int) fields[4], (int) fields[5], (int) fields[6], quality);
+    }
+
+    /**
+     * Reads the raw values of a frame, as they are stored: sequence number, time, latitude,
+     * longitude, altitude, accuracy and HDOP. The frame is not checked.
+     *
+     * @param data   the array holding the frame.
+     * @param offset the offset of the frame in {@code data}.
+     * @param fields where to store the {@link #FIELDS} values.
+     * @return the fix quality.
+     */
+    static int readFields(byte[] data, int offset, long[] fields) {
+        fields[0] = getInt(data, offset + 4) & 0xFFFFFFFFL;
+        fields[1] = (getInt(data, offset + 8) & 0xFFFFFFFFL)
+                | ((long) getInt(data, offset + 12) << 32);
+        fields[2] = getInt(data, offset + 16);
+        fields[3] = getInt(data, offset + 20);
+        fields[4] = getInt(data, offset + 24);
+        fields[5] = getShort(data, offset + 28);
+        fields[6] = getShort(data, offset + 30);
+
+        return data[offset + 3] & 0xFF;
+    }
+
+    /**
+     * Checks whether a frame starts at an offset, without checking its CRC.
+     */
+    static boolean isFrame(byte[] data, int offset, int length) {
+        return length >= 3 && data[offset] == MAGIC_0 && data[offset + 1] == MAGIC_1
+                && data[offset + 2] == VERSION;
+    }
+
+    /**
+     * @return the array the frame is encoded into. Only the first {@link #LENGTH} bytes are valid.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Decodes a frame. The trailing {@code "\r\n"} is not looked at.
+     *
+     * @param data   the array holding the frame.
+     * @param offset the offset of the frame in {@code data}.
+     * @param length the number of bytes available from {@code offset}.
+     * @return {@code true} if the frame was decoded, {@code false} if it is too short, of another
+     * version or its CRC doesn't match.
+     */
+    public boolean decode(byte[] data, int offset, int length) {
+        if (length < LENGTH || !isFrame(data, offset, length))
+            return false;
+
+        crc.reset();
+        crc.update(data, offset, CRC_OFFSET);
+        if ((int) crc.getValue() != getInt(data, offset + CRC_OFFSET))
+            return false;
+
+        int altitude = getInt(data, offset + 24);
+
+        this.quality = data[offset + 3] & 0xFF;
+        this.sequence = getInt(data, offset + 4) & 0xFFFFFFFFL;
+        this.time = (getInt(data, offset + 8) & 0xFFFFFFFFL)
+                | ((long) getInt(data, offset + 12) << 32);
+        this.latitude = getInt(data, offset + 16) / SCALE;
+        this.longitude = getInt(data, offset + 20) / SCALE;
+        this.hasAltitude = altitude != NO_ALTITUDE;
+        this.altitude = hasAltitude ? altitude / 1000.0 : 0;
+        this.accuracy = getShort(data, offset + 28) / 100.0;
+        this.hdop = getShort(data, offset + 30) / 100.0;
+
+        return true;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public boolean hasAltitude() {
+        return hasAltitude;
+    }
+
+    public double getAltitude() {
+        return altitude;
+    }
+
+    public double getAccuracy() {
+        return accuracy;
+    }
+
+    public double getHdop() {
+        return hdop;
+    }
+
+    private int write(int sequence, long time, int latitude, int longitude, int altitude,
+                      int accuracy, int hdop, int quality) {
+        buffer[0] = MAGIC_0;
+        buffer[1] = MAGIC_1;
+        buffer[2] = VERSION;
+        buffer[3] = (byte) quality;
+        putInt(4, sequence);
+        putInt(8, (int) time);
+        putInt(12, (int) (time >>> 32));
+        putInt(16, latitude);
+        putInt(20, longitude);
+        putInt(24, altitude);
+        putShort(28, accuracy);
+        putShort(30, hdop);
+
+        crc.reset();
+        crc.update(buffer, 0, CRC_OFFSET);
+        putInt(CRC_OFFSET, (int) crc.getValue());
+
+        return LENGTH;
+    }
+
+    private static int unsigned(double value) {
+        if (!(value > 0))
+            return 0;
+
+        return (int) Math.min(Math.round(value), 0xFFFF);
+    }
+
+    private void putInt(int index, int value) {
+        buffer[index] = (byte) value;
+        buffer[index + 1] = (byte) (value >> 8);
+        buffer[index + 2] = (byte) (value >> 16);
+        buffer[index + 3] = (byte) (value >> 24);
+    }
+
+    private void putShort(int index, int value) {
+        buffer[index] = (byte) value;
+        buffer[index + 1] = (byte) (value >> 8);
+    }
+
+    private static int getInt(byte[] data, int index) {
+        return (data[index] & 0xFF) | (data[index + 1] & 0xFF) << 8
+                | (data[index + 2] & 0xFF) << 16 | (data[index + 3] & 0xFF) << 24;
+    }
+
+    private static int getShort(byte[] data, int index) {
+        return (data[index] & 0xFF) | (data[index + 1] & 0xFF) << 8;
+    }
+}
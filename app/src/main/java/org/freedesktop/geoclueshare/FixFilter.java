@@ -0,0 +1,378 @@
+package org.freedesktop.geoclueshare;
+
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code FixFilter} fuses fixes from several providers, e.g. GPS and network, into one smoothed
+ * position with an honest accuracy. It is a constant-velocity Kalman filter, run separately on
+ * the east, north and up axes of a local plane around the first fix. Every fix is weighted by its
+ * own accuracy, so coarse network fixes keep the estimate alive indoors without pulling a good
+ * GPS track off course.
+ * <p>Fixes are added with {@link #update}, and the estimate is read at any time, typically at a
+ * steady cadence, with {@link #predict(long)} and the getters. Between fixes the position moves
+ * on with the estimated velocity and the accuracy degrades.</p>
+ * <p>Times are those of a monotonic clock, such as {@code SystemClock.elapsedRealtime()}, taken
+ * when each fix is received: the times of the fixes themselves come from different clocks, the
+ * GPS for GPS fixes and the phone for network ones, and can't be compared.</p>
+ * <p>The state is a handful of doubles per axis, nothing is allocated after construction. A
+ * filter is not thread safe. It has no Android dependencies, so that it can be tested with
+ * recorded traces.</p>
+ */
+public class FixFilter {
+
+    /**
+     * The default standard deviation of the acceleration, in m/s^2, which lets the velocity
+     * follow a walk or a drive without trusting single fixes too much.
+     */
+    public static final double DEFAULT_ACCELERATION = 0.5;
+
+    /**
+     * The longest time without fixes in milliseconds after which the next fix starts over,
+     * instead of being fused with a stale estimate.
+     */
+    public static final long MAX_GAP = 5 * 60 * 1000;
+
+    /**
+     * The accuracy in meters assumed for a GPS fix with an HDOP of 1, used to turn accuracies
+     * into HDOP.
+     */
+    public static final double UERE = 5.0;
+
+    private static final double EARTH_RADIUS = 6371008.8;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+    private static final double INITIAL_SPEED = 10.0;
+    private static final double MAX_OFFSET = 10000.0;
+    private static final int EAST = 0;
+    private static final int NORTH = 1;
+    private static final int UP = 2;
+
+    private final double q;
+
+    /* Per axis: position, velocity and their covariance. */
+    private final double[] position = new double[3];
+    private final double[] velocity = new double[3];
+    private final double[] p00 = new double[3];
+    private final double[] p01 = new double[3];
+    private final double[] p11 = new double[3];
+
+    private boolean initialized = false;
+    private boolean hasAltitude = false;
+    private long time;
+    private double originLatitude;
+    private double originLongitude;
+    private double metersPerDegreeEast;
+    private int fixes = 0;
+
+    private double estimatedLatitude;
+    private double estimatedLongitude;
+    private double estimatedAltitude;
+    private double estimatedAccuracy;
+    private double estimatedSpeed;
+
+    /**
+     * Creates a filter with the {@link #DEFAULT_ACCELERATION}.
+     */
+    public FixFilter() {
+        this(DEFAULT_ACCELERATION);
+    }
+
+    /**
+     * @param acceleration the standard deviation of the acceleration in m/s^2, how quickly the
+     *                     velocity is allowed to change.
+     */
+    public FixFilter(double acceleration) {
+        if (!(acceleration > 0))
+            throw new IllegalArgumentException("Invalid acceleration: " + acceleration);
+
+        this.q = acceleration * acceleration;
+    }
+
+    /**
+     * Fuses a fix. Fixes that are not received after the last fused one are ignored, as are
+     * fixes without a valid position or accuracy.
+     *
+     * @param time        the time the fix was received, in milliseconds of a monotonic clock.
+     * @param latitude    latitude in degrees.
+     * @param longitude   longitude in degrees.
+     * @param accuracy    accuracy in meters, the radius of 68% confidence.
+     * @param hasAltitude whether {@code altitude} is known.
+     * @param altitude    altitude in meters.
+     * @return {@code true} if the fix was fused.
+     */
+    public boolean update(long time, double latitude, double longitude, double accuracy,
+                          boolean hasAltitude, double altitude) {
+        if (!(Math.abs(latitude) <= 90) || !(Math.abs(longitude) <= 180) || !(accuracy > 0)
+                || Double.isInfinite(accuracy))
+            return false;
+
+        if (initialized && time <= this.time)
+            return false;
+
+        if (!initialized || time - this.time > MAX_GAP) {
+            reset();
+            setOrigin(latitude, longitude);
+            initialized = true;
+            this.time = time;
+        } else {
+            double dt = (time - this.time) / 1000.0;
+            for (int axis = 0; axis < 3; axis++)
+                advance(axis, dt);
+            this.time = time;
+        }
+
+        /* An accuracy is a radius, split evenly between the two horizontal axes. */
+        double horizontal = accuracy * accuracy / 2;
+        correct(EAST, wrap(longitude - originLongitude) * metersPerDegreeEast, horizontal);
+        correct(NORTH, (latitude - originLatitude) * METERS_PER_DEGREE, horizontal);
+
+        if (hasAltitude && !Double.isNaN(altitude) && !Double.isInfinite(altitude)) {
+            /* Altitudes are usually worse than positions, and their accuracy isn't given. */
+            double vertical = 2.25 * accuracy * accuracy;
+            if (this.hasAltitude) {
+                correct(UP, altitude, vertical);
+            } else {
+                initialize(UP, altitude, vertical);
+                this.hasAltitude = true;
+            }
+        }
+
+        /* The plane is only flat near its origin. */
+        if (Math.abs(position[EAST]) > MAX_OFFSET || Math.abs(position[NORTH]) > MAX_OFFSET)
+            recenter();
+
+        fixes++;
+        return true;
+    }
+
+    /**
+     * Computes the estimate at a time, without changing the state of the filter.
+     *
+     * @param time the time in milliseconds, on the clock of {@link #update}. Times before the
+     *             last fused fix give the estimate at that fix.
+     * @return {@code false} if no fix has been fused yet, or the last one is older than
+     * {@link #MAX_GAP}.
+     */
+    public boolean predict(long time) {
+        if (!initialized || time - this.time > MAX_GAP)
+            return false;
+
+        double dt = Math.max(0, time - this.time) / 1000.0;
+        double east = position[EAST] + velocity[EAST] * dt;
+        double north = position[NORTH] + velocity[NORTH] * dt;
+
+        estimatedLatitude = originLatitude + north / METERS_PER_DEGREE;
+        estimatedLongitude = wrap(originLongitude + east / metersPerDegreeEast);
+        estimatedLatitude = Math.max(-90, Math.min(90, estimatedLatitude));
+
+        estimatedAltitude = position[UP] + velocity[UP] * dt;
+        estimatedAccuracy = Math.sqrt(predictedVariance(EAST, dt) + predictedVariance(NORTH, dt));
+        estimatedSpeed = Math.sqrt(velocity[EAST] * velocity[EAST]
+                + velocity[NORTH] * velocity[NORTH]);
+
+        return true;
+    }
+
+    /**
+     * Forgets every fix.
+     */
+    public void reset() {
+        for (int axis = 0; axis < 3; axis++) {
+            position[axis] = 0;
+            velocity[axis] = 0;
+            p00[axis] = 0;
+            p01[axis] = 0;
+            p11[axis] = 0;
+        }
+
+        initialized = false;
+        hasAltitude = false;
+        fixes = 0;
+    }
+
+    /**
+     * @return the time the last fused fix was received, on the clock of {@link #update}, or 0 if
+     * there is none.
+     */
+    public long getTime() {
+        return initialized ? time : 0;
+    }
+
+    /**
+     * @return the number of fixes fused since the filter started over.
+     */
+    public int getFixCount() {
+        return fixes;
+    }
+
+    /**
+     * @return the latitude estimated by the last {@link #predict(long)}, in degrees.
+     */
+    public double getLatitude() {
+        return estimatedLatitude;
+    }
+
+    /**
+     * @return the longitude estimated by the last {@link #predict(long)}, in degrees.
+     */
+    public double getLongitude() {
+        return estimatedLongitude;
+    }
+
+    /**
+     * @return whether a fix with an altitude has been fused.
+     */
+    public boolean hasAltitude() {
+        return hasAltitude;
+    }
+
+    /**
+     * @return the altitude estimated by the last {@link #predict(long)}, in meters.
+     */
+    public double getAltitude() {
+        return estimatedAltitude;
+    }
+
+    /**
+     * @return the accuracy of the last {@link #predict(long)} in meters, the radius of 68%
+     * confidence.
+     */
+    public double getAccuracy() {
+        return estimatedAccuracy;
+    }
+
+    /**
+     * @return the horizontal speed estimated by the last {@link #predict(long)}, in m/s.
+     */
+    public double getSpeed() {
+        return estimatedSpeed;
+    }
+
+    /**
+     * Turns an accuracy into the horizontal dilution of precision of a GGA sentence, assuming
+     * {@link #UERE}.
+     *
+     * @param accuracy accuracy in meters.
+     * @return the HDOP, between 0.5 and 99.9.
+     */
+    public static double getHdop(double accuracy) {
+        if (!(accuracy > 0))
+            return 99.9;
+
+        return Math.max(0.5, Math.min(accuracy / UERE, 99.9));
+    }
+
+    /**
+     * Turns an accuracy into the accuracy level Geoclue expects in the {@code accuracy} TXT
+     * record of the service.
+     *
+     * @param accuracy accuracy in meters.
+     * @return {@code "exact"}, {@code "street"}, {@code "neighborhood"}, {@code "city"} or
+     * {@code "country"}.
+     */
+    public static String getAccuracyLevel(double accuracy) {
+        if (accuracy <= 50)
+            return "exact";
+        else if (accuracy <= 1000)
+            return "street";
+        else if (accuracy <= 5000)
+            return "neighborhood";
+        else if (accuracy <= 20000)
+            return "city";
+        else
+            return "country";
+    }
+
+    private void setOrigin(double latitude, double longitude) {
+        originLatitude = latitude;
+        originLongitude = longitude;
+        /* Never 0, even at the poles. */
+        metersPerDegreeEast = METERS_PER_DEGREE
+                * Math.max(Math.cos(Math.toRadians(latitude)), 1e-6);
+    }
+
+    /**
+     * Moves the origin of the plane to the current position, keeping the state.
+     */
+    private void recenter() {
+        double latitude = originLatitude + position[NORTH] / METERS_PER_DEGREE;
+        double longitude = originLongitude + position[EAST] / metersPerDegreeEast;
+
+        setOrigin(Math.max(-90, Math.min(90, latitude)), wrap(longitude));
+        position[EAST] = 0;
+        position[NORTH] = 0;
+    }
+
+    /**
+     * @return a longitude or difference of longitudes brought back between -180 and 180.
+     */
+    private static double wrap(double longitude) {
+        if (longitude > 180)
+            return longitude - 360;
+        else if (longitude < -180)
+            return longitude + 360;
+        return longitude;
+    }
+
+    private void initialize(int axis, double z, double variance) {
+        position[axis] = z;
+        velocity[axis] = 0;
+        p00[axis] = variance;
+        p01[axis] = 0;
+        p11[axis] = INITIAL_SPEED * INITIAL_SPEED;
+    }
+
+    /**
+     * Moves an axis forward in time, with the process noise of a random acceleration.
+     */
+    private void advance(int axis, double dt) {
+        position[axis] += velocity[axis] * dt;
+        p00[axis] = predictedVariance(axis, dt);
+        p01[axis] += dt * p11[axis] + q * dt * dt / 2;
+        p11[axis] += q * dt;
+    }
+
+    private double predictedVariance(int axis, double dt) {
+        return p00[axis] + dt * (2 * p01[axis] + dt * p11[axis]) + q * dt * dt * dt / 3;
+    }
+
+    /**
+     * Corrects an axis with a measured position. The first measurement of an axis since the
+     * filter started over initializes it.
+     */
+    private void correct(int axis, double z, double variance) {
+        if (fixes == 0) {
+            initialize(axis, z, variance);
+            return;
+        }
+
+        double s = p00[axis] + variance;
+        double k0 = p00[axis] / s;
+        double k1 = p01[axis] / s;
+        double innovation = z - position[axis];
+
+        position[axis] += k0 * innovation;
+        velocity[axis] += k1 * innovation;
+        p11[axis] -= k1 * p01[axis];
+        p00[axis] -= k0 * p00[axis];
+        p01[axis] -= k0 * p01[axis];
+    }
+}
@@ -0,0 +1,212 @@
+package org.freedesktop.geoclueshare;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code FixHistory} keeps the most recent fixes, so that a client can be given a position as
+ * soon as it connects instead of waiting for the next fix.
+ * <p>The fixes are stored in preallocated parallel arrays used as a ring, adding a fix doesn't
+ * allocate anything. When the ring is full the oldest fix is overwritten.</p>
+ * <p>Fixes are read back by age, 0 being the latest, by encoding them straight into a
+ * {@link GgaEncoder} or {@link FixCodec}.</p>
+ * <p>It also numbers the {@link FixCodec} frames sent to the clients: every fix added takes the
+ * next sequence number and keeps it when it is replayed, and frames that are not kept, like
+ * estimated fixes, take theirs from {@link #nextSequence()}. Whatever codec encodes them, the
+ * frames a client receives are numbered in a single sequence.</p>
+ * <p>A history is thread safe: fixes are added by the location thread and read by the network
+ * threads.</p>
+ */
+public class FixHistory {
+
+    private final long[] times;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final double[] hdops;
+    private final double[] accuracies;
+    private final boolean[] hasAltitudes;
+    private final double[] altitudes;
+    private final int[] qualities;
+    private final int[] sequences;
+    private int nextSequence = 0;
+    private int next = 0;
+    private int size = 0;
+    private long count = 0;
+
+    /**
+     * @param capacity the number of fixes kept.
+     */
+    public FixHistory(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be at least 1");
+
+        times = new long[capacity];
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        hdops = new double[capacity];
+        accuracies = new double[capacity];
+        hasAltitudes = new boolean[capacity];
+        altitudes = new double[capacity];
+        qualities = new int[capacity];
+        sequences = new int[capacity];
+    }
+
+    /**
+     * Adds a fix. Fixes without a valid position are ignored.
+     *
+     * @param time        UTC time of the fix in milliseconds since the epoch.
+     * @param latitude    latitude in degrees.
+     * @param longitude   longitude in degrees.
+     * @param hdop        horizontal dilution of precision.
+     * @param accuracy    accuracy in meters.
+     * @param hasAltitude whether {@code altitude} is known.
+     * @param altitude    altitude in meters.
+     * @param quality     the fix quality, as in GGA.
+     * @return the sequence number of the fix as an unsigned 32 bit number, to encode it with, or
+     * -1 if it was not added.
+     */
+    public synchronized long add(long time, double latitude, double longitude, double hdop,
+                                 double accuracy, boolean hasAltitude, double altitude,
+                                 int quality) {
+        if (!(Math.abs(latitude) <= 90) || !(Math.abs(longitude) <= 180))
+            return -1;
+
+        times[next] = time;
+        latitudes[next] = latitude;
+        longitudes[next] = longitude;
+        hdops[next] = hdop;
+        accuracies[next] = accuracy;
+        hasAltitudes[next] = hasAltitude;
+        altitudes[next] = altitude;
+        qualities[next] = quality;
+        int sequence = nextSequence++;
+        sequences[next] = sequence;
+
+        next = (next + 1) % times.length;
+        if (size < times.length)
+            size++;
+        count++;
+
+        return sequence & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Takes a sequence number for a frame that is not added to the history.
+     *
+     * @return the next sequence number.
+     */
+    public synchronized int nextSequence() {
+        return nextSequence++;
+    }
+
+    /**
+     * @return the number of fixes kept.
+     */
+    public int capacity() {
+        return times.length;
+    }
+
+    /**
+     * @return the number of fixes available.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of fixes ever added. The fix added as number {@code n}, counting from
+     * 0, can be read with {@link #read(long, double[])} until {@link #capacity()} more are added.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Copies a fix, by the order in which it was added.
+     *
+     * @param number the number of the fix, see {@link #getCount()}.
+     * @param fix    receives the latitude, longitude, HDOP, accuracy, altitude or {@code NaN} if
+     *               it isn't known, and fix quality.
+     * @return the time of the fix in milliseconds since the epoch, or 0 if the fix has been
+     * overwritten or not added yet.
+     */
+    public synchronized long read(long number, double[] fix) {
+        if (number < count - size || number >= count)
+            return 0;
+
+        int i = (int) (number % times.length);
+        fix[0] = latitudes[i];
+        fix[1] = longitudes[i];
+        fix[2] = hdops[i];
+        fix[3] = accuracies[i];
+        fix[4] = hasAltitudes[i] ? altitudes[i] : Double.NaN;
+        fix[5] = qualities[i];
+
+        return times[i];
+    }
+
+    /**
+     * @param age the age of the fix, 0 for the latest one.
+     * @return the time of the fix in milliseconds since the epoch, or 0 if there is no fix of
+     * that age.
+     */
+    public synchronized long getTime(int age) {
+        if (age < 0 || age >= size)
+            return 0;
+
+        return times[index(age)];
+    }
+
+    /**
+     * Encodes a fix as a GGA sentence, with the fix quality it was added with.
+     *
+     * @param age     the age of the fix, 0 for the latest one.
+     * @param encoder the encoder to use.
+     * @return the length of the sentence, or 0 if there is no fix of that age.
+     */
+    public synchronized int encodeGga(int age, GgaEncoder encoder) {
+        if (age < 0 || age >= size)
+            return 0;
+
+        int i = index(age);
+        return encoder.encode(times[i], latitudes[i], longitudes[i], hdops[i], hasAltitudes[i],
+                altitudes[i], qualities[i]);
+    }
+
+    /**
+     * Encodes a fix as a {@link FixCodec} frame.
+     *
+     * @param age   the age of the fix, 0 for the latest one.
+     * @param codec the codec to use.
+     * @return the length of the frame, or 0 if there is no fix of that age.
+     */
+    public synchronized int encodeFrame(int age, FixCodec codec) {
+        if (age < 0 || age >= size)
+            return 0;
+
+        int i = index(age);
+        return codec.encode(sequences[i], times[i], latitudes[i], longitudes[i], hdops[i],
+                accuracies[i], hasAltitudes[i], altitudes[i], qualities[i]);
+    }
+
+    private int index(int age) {
+        return (next - 1 - age + times.length) % times.length;
+    }
+}
@@ -0,0 +1,54 @@
+package org.freedesktop.geoclueshare;
+
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code FixSource} produces the NMEA sentences that are shared, e.g. the GPS of the device or
+ * a recorded log replayed by {@link NmeaFileSource}. Whatever the source, its sentences go
+ * through the same {@link NmeaRelay} to the clients.
+ */
+public interface FixSource {
+
+    /**
+     * Receives the sentences of a source, on the thread of the source. It has the signature of
+     * {@code GpsStatus.NmeaListener}, so the GPS can feed the same listener.
+     */
+    interface Listener {
+        /**
+         * @param timestamp the time the sentence was produced, in milliseconds since the epoch.
+         * @param nmea      the sentence, optionally followed by line terminators.
+         */
+        void onNmeaReceived(long timestamp, String nmea);
+    }
+
+    /**
+     * Starts producing sentences.
+     *
+     * @param listener receives the sentences until {@link #stop()} is called.
+     */
+    void start(Listener listener);
+
+    /**
+     * Stops producing sentences. The listener isn't called anymore once this returns.
+     */
+    void stop();
+}
@@ -0,0 +1,242 @@
+package org.freedesktop.geoclueshare;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code GgaEncoder} writes {@code $GPGGA} sentences straight into a reusable byte array, without
+ * going through {@link String#format} or {@link java.text.SimpleDateFormat}. The checksum is
+ * computed while the sentence is written.
+ * <p>The output is the same as formatting the sentence with {@code String.format} in a locale that
+ * uses {@code '.'} as decimal separator. Numbers are rounded half up.</p>
+ * <p>An encoder is not thread safe. The encoded sentence is valid until the next call to
+ * {@link #encode}.</p>
+ */
+public class GgaEncoder {
+
+    /**
+     * The maximum length of an encoded sentence, without the trailing {@code "\r\n"}.
+     */
+    public static final int MAX_LENGTH = 96;
+
+    private static final byte[] HEX = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+    private static final byte[] PREFIX = {'$', 'G', 'P', 'G', 'G', 'A', ','};
+    private static final byte[] NO_SATELLITES = {',', ','};
+    private static final byte[] UNITS = {',', 'M', ',', ',', 'M', ',', ','};
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    private final byte[] buffer = new byte[MAX_LENGTH];
+    private int length = 0;
+    private int checksum = 0;
+
+    /**
+     * Encodes a GGA sentence of a GPS fix, with the time in whole seconds.
+     *
+     * @param time        UTC time of the fix in milliseconds since the epoch.
+     * @param latitude    latitude in degrees.
+     * @param longitude   longitude in degrees.
+     * @param hdop        horizontal dilution of precision.
+     * @param hasAltitude whether {@code altitude} is known.
+     * @param altitude    altitude in meters.
+     * @return the length of the encoded sentence.
+     */
+    public int encode(long time, double latitude, double longitude, double hdop,
+                      boolean hasAltitude, double altitude) {
+        return encode(time, latitude, longitude, hdop, hasAltitude, altitude, 1, false);
+    }
+
+    /**
+     * Encodes a GGA sentence with the given fix quality and the time in hundredths of a second,
+     * so that sentences sent several times a second can be told apart, e.g.
+     * {@code 175519.25}.
+     *
+     * @param time        UTC time of the fix in milliseconds since the epoch.
+     * @param latitude    latitude in degrees.
+     * @param longitude   longitude in degrees.
+     * @param hdop        horizontal dilution of precision.
+     * @param hasAltitude whether {@code altitude} is known.
+     * @param altitude    altitude in meters.
+     * @param quality     the fix quality, from 0 to 9, e.g. {@link FixCodec#QUALITY_ESTIMATED}.
+     * @return the length of the encoded sentence.
+     */
+    public int encode(long time, double latitude, double longitude, double hdop,
+                      boolean hasAltitude, double altitude, int quality) {
+        return encode(time, latitude, longitude, hdop, hasAltitude, altitude, quality, true);
+    }
+
+    private int encode(long time, double latitude, double longitude, double hdop,
+                       boolean hasAltitude, double altitude, int quality, boolean fraction) {
+        if (quality < 0 || quality > 9)
+            throw new IllegalArgumentException("Invalid fix quality: " + quality);
+
+        length = 0;
+        checksum = 0;
+
+        put(PREFIX);
+
+        long millis = time % MILLIS_PER_DAY;
+        if (millis < 0)
+            millis += MILLIS_PER_DAY;
+        int seconds = (int) (millis / 1000);
+        putDigits(seconds / 3600, 2);
+        putDigits(seconds / 60 % 60, 2);
+        putDigits(seconds % 60, 2);
+        if (fraction) {
+            put((byte) '.');
+            putDigits((int) (millis % 1000 / 10), 2);
+        }
+        put((byte) ',');
+
+        putCoordinate(latitude, 2, 'N', 'S');
+        put((byte) ',');
+        putCoordinate(longitude, 3, 'E', 'W');
+
+        put((byte) ',');
+        put((byte) ('0' + quality));
+        put(NO_SATELLITES);
+        putDecimal(hdop, 1, 0);
+        put((byte) ',');
+
+        if (hasAltitude)
+            putDecimal(altitude, 1, 0);
+
+        put(UNITS);
+
+        /* The checksum covers everything between '$' and '*'. */
+        int sum = checksum ^ '$';
+        buffer[length++] = '*';
+        buffer[length++] = HEX[(sum >> 4) & 0xF];
+        buffer[length++] = HEX[sum & 0xF];
+
+        return length;
+    }
+
+    /**
+     * @return the array the sentence is encoded into. Only the first {@link #length()} bytes are
+     * valid.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the length of the last encoded sentence.
+     */
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * Writes a coordinate as degrees followed by minutes with three decimals and the hemisphere,
+     * e.g. {@code 4807.038,N}.
+     */
+    private void putCoordinate(double value, int degreeDigits, char positive, char negative) {
+        int degrees = (int) value;
+        double minutes = Math.abs((value - degrees) * 60);
+
+        putDigits(Math.abs(degrees), degreeDigits);
+        putDecimal(minutes, 3, 2);
+        put((byte) ',');
+        put((byte) (value >= 0 ? positive : negative));
+    }
+
+    /**
+     * Writes a number with a fixed number of decimals, rounded half up.
+     *
+     * @param value         the number.
+     * @param decimals      the number of digits after the decimal point.
+     * @param integerDigits the minimum number of digits before the decimal point, padded with
+     *                      zeros.
+     */
+    private void putDecimal(double value, int decimals, int integerDigits) {
+        if (Double.isNaN(value)) {
+            put(NAN);
+            return;
+        }
+
+        /* Like String.format, keep the sign of negative numbers that round to zero. */
+        if (value < 0 || (value == 0 && 1 / value < 0)) {
+            put((byte) '-');
+            value = -value;
+        }
+
+        if (Double.isInfinite(value)) {
+            put(INFINITY);
+            return;
+        }
+
+        long scale = 1;
+        for (int i = 0; i < decimals; i++)
+            scale *= 10;
+
+        /*
+         * Formatter rounds the shortest decimal representation of the value, not the binary value
+         * times the scale, e.g. 3.3499999999999996 is 3.3 and not 3.4. That representation is at or
+         * above the tie exactly when the value is at or above the double nearest to the tie.
+         */
+        long scaled = (long) Math.floor(value * scale);
+        if (value >= (2 * scaled + 1) / (2.0 * scale))
+            scaled++;
+        putNumber(scaled / scale, Math.max(integerDigits, 1));
+        put((byte) '.');
+        putDigits((int) (scaled % scale), decimals);
+    }
+
+    private void putNumber(long value, int minDigits) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10)
+            digits++;
+
+        for (int i = digits; i < minDigits; i++)
+            put((byte) '0');
+
+        int end = length + digits;
+        for (int i = end - 1; i >= length; i--) {
+            byte digit = (byte) ('0' + value % 10);
+            buffer[i] = digit;
+            checksum ^= digit;
+            value /= 10;
+        }
+        length = end;
+    }
+
+    private void putDigits(int value, int digits) {
+        putNumber(value, digits);
+    }
+
+    private void put(byte[] bytes) {
+        for (byte b : bytes)
+            put(b);
+    }
+
+    private void put(byte b) {
+        buffer[length++] = b;
+        checksum ^= b;
+    }
+}
@@ -0,0 +1,175 @@
+package org.freedesktop.geoclueshare;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code GpsScheduler} decides how often the GPS is asked for fixes.
+ * <p>The base interval is the shortest one any connected client asked for, see
+ * {@link #setRequestedInterval(long)}. While successive fixes show that the device is not moving,
+ * the interval is doubled every {@link #STATIONARY_FIXES} fixes, up to
+ * {@link #MAX_STATIONARY_INTERVAL}. The first fix that shows movement brings it back to the base
+ * interval.</p>
+ * <p>It has no Android dependencies, so that its decisions can be tested with simulated fixes.</p>
+ */
+public class GpsScheduler {
+
+    /**
+     * The interval used when no client asked for one, in milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    /**
+     * The shortest interval a client can ask for, in milliseconds.
+     */
+    public static final long MIN_INTERVAL = 100;
+
+    /**
+     * The longest interval the scheduler backs off to while the device is stationary, in
+     * milliseconds.
+     */
+    public static final long MAX_STATIONARY_INTERVAL = 16000;
+
+    /**
+     * The number of consecutive stationary fixes after which the interval is doubled.
+     */
+    public static final int STATIONARY_FIXES = 5;
+
+    /**
+     * The speed above which the device is considered moving, in meters per second.
+     */
+    public static final float MOVING_SPEED = 1.0f;
+
+    /**
+     * The smallest distance from the last anchor that counts as movement, in meters. The accuracy
+     * of the fix is used instead when it is worse.
+     */
+    public static final float MOVING_DISTANCE = 10.0f;
+
+    private static final double EARTH_RADIUS = 6371000;
+
+    private long requestedInterval = DEFAULT_INTERVAL;
+    private long interval = DEFAULT_INTERVAL;
+    private int stationaryFixes = 0;
+
+    private boolean hasAnchor = false;
+    private double anchorLatitude;
+    private double anchorLongitude;
+
+    /**
+     * Sets the shortest interval wanted by the connected clients.
+     *
+     * @param requestedInterval the interval in milliseconds, or 0 if no client asked for one.
+     * @return {@code true} if the interval returned by {@link #getInterval()} changed.
+     */
+    public boolean setRequestedInterval(long requestedInterval) {
+        if (requestedInterval <= 0)
+            requestedInterval = DEFAULT_INTERVAL;
+
+        this.requestedInterval = Math.max(requestedInterval, MIN_INTERVAL);
+
+        return update(stationaryFixes);
+    }
+
+    /**
+     * Feeds a fix to the scheduler.
+     *
+     * @param latitude  latitude in degrees.
+     * @param longitude longitude in degrees.
+     * @param accuracy  horizontal accuracy in meters, or 0 if unknown.
+     * @param hasSpeed  whether {@code speed} is known.
+     * @param speed     speed in meters per second.
+     * @return {@code true} if the interval returned by {@link #getInterval()} changed.
+     */
+    public boolean onFix(double latitude, double longitude, float accuracy, boolean hasSpeed,
+                         float speed) {
+        boolean moving = hasSpeed && speed > MOVING_SPEED;
+
+        if (hasAnchor && !moving) {
+            double distance = distance(anchorLatitude, anchorLongitude, latitude, longitude);
+            moving = distance > Math.max(MOVING_DISTANCE, accuracy);
+        }
+
+        if (!hasAnchor || moving) {
+            hasAnchor = true;
+            anchorLatitude = latitude;
+            anchorLongitude = longitude;
+        }
+
+        return update(moving ? 0 : stationaryFixes + 1);
+    }
+
+    /**
+     * Forgets the motion history, e.g. when the GPS is stopped.
+     *
+     * @return {@code true} if the interval returned by {@link #getInterval()} changed.
+     */
+    public boolean reset() {
+        hasAnchor = false;
+
+        return update(0);
+    }
+
+    /**
+     * @return the interval the GPS should be asked for, in milliseconds.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return {@code true} if the scheduler backed off because the device is stationary.
+     */
+    public boolean isBackedOff() {
+        return interval > requestedInterval;
+    }
+
+    private boolean update(int stationaryFixes) {
+        /* Counting further than the last doubling that can matter is pointless. */
+        this.stationaryFixes = Math.min(stationaryFixes, STATIONARY_FIXES * 64);
+
+        long next = requestedInterval;
+        for (int i = STATIONARY_FIXES; i <= this.stationaryFixes; i += STATIONARY_FIXES) {
+            if (next >= MAX_STATIONARY_INTERVAL)
+                break;
+            next *= 2;
+        }
+
+        /* Backing off never makes a client wait longer than the maximum, unless it asked to. */
+        if (next > requestedInterval)
+            next = Math.max(requestedInterval, Math.min(next, MAX_STATIONARY_INTERVAL));
+
+        boolean changed = next != interval;
+        interval = next;
+
+        return changed;
+    }
+
+    /**
+     * Equirectangular approximation of the distance between two points, good enough for the few
+     * meters that matter here.
+     */
+    private static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double x = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat2 - lat1);
+
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS;
+    }
+}
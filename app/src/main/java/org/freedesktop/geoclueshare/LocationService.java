@@ -16,15 +16,14 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.io.File;
+import java.util.List;
 
 /*
  * Copyright (C) 2015 Ankit (Verma)
@@ -58,7 +57,43 @@ public class LocationService extends Service implements LocationListener, GpsSta
     private static final String TAG = "LocationService";
     private LocationManager locationManager;
     private NetworkListener networkListener;
-    private String ggaSentence;
+    private ConnectivityWatcher connectivityWatcher;
+    private final GgaEncoder ggaEncoder = new GgaEncoder();
+    private final FixCodec fixCodec = new FixCodec();
+    private final FixFilter fixFilter = new FixFilter();
+    private final NmeaRelay nmeaRelay = new NmeaRelay(new NmeaRelay.Output() {
+        @Override
+        public int getSubscribedTypes() {
+            return NetworkListener.getSubscribedTypes();
+        }
+
+        @Override
+        public void publish(CharSequence data, int length, int type) {
+            NetworkListener.sendData(data.toString(), type);
+        }
+
+        @Override
+        public void publish(byte[] data, int length, int type) {
+            NetworkListener.sendData(data, length, type);
+        }
+    });
+    private final GpsScheduler gpsScheduler = new GpsScheduler();
+    private FixSource fixSource;
+    private Handler handler;
+    private boolean gpsStarted = false;
+    private long ggaReceived = 0;
+    /* The UTC time of the last GPS fix and when it was received, see utcTime(). */
+    private long gpsTime = 0;
+    private long gpsReceived = 0;
+    /* The time the network provider gave its last fix, in its own clock. */
+    private long networkTime = 0;
+    private long accuracyUpdated = 0;
+    private final Runnable fixTick = new Runnable() {
+        @Override
+        public void run() {
+            emitFix(null);
+        }
+    };
     private NotificationCompat.Builder builder;
 
     /**
@@ -67,19 +102,38 @@ public class LocationService extends Service implements LocationListener, GpsSta
     public static String deviceId;
 
     /**
-     * The that value goes into the `accuracy` feild of mDNS service's TXT record.
+     * The that value goes into the `accuracy` feild of mDNS service's TXT record. It follows the
+     * accuracy of the fused fixes, see {@link FixFilter#getAccuracyLevel(double)}.
      */
     public static String accuracy = "exact";
 
     /**
-     * The minimum time between updates in milliseconds.
+     * A recorded NMEA log to share instead of the GPS, or {@code null}. It is replayed in a loop,
+     * see {@link NmeaFileSource}.
+     */
+    public static File replayFile = null;
+
+    /**
+     * How many times faster than recorded {@link #replayFile} is replayed.
+     */
+    public static double replaySpeed = 1;
+
+    /**
+     * The minimum distance to change Updates in meters. It is 0 so that a stationary device still
+     * gets fixes: those are what {@link GpsScheduler} counts to back off.
+     */
+    private static final long MIN_DISTANCE_CHANGE_FOR_UPDATES = 0;
+
+    /**
+     * The shortest interval between network fixes in milliseconds, they are slow and coarse.
      */
-    private static final long MIN_TIME_BW_UPDATES_GPS = 1000;
+    private static final long NETWORK_INTERVAL = 10 * 1000;
 
     /**
-     * The minimum distance to change Updates in meters.
+     * The shortest interval between two changes of the advertised accuracy in milliseconds, so
+     * that an accuracy hovering around a threshold doesn't flood the network with announcements.
      */
-    private static final long MIN_DISTANCE_CHANGE_FOR_UPDATES = 1;
+    private static final long ACCURACY_UPDATE_INTERVAL = 10 * 1000;
 
     /**
      * The code for stopping Location updates.
@@ -91,11 +145,22 @@ public class LocationService extends Service implements LocationListener, GpsSta
      */
     public static final int MESSAGE_START_GPS = 1;
 
+    /**
+     * The code for changing the interval between Location updates wanted by the clients. The
+     * interval in milliseconds is passed in {@code arg1}, 0 meaning no preference.
+     */
+    public static final int MESSAGE_UPDATE_INTERVAL = 2;
+
     /**
      * The max allowed age of last known location.
      */
     public static final int LAST_KNOWN_LOCATION_MAX_AGE = 24 * 60 * 60 * 1000;
 
+    /**
+     * The directory of the log of served fixes, in the private files of the app.
+     */
+    private static final String TRACK_LOG_DIRECTORY = "tracks";
+
     /**
      * Notification id.
      */
@@ -107,13 +172,15 @@ public class LocationService extends Service implements LocationListener, GpsSta
         createNotification();
 
         Zeroconf.attainLock(this);
+        connectivityWatcher = new ConnectivityWatcher();
+        connectivityWatcher.register(this);
 
         locationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
 
         deviceId = Settings.Secure.getString(getApplicationContext().getContentResolver(),
                 Settings.Secure.ANDROID_ID);
 
-        Handler handler = new Handler(Looper.getMainLooper()) {
+        handler = new Handler(Looper.getMainLooper()) {
             @Override
             public void handleMessage(Message message) {
                 switch (message.what) {
@@ -127,16 +194,35 @@ public class LocationService extends Service implements LocationListener, GpsSta
                                 LAST_KNOWN_LOCATION_MAX_AGE)
                             loc = null;
 
-                        if (loc != null)
-                            NetworkListener.sendData(getGgaFromLocation(loc));
+                        if (loc != null) {
+                            GgaEncoder encoder = new GgaEncoder();
+                            /* A stale fix, not sent as a fresh GPS one. */
+                            encoder.encode(loc.getTime(),
+                                    loc.getLatitude(),
+                                    loc.getLongitude(),
+                                    FixFilter.getHdop(loc.getAccuracy()),
+                                    loc.hasAltitude(),
+                                    loc.getAltitude(),
+                                    FixCodec.QUALITY_ESTIMATED);
+                            NetworkListener.sendData(encoder.getBuffer(), encoder.length());
+                            addToHistory(loc);
+                            /* It was received about as long ago as its age. */
+                            fuse(loc, SystemClock.elapsedRealtime()
+                                    - Math.max(0, System.currentTimeMillis() - loc.getTime()));
+                        }
                         break;
                     case MESSAGE_STOP_GPS:
                         stopGps();
                         Log.d(TAG, "GPS stop");
+                        break;
+                    case MESSAGE_UPDATE_INTERVAL:
+                        if (gpsScheduler.setRequestedInterval(message.arg1))
+                            requestGpsUpdates();
                 }
             }
         };
 
+        NetworkListener.trackLogDirectory = new File(getFilesDir(), TRACK_LOG_DIRECTORY);
         networkListener = new NetworkListener(handler);
         networkListener.execute();
 
@@ -160,6 +246,7 @@ public class LocationService extends Service implements LocationListener, GpsSta
 
         stopGps();
         networkListener.cancel(true);
+        connectivityWatcher.unregister(this);
         Zeroconf.releaseLock();
 
         Log.d(TAG, "Service destroyed");
@@ -168,137 +255,249 @@ public class LocationService extends Service implements LocationListener, GpsSta
 
     @Override
     public void onNmeaReceived(long timestamp, String nmea) {
-        String nmeaTimestamp = nmea.split(",")[1];
-        if (nmea.startsWith("$GPGGA") && nmeaTimestamp.matches("[0-9]{6}")) {
-            NetworkListener.sendData(nmea);
-            ggaSentence = null;
-        } else if (nmea.startsWith("$GPGGA")) {
-            if (ggaSentence == null || ggaSentence.length() == 0)
-                return;
-            nmeaTimestamp = ggaSentence.split(",")[1];
-
-            if (!nmeaTimestamp.matches("[0-9]{6}"))
-                return;
-            NetworkListener.sendData(ggaSentence);
-            ggaSentence = null;
-        }
+        nmeaRelay.onNmeaReceived(timestamp, nmea);
     }
 
     private void startGps() {
-        locationManager.requestLocationUpdates(
-                LocationManager.GPS_PROVIDER,
-                MIN_TIME_BW_UPDATES_GPS,
-                MIN_DISTANCE_CHANGE_FOR_UPDATES,
-                this);
+        if (replayFile != null) {
+            if (fixSource == null) {
+                Log.d(TAG, "Replaying " + replayFile + " at " + replaySpeed + "x");
+                fixSource = new NmeaFileSource(replayFile, replaySpeed, true);
+                fixSource.start(nmeaRelay);
+            }
+            return;
+        }
+
+        gpsStarted = true;
+        requestGpsUpdates();
         locationManager.addNmeaListener(this);
+        handler.postDelayed(fixTick, gpsScheduler.getInterval());
     }
 
     private void stopGps() {
+        if (fixSource != null) {
+            fixSource.stop();
+            fixSource = null;
+        }
+
+        gpsStarted = false;
+        gpsScheduler.reset();
         locationManager.removeUpdates(this);
         locationManager.removeNmeaListener(this);
+        handler.removeCallbacks(fixTick);
+        fixFilter.reset();
+        gpsTime = 0;
+        gpsReceived = 0;
+        networkTime = 0;
+        NetworkListener.resetReckoning();
     }
 
-    @Override
-    public void onLocationChanged(Location location) {
-        ggaSentence = getGgaFromLocation(location);
-    }
+    /**
+     * Asks for GPS updates at the interval chosen by {@link GpsScheduler}, and for network and
+     * passive updates to fill the gaps of the GPS. Asking again replaces the previous requests.
+     */
+    private void requestGpsUpdates() {
+        if (!gpsStarted)
+            return;
 
-    @Override
-    public void onStatusChanged(String provider, int status, Bundle extras) {
+        long interval = gpsScheduler.getInterval();
+        Log.d(TAG, "GPS interval: " + interval + " ms");
+        locationManager.requestLocationUpdates(
+                LocationManager.GPS_PROVIDER,
+                interval,
+                MIN_DISTANCE_CHANGE_FOR_UPDATES,
+                this);
 
+        List<String> providers = locationManager.getAllProviders();
+        if (providers.contains(LocationManager.NETWORK_PROVIDER))
+            locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER,
+                    Math.max(interval, NETWORK_INTERVAL), MIN_DISTANCE_CHANGE_FOR_UPDATES, this);
+        if (providers.contains(LocationManager.PASSIVE_PROVIDER))
+            locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, 0, 0, this);
     }
 
     @Override
-    public void onProviderEnabled(String provider) {
+    public void onLocationChanged(Location location) {
+        if (!fuse(location, SystemClock.elapsedRealtime()))
+            return;
 
-    }
+        if (LocationManager.GPS_PROVIDER.equals(location.getProvider())) {
+            /* A fresh GPS fix goes out right away, the cadence starts over from it. */
+            emitFix(location);
 
-    @Override
-    public void onProviderDisabled(String provider) {
-        if (provider.equals(LocationManager.GPS_PROVIDER)) {
-            MainActivity.promptForLocation();
+            if (gpsScheduler.onFix(location.getLatitude(), location.getLongitude(),
+                    location.getAccuracy(), location.hasSpeed(), location.getSpeed()))
+                requestGpsUpdates();
         }
     }
 
-    private String getGgaFromLocation(Location location) {
-        String gga;
-        Boolean hasAltitude = location.hasAltitude();
-
-        Date date = new Date(location.getTime());
-        DateFormat format = new SimpleDateFormat("HHmmss");
-        format.setTimeZone(TimeZone.getTimeZone("UTC"));
-        String time = format.format(date);
-
-        if (hasAltitude) {
-            gga = "$GPGGA,%s,%s,%s,1,,%.1f,%.1f,M,,M,,";
-            gga = String.format(gga,
-                    time,
-                    getLatitudeString(location.getLatitude()),
-                    getLongitudeString(location.getLongitude()),
-                    getHdopFromAccuracy(location.getAccuracy()),
-                    location.getAltitude());
+    /**
+     * Fuses a fix by the time it was received. The time of a GPS fix is the UTC time of the GPS,
+     * that of a network fix the clock of the phone, so those can't be compared, but fixes the
+     * passive provider repeats have the time of the first copy and are not fused twice.
+     *
+     * @param received the time the fix was received, see {@link SystemClock#elapsedRealtime()}.
+     */
+    private boolean fuse(Location location, long received) {
+        boolean gps = LocationManager.GPS_PROVIDER.equals(location.getProvider());
+        long time = location.getTime();
+
+        if (time <= (gps ? gpsTime : networkTime))
+            return false;
+
+        if (!fixFilter.update(received,
+                location.getLatitude(),
+                location.getLongitude(),
+                location.hasAccuracy() ? location.getAccuracy() : 0,
+                location.hasAltitude(),
+                location.getAltitude()))
+            return false;
+
+        if (gps) {
+            gpsTime = time;
+            gpsReceived = received;
         } else {
-            gga = "$GPGGA,%s,%s,%s,1,,%.1f,,M,,M,,";
-            gga = String.format(gga,
-                    time,
-                    getLatitudeString(location.getLatitude()),
-                    getLongitudeString(location.getLongitude()),
-                    getHdopFromAccuracy(location.getAccuracy()));
+            networkTime = time;
         }
+        return true;
+    }
 
-        gga = addChecksumToGga(gga);
+    /**
+     * @param elapsed a time of {@link SystemClock#elapsedRealtime()}.
+     * @return the UTC time in milliseconds since the epoch at {@code elapsed}, that of the GPS
+     * once it has given a fix, so that the sent fixes follow the GGA sentences it sends.
+     */
+    private long utcTime(long elapsed) {
+        if (gpsTime == 0)
+            return System.currentTimeMillis() - (SystemClock.elapsedRealtime() - elapsed);
 
-        return gga;
+        return gpsTime + elapsed - gpsReceived;
     }
 
-    private double getHdopFromAccuracy(double accuracy) {
-        /* FIXME: These are rough estimates based on the information given in the link below:
-         *        http://en.wikipedia.org/wiki/Dilution_of_precision_%28GPS%29#Meaning_of_DOP_Values
-         */
-        if (accuracy <= 0.5)
-            return 0.5;
-        else if (accuracy <= 1.0)
-            return 1.5;
-        else if (accuracy <= 3.0)
-            return 3.5;
-        else if (accuracy <= 50.0)
-            return 7.5;
-        else if (accuracy <= 100.0)
-            return 15.0;
-        else
-            return 30.0;
-    }
+    /**
+     * Sends the fused fix, or the fresh GPS fix whose GGA sentence is relayed, and schedules the
+     * next one at the interval of the GPS, so that clients get fixes at a steady cadence even
+     * while the GPS has none. After a GPS fix the next one is given half an interval more to
+     * arrive, so that a fused fix doesn't go out just before it. The reckoner and the history
+     * are given the fix that was sent.
+     * <p>A fix has the quality of a GPS fix only if a GPS fix went into it within the interval.
+     * Fused fixes of network fixes, or predicted past the last GPS fix, are sent as estimated
+     * ones.</p>
+     *
+     * @param gps the GPS fix that was just fused, whose velocity is used to estimate the fixes in
+     *            between, or {@code null}.
+     */
+    private void emitFix(Location gps) {
+        long interval = gpsScheduler.getInterval();
+        handler.removeCallbacks(fixTick);
+        handler.postDelayed(fixTick, gps != null ? interval + interval / 2 : interval);
+
+        long elapsed = SystemClock.elapsedRealtime();
+        if (!fixFilter.predict(elapsed))
+            return;
+
+        long now = utcTime(elapsed);
+        double latitude = fixFilter.getLatitude();
+        double longitude = fixFilter.getLongitude();
+        double accuracy = fixFilter.getAccuracy();
+        double hdop = FixFilter.getHdop(accuracy);
+        boolean hasAltitude = fixFilter.hasAltitude();
+        double altitude = fixFilter.getAltitude();
+        int quality = gps != null || (gpsReceived != 0 && elapsed - gpsReceived <= interval)
+                ? FixCodec.QUALITY_GPS : FixCodec.QUALITY_ESTIMATED;
+        updateAccuracy(accuracy);
+
+        long received = nmeaRelay.getGgaReceived();
+        if (received != ggaReceived) {
+            /* The GPS is sending GGA sentences, the fused fix replaces those without a fix. */
+            ggaReceived = received;
+            nmeaRelay.setFallback(now, latitude, longitude, hdop, hasAltitude, altitude, quality);
+
+            /*
+             * But the GGA sentence of a fresh GPS fix is relayed as it is, so that is the fix the
+             * clients get: the frames and the estimates follow it rather than the fused one.
+             */
+            if (gps != null) {
+                now = gps.getTime();
+                latitude = gps.getLatitude();
+                longitude = gps.getLongitude();
+                if (gps.hasAccuracy()) {
+                    accuracy = gps.getAccuracy();
+                    hdop = FixFilter.getHdop(accuracy);
+                }
+                hasAltitude = gps.hasAltitude();
+                altitude = gps.getAltitude();
+            }
+        } else {
+            /* With fractions of seconds, like the estimated fixes sent in between. */
+            ggaEncoder.encode(now, latitude, longitude, hdop, hasAltitude, altitude, quality);
+            NetworkListener.sendData(ggaEncoder.getBuffer(), ggaEncoder.length());
+        }
 
-    private String getLatitudeString(double lat) {
-        String latStr = "%02d%06.3f,%s";
+        /* Without a velocity, the reckoner takes the one between the last two fixes. */
+        boolean hasVelocity = gps != null && gps.hasSpeed() && gps.hasBearing();
+        NetworkListener.addReckoningFix(now, latitude, longitude, hdop, accuracy, hasAltitude,
+                altitude, hasVelocity, hasVelocity ? gps.getSpeed() : 0,
+                hasVelocity ? gps.getBearing() : 0);
 
-        int degrees = (int) Math.abs(lat);
-        double minutes = Math.abs((lat - (int) lat) * 60);
-        String symbol = lat >= 0 ? "N" : "S";
+        long sequence = NetworkListener.addFix(now, latitude, longitude, hdop, accuracy,
+                hasAltitude, altitude, quality);
 
-        latStr = String.format(latStr, degrees, minutes, symbol);
-        return latStr;
+        /* Binary clients don't need the GGA timing of the NMEA stream, send them the fix now. */
+        if (sequence >= 0 && (NetworkListener.getSubscribedTypes() & NmeaScanner.TYPE_FIX) != 0) {
+            fixCodec.encode((int) sequence, now, latitude, longitude, hdop, accuracy, hasAltitude,
+                    altitude, quality);
+            NetworkListener.sendData(fixCodec.getBuffer(), FixCodec.LENGTH, NmeaScanner.TYPE_FIX);
+        }
     }
 
-    private String getLongitudeString(double lon) {
-        String lonStr = "%03d%06.3f,%s";
+    /**
+     * Advertises the accuracy level of the fused fixes when it changes.
+     */
+    private void updateAccuracy(double accuracy) {
+        String level = FixFilter.getAccuracyLevel(accuracy);
+        long now = System.currentTimeMillis();
+
+        if (level.equals(LocationService.accuracy) || now - accuracyUpdated
+                < ACCURACY_UPDATE_INTERVAL)
+            return;
+
+        Log.d(TAG, "Accuracy: " + level);
+        LocationService.accuracy = level;
+        accuracyUpdated = now;
+        networkListener.updateAccuracy(level);
+    }
 
-        int degrees = (int) Math.abs(lon);
-        double minutes = Math.abs((lon - (int) lon) * 60);
-        String symbol = lon >= 0 ? "E" : "W";
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {
 
-        lonStr = String.format(lonStr, degrees, minutes, symbol);
-        return lonStr;
     }
 
-    private String addChecksumToGga(String gga) {
-        int checksum = 0;
+    @Override
+    public void onProviderEnabled(String provider) {
 
-        for (int i = 1, n = gga.length(); i < n; i++) {
-            checksum ^= (int) gga.charAt(i);
+    }
+
+    @Override
+    public void onProviderDisabled(String provider) {
+        if (provider.equals(LocationManager.GPS_PROVIDER)) {
+            MainActivity.promptForLocation();
         }
+    }
 
-        return String.format("%s*%02X", gga, checksum);
+    /**
+     * Adds the last known location to the history. It is stale, so it is kept as an estimated
+     * fix.
+     */
+    private void addToHistory(Location location) {
+        NetworkListener.addFix(location.getTime(),
+                location.getLatitude(),
+                location.getLongitude(),
+                FixFilter.getHdop(location.getAccuracy()),
+                location.getAccuracy(),
+                location.hasAltitude(),
+                location.getAltitude(),
+                FixCodec.QUALITY_ESTIMATED);
     }
 
     private void createNotification() {
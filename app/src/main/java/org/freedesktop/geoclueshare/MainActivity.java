@@ -110,7 +110,7 @@ public class MainActivity extends ActionBarActivity {
         }
 
         if (isServiceRunning(LocationService.class)) {
-            connectedDevices.setText(NetworkListener.numberOfClients + "");
+            connectedDevices.setText(NetworkListener.getClientCount() + "");
         }
 
         toggleService.setChecked(isServiceRunning(LocationService.class));
@@ -192,11 +192,17 @@ public class MainActivity extends ActionBarActivity {
     }
 
     public static void promptForLocation() {
+        if (handler == null)
+            return;
+
         Message message = handler.obtainMessage(MESSAGE_PROMPT_LOCATION);
         message.sendToTarget();
     }
 
     public static void setConnectedDevices(int n_clients) {
+        if (handler == null)
+            return;
+
         Bundle bundle = new Bundle();
         Message message = handler.obtainMessage(MESSAGE_CONNECTED_DEVICES);
         bundle.putInt(KEY_CONNECTED_DEVICES, n_clients);
@@ -0,0 +1,214 @@
+package org.freedesktop.geoclueshare;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code Metrics} is a registry of named counters, histograms and gauges. Recording a value only
+ * touches atomic variables, so it is cheap enough for the selector loop and never blocks.
+ * <p>Metrics are meant to be registered once, when their owner is created. {@link #toString()}
+ * returns all of them as plain text, one {@code name value} pair per line.</p>
+ */
+public class Metrics {
+
+    /**
+     * A value that only goes up.
+     */
+    public static final class Counter {
+        private final AtomicLong value = new AtomicLong(0);
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Counts values in power of two buckets: bucket {@code i} holds the values below
+     * {@code 2^i} that don't fit in bucket {@code i - 1}. Percentiles are therefore upper bounds
+     * that can be up to twice the real value.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong sum = new AtomicLong(0);
+        private final AtomicLong max = new AtomicLong(0);
+
+        /**
+         * @param value the value to record. Negative values are recorded as 0.
+         */
+        public void record(long value) {
+            if (value < 0)
+                value = 0;
+
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                /* Another thread recorded a value at the same time, try again. */
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param fraction the percentile as a fraction, e.g. {@code 0.99}.
+         * @return an upper bound of the percentile, or 0 if nothing was recorded.
+         */
+        public long getPercentile(double fraction) {
+            long total = count.get();
+            if (total == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+            }
+
+            return max.get();
+        }
+    }
+
+    /**
+     * A value computed when the metrics are read.
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    /**
+     * A registered metric with its name, so that a reader never sees one without the other.
+     */
+    private static final class Entry {
+        final String name;
+        final Object metric;
+
+        Entry(String name, Object metric) {
+            this.name = name;
+            this.metric = metric;
+        }
+    }
+
+    private final List<Entry> entries = new CopyOnWriteArrayList<Entry>();
+
+    /**
+     * Registers a new counter.
+     */
+    public Counter counter(String name) {
+        Counter counter = new Counter();
+        register(name, counter);
+        return counter;
+    }
+
+    /**
+     * Registers a new histogram.
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = new Histogram();
+        register(name, histogram);
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge.
+     */
+    public Gauge gauge(String name, Gauge gauge) {
+        register(name, gauge);
+        return gauge;
+    }
+
+    private synchronized void register(String name, Object metric) {
+        for (Entry entry : entries) {
+            if (entry.name.equals(name))
+                throw new IllegalArgumentException("Metric already registered: " + name);
+        }
+
+        entries.add(new Entry(name, metric));
+    }
+
+    /**
+     * Appends every metric to a builder, one {@code name value} pair per line. Histograms are
+     * written as their count, sum, maximum and a few percentiles.
+     *
+     * @param builder the builder to append to.
+     * @return the builder.
+     */
+    public StringBuilder appendTo(StringBuilder builder) {
+        for (Entry entry : entries) {
+            String name = entry.name;
+            Object metric = entry.metric;
+
+            if (metric instanceof Counter) {
+                append(builder, name, ((Counter) metric).get());
+            } else if (metric instanceof Gauge) {
+                append(builder, name, ((Gauge) metric).get());
+            } else {
+                Histogram histogram = (Histogram) metric;
+                append(builder, name + "_count", histogram.getCount());
+                append(builder, name + "_sum", histogram.getSum());
+                append(builder, name + "_p50", histogram.getPercentile(0.5));
+                append(builder, name + "_p90", histogram.getPercentile(0.9));
+                append(builder, name + "_p99", histogram.getPercentile(0.99));
+                append(builder, name + "_max", histogram.getMax());
+            }
+        }
+
+        return builder;
+    }
+
+    private static void append(StringBuilder builder, String name, long value) {
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder()).toString();
+    }
+}
@@ -5,16 +5,11 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 
 /*
  * Copyright (C) 2015 Ankit (Verma)
@@ -37,32 +32,143 @@ import java.util.Set;
  */
 
 /**
- * {@code NetworkListener} creates a new Thread (using AsyncTask) for network tasks. It performs
- * tasks such as client connection, disconnection, send or receive data.
+ * {@code NetworkListener} creates a new Thread (using AsyncTask) for network tasks. It runs a
+ * {@link NmeaBroadcastServer}, which does the client connection, disconnection, send or receive
+ * data, and passes its events on to {@link MainActivity} and {@link LocationService}.
  * <p>Call {@link NetworkListener#sendData} to broadcast data to all the clients.</p>
  */
-public class NetworkListener extends AsyncTask<Void, Void, Void> {
+public class NetworkListener extends AsyncTask<Void, Void, Void>
+        implements NmeaBroadcastServer.Listener {
 
     private static final String TAG = "NetworkListener";
-    private ServerSocketChannel server = null;
+    private static volatile NmeaBroadcastServer server;
     private Handler handler;
-    private static HashMap<String, String> pendingData;
-    Zeroconf mdns;
+    volatile Zeroconf mdns;
 
     /**
-     * Total number of clients currently connected to the application.
+     * The number of selector threads serving the clients. More than one only pays off with
+     * hundreds of clients on a multi-core device.
      */
-    public static int numberOfClients = 0;
+    public static int workers = 1;
 
     /**
-     * The TCP/IP port used for Socket communication.
+     * The maximum number of sentences queued for a single client.
+     */
+    public static int queueDepth = 8;
+
+    /**
+     * What to do with a new sentence when the queue of a client is full.
+     */
+    public static ClientConnection.DropPolicy dropPolicy =
+            ClientConnection.DropPolicy.COALESCE_LATEST;
+
+    /**
+     * The maximum number of bytes that may be pending for a single client.
+     */
+    public static int highWaterMark = 4 * 1024;
+
+    /**
+     * What to do with a client that would exceed {@link #highWaterMark}.
+     */
+    public static ClientConnection.LaggardPolicy laggardPolicy =
+            ClientConnection.LaggardPolicy.DROP_STALE;
+
+    /**
+     * The number of fixes between keyframes for the clients that asked for deltas.
+     */
+    public static int keyframeInterval = DeltaCodec.DEFAULT_KEYFRAME_INTERVAL;
+
+    /**
+     * The number of recent fixes sent to a client as soon as it connects, or 0 to wait for the
+     * next fix.
+     */
+    public static int replayCount = 1;
+
+    /**
+     * The maximum number of connections waiting to be accepted.
+     */
+    public static int backlog = 16;
+
+    /**
+     * The maximum number of connected clients, or 0 for no limit. Further clients are told the
+     * server is busy and disconnected.
+     */
+    public static int maxClients = 32;
+
+    /**
+     * The size of the socket send buffer of a client in bytes, or 0 for the system default. With
+     * a small buffer, a client that vanished without closing its connection is noticed sooner.
+     */
+    public static int sendBufferSize = 8 * 1024;
+
+    /**
+     * The time in milliseconds a client has to drain what is queued for it before it is evicted,
+     * or 0 to keep slow clients.
+     */
+    public static long writeTimeout = 30 * 1000;
+
+    /**
+     * The shortest interval the GPS is asked for on behalf of the clients, in milliseconds.
+     * Clients asking for a shorter one get fixes estimated by dead reckoning in between, see
+     * {@link DeadReckoner}, or 0 to have the GPS follow the clients.
+     */
+    public static long minFixInterval = GpsScheduler.DEFAULT_INTERVAL;
+
+    /**
+     * The time in milliseconds the sentences of a client may be held back for, so that they are
+     * written in batches and the Wi-Fi radio wakes up less often, or 0 to write them as soon as
+     * possible. Clients that can live with more or less latency say so with a {@code BATCH}
+     * request.
+     */
+    public static long batchInterval = 0;
+
+    /**
+     * The port the metrics of the server are served on as plain text, or 0 to not serve them.
+     */
+    public static int statsPort = 0;
+
+    /**
+     * The multicast group or broadcast address every sentence is also sent to as a UDP datagram,
+     * e.g. {@code "239.255.10.110"} or {@code "255.255.255.255"}, or {@code null} to only serve
+     * TCP clients. The GPS then stays on while the listener runs, even without TCP clients.
+     */
+    public static String datagramGroup = null;
+
+    /**
+     * The port the UDP datagrams are sent to.
+     */
+    public static int datagramPort = NmeaBroadcastServer.DEFAULT_PORT;
+
+    /**
+     * The time to live of the multicast datagrams, 1 to keep them on the LAN.
+     */
+    public static int datagramTtl = DatagramOutput.DEFAULT_TTL;
+
+    /**
+     * The {@code NmeaScanner.TYPE_*} flags of the sentence types sent as UDP datagrams.
      */
-    private static final int PORT = 10110;
+    public static int datagramTypes = NmeaScanner.TYPE_GGA;
 
     /**
-     * The maximum length of a GGA sentence.
+     * The directory of the log of served fixes, or {@code null} to not keep one. See
+     * {@link TrackLog}.
+     */
+    public static File trackLogDirectory = null;
+
+    /**
+     * The number of fixes of a segment of the track log, 1 MB.
+     */
+    public static int trackLogSegmentRecords = 32 * 1024;
+
+    /**
+     * The number of segments of the track log kept, the oldest ones are deleted.
+     */
+    public static int trackLogSegments = 8;
+
+    /**
+     * The TCP/IP port used for Socket communication.
      */
-    private static final int GGA_LENGTH_MAX = 80;
+    private static final int PORT = NmeaBroadcastServer.DEFAULT_PORT;
 
     public NetworkListener(Handler handler) {
         this.handler = handler;
@@ -70,69 +176,73 @@ public class NetworkListener extends AsyncTask<Void, Void, Void> {
 
     @Override
     protected Void doInBackground(Void... params) {
-        Selector selector;
-        Iterator i;
+        NmeaBroadcastServer s = new NmeaBroadcastServer(PORT, this);
+        s.setWorkers(workers);
+        s.setQueueDepth(queueDepth);
+        s.setDropPolicy(dropPolicy);
+        s.setHighWaterMark(highWaterMark);
+        s.setLaggardPolicy(laggardPolicy);
+        s.setKeyframeInterval(keyframeInterval);
+        s.setReplayCount(replayCount);
+        s.setBacklog(backlog);
+        s.setMaxClients(maxClients);
+        s.setKeepAlive(true);
+        s.setSendBufferSize(sendBufferSize);
+        s.setWriteTimeout(writeTimeout);
+        s.setMinFixInterval(minFixInterval);
+        s.setBatchInterval(batchInterval);
+        s.setStatsPort(statsPort);
+
+        InetSocketAddress datagramTarget = null;
+        if (datagramGroup != null) {
+            datagramTarget = new InetSocketAddress(datagramGroup, datagramPort);
+            /* Through Wi-Fi, not whatever the default route is while cellular data is up. */
+            s.setDatagramOutput(datagramTarget, toAddress(Zeroconf.getAddress()), datagramTtl,
+                    datagramTypes);
+        }
 
-        Log.d(TAG, "Started Listening");
+        if (trackLogDirectory != null) {
+            TrackLog log = new TrackLog(trackLogDirectory, trackLogSegmentRecords,
+                    trackLogSegments);
+            try {
+                log.open();
+                s.setTrackLog(log);
+            } catch (IOException e) {
+                Log.d(TAG, "Unable to open the track log: " + e.getMessage());
+            }
+        }
 
-        pendingData = new HashMap<String, String>();
+        Log.d(TAG, "Started Listening");
 
         try {
-            startServer();
-
-            mdns = new Zeroconf();
-            mdns.broadcastService(LocationService.deviceId, PORT);
-
-            selector = Selector.open();
-            server.register(selector, SelectionKey.OP_ACCEPT);
+            s.open();
         } catch (IOException e) {
             Log.d(TAG, "Unable to create ServerSocket for port: " + PORT);
             Log.d(TAG, e.getMessage());
             return null;
         }
 
-        while (!isCancelled()) {
-            try {
-                selector.select();
-                Set keys = selector.selectedKeys();
-                i = keys.iterator();
-            } catch (IOException e) {
-                Log.d(TAG, "Selector can't select");
-                continue;
+        /* Registered in the background, clients that know the address can connect meanwhile. */
+        final Zeroconf m = new Zeroconf();
+        m.broadcastService(LocationService.deviceId, PORT, datagramTarget);
+        s.getMetrics().gauge("mdns_registration_ms", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return m.getRegistrationTime();
             }
+        });
+        mdns = m;
 
-            while (i.hasNext()) {
-                SelectionKey key = (SelectionKey) i.next();
-                i.remove();
-
-                if (isCancelled()) {
-                    return null;
-                }
-
-                try {
-                    if (key.isAcceptable()) {
-                        SocketChannel client = server.accept();
-                        addClient(client, selector);
-
-                        continue;
-                    }
-
-                    if (key.isReadable()) {
-                        SocketChannel client = (SocketChannel) key.channel();
-                        disconnectClient(client);
+        if (datagramTarget != null) {
+            Log.d(TAG, "Sending datagrams to " + datagramTarget);
+            handler.obtainMessage(LocationService.MESSAGE_START_GPS).sendToTarget();
+        }
 
-                        continue;
-                    }
+        server = s;
+        if (isCancelled())
+            s.close();
 
-                    if (key.isWritable()) {
-                        SocketChannel client = (SocketChannel) key.channel();
-                        sendDataToClient(client);
-                    }
-                } catch (IOException e) {
-                    continue;
-                }
-            }
-        }
+        s.run();
 
         return null;
     }
@@ -145,97 +255,238 @@ public class NetworkListener extends AsyncTask<Void, Void, Void> {
      *             stored inside {@link NetworkListener#PORT}.
      */
     public static void sendData(String data) {
-        String ggaSentence = data + "\r\n";
+        sendData(data, NmeaScanner.TYPE_GGA);
+    }
 
-        Iterator it = pendingData.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry pair = (Map.Entry) it.next();
-            pair.setValue(ggaSentence);
-        }
+    /**
+     * Sends a sentence to the clients that subscribed to its type.
+     *
+     * @param data the sentence.
+     * @param type the {@code NmeaScanner.TYPE_*} flag of the sentence type.
+     */
+    public static void sendData(String data, int type) {
+        NmeaBroadcastServer s = server;
+        if (s != null)
+            s.publish(data, data.length(), type);
+    }
+
+    /**
+     * Same as {@link #sendData(String)} for a sentence that is already encoded, e.g. by
+     * {@link GgaEncoder}.
+     *
+     * @param data   the array holding the sentence.
+     * @param length the length of the sentence.
+     */
+    public static void sendData(byte[] data, int length) {
+        sendData(data, length, NmeaScanner.TYPE_GGA);
+    }
+
+    /**
+     * Same as {@link #sendData(String, int)} for data that is already encoded, e.g. a
+     * {@link FixCodec} frame of type {@code NmeaScanner.TYPE_FIX}.
+     *
+     * @param data   the array holding the data.
+     * @param length the length of the data.
+     * @param type   the {@code NmeaScanner.TYPE_*} flag of the data type.
+     */
+    public static void sendData(byte[] data, int length, int type) {
+        NmeaBroadcastServer s = server;
+        if (s != null)
+            s.publish(data, length, type);
+    }
+
+    /**
+     * Sends the UDP datagrams through the interface with a new address, e.g. when the Wi-Fi
+     * address changed.
+     *
+     * @param address the IPv4 address of the Wi-Fi interface.
+     */
+    public static void rebindDatagrams(String address) {
+        NmeaBroadcastServer s = server;
+        if (s != null)
+            s.setDatagramAddress(toAddress(address));
+    }
+
+    /**
+     * Remembers a fix, so that clients connecting before the next one get a position right away,
+     * and logs it to the track log if there is one.
+     *
+     * @param time        UTC time of the fix in milliseconds since the epoch.
+     * @param latitude    latitude in degrees.
+     * @param longitude   longitude in degrees.
+     * @param hdop        horizontal dilution of precision.
+     * @param accuracy    accuracy in meters.
+     * @param hasAltitude whether {@code altitude} is known.
+     * @param altitude    altitude in meters.
+     * @param quality     the fix quality, as in GGA.
+     * @return the sequence number to encode the {@link FixCodec} frame of the fix with, or -1 if
+     * there is no server or the fix was not added.
+     */
+    public static long addFix(long time, double latitude, double longitude, double hdop,
+                              double accuracy, boolean hasAltitude, double altitude,
+                              int quality) {
+        NmeaBroadcastServer s = server;
+        if (s == null)
+            return -1;
+
+        return s.addFix(time, latitude, longitude, hdop, accuracy, hasAltitude, altitude,
+                quality);
+    }
+
+    /**
+     * Gives the fix that was just sent to the clients to the {@link DeadReckoner} of the server,
+     * to estimate the fixes of the clients that want them more often. The estimates are stamped
+     * with {@code time} plus the time elapsed since this call.
+     *
+     * @param time        UTC time of the fix in milliseconds since the epoch.
+     * @param latitude    latitude in degrees.
+     * @param longitude   longitude in degrees.
+     * @param hdop        horizontal dilution of precision.
+     * @param accuracy    accuracy in meters.
+     * @param hasAltitude whether {@code altitude} is known.
+     * @param altitude    altitude in meters.
+     * @param hasVelocity whether {@code speed} and {@code bearing} are known.
+     * @param speed       speed in meters per second.
+     * @param bearing     bearing in degrees east of true north.
+     */
+    public static void addReckoningFix(long time, double latitude, double longitude, double hdop,
+                                       double accuracy, boolean hasAltitude, double altitude,
+                                       boolean hasVelocity, double speed, double bearing) {
+        NmeaBroadcastServer s = server;
+        if (s != null)
+            s.getDeadReckoner().add(NmeaBroadcastServer.now(), time, latitude, longitude, hdop,
+                    accuracy, hasAltitude, altitude, hasVelocity, speed, bearing);
+    }
+
+    /**
+     * Stops the estimated fixes until the next call to {@link #addReckoningFix}, e.g. when the
+     * GPS is stopped.
+     */
+    public static void resetReckoning() {
+        NmeaBroadcastServer s = server;
+        if (s != null)
+            s.getDeadReckoner().reset();
+    }
+
+    /**
+     * @return the {@code NmeaScanner.TYPE_*} flags of the sentence types at least one client
+     * subscribed to.
+     */
+    public static int getSubscribedTypes() {
+        NmeaBroadcastServer s = server;
+        return s != null ? s.getSubscribedTypes() : 0;
+    }
+
+    /**
+     * @return the number of clients connected to the running server.
+     */
+    public static int getClientCount() {
+        NmeaBroadcastServer s = server;
+        return s != null ? s.getClientCount() : 0;
+    }
+
+    /**
+     * @return the time in milliseconds from the start of the running server to its first client,
+     * or -1 if it had none yet or isn't running.
+     */
+    public static long getTimeToFirstAccept() {
+        NmeaBroadcastServer s = server;
+        return s != null ? s.getTimeToFirstAccept() : -1;
+    }
+
+    /**
+     * @return the number of times the selector loop of the running server has woken up.
+     */
+    static long getWakeups() {
+        NmeaBroadcastServer s = server;
+        return s != null ? s.getWakeups() : 0;
     }
 
-    private void startServer() throws IOException {
-        server = ServerSocketChannel.open();
-        server.configureBlocking(false);
-        server.socket().bind(new java.net.InetSocketAddress(PORT));
+    /**
+     * @return the metrics of the running server, or {@code null} if it isn't running.
+     */
+    public static Metrics getMetrics() {
+        NmeaBroadcastServer s = server;
+        return s != null ? s.getMetrics() : null;
     }
 
-    private void addClient(SocketChannel client, Selector selector) throws IOException {
-        client.configureBlocking(false);
-        client.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-        pendingData.put(client.socket().getInetAddress().toString(), "");
+    /**
+     * Advertises a new accuracy level in the TXT records of the service.
+     *
+     * @param accuracy the level, see {@link FixFilter#getAccuracyLevel(double)}.
+     */
+    public void updateAccuracy(String accuracy) {
+        Zeroconf m = mdns;
+        if (m != null)
+            m.updateAccuracy(accuracy);
+    }
 
+    @Override
+    public void onClientConnected(ClientConnection connection, int clients) {
         Log.d(TAG, "Client connected");
-        numberOfClients++;
-        MainActivity.setConnectedDevices(numberOfClients);
+        MainActivity.setConnectedDevices(clients);
 
-        Log.d(TAG, "Number of clients: " + numberOfClients);
-        if (numberOfClients == 1) {
+        Log.d(TAG, "Number of clients: " + clients);
+        if (clients == 1) {
             Message message = handler.obtainMessage(
                     LocationService.MESSAGE_START_GPS);
             message.sendToTarget();
         }
     }
 
-    private void disconnectClient(SocketChannel client) throws IOException {
-        int BUFFER_SIZE = 32;
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    @Override
+    public void onClientDisconnected(ClientConnection connection, int clients) {
+        Log.d(TAG, "Client disconnected");
+        Log.d(TAG, "Bytes queued: " + connection.getBytesQueued()
+                + ", written: " + connection.getBytesWritten()
+                + ", dropped: " + connection.getBytesDropped()
+                + (connection.isEvicted() ? " (evicted)" : ""));
 
-        try {
-            if (client.read(buffer) == -1) {
-                throw new Exception();
-            }
-        } catch (Exception e) {
-            pendingData.remove(client.socket().getInetAddress().toString());
-            client.close();
-            Log.d(TAG, "Client disconnected");
-
-            numberOfClients--;
-            MainActivity.setConnectedDevices(numberOfClients);
-
-            Log.d(TAG, "Number of clients: " + numberOfClients);
-            if (numberOfClients == 0) {
-                Message message = handler.obtainMessage(
-                        LocationService.MESSAGE_STOP_GPS);
-                message.sendToTarget();
-            }
+        MainActivity.setConnectedDevices(clients);
+
+        Log.d(TAG, "Number of clients: " + clients);
+        if (clients == 0 && datagramGroup == null) {
+            Message message = handler.obtainMessage(
+                    LocationService.MESSAGE_STOP_GPS);
+            message.sendToTarget();
         }
     }
 
-    private void sendDataToClient(SocketChannel client) throws IOException {
-        String data = pendingData.get(client.socket().getInetAddress().toString());
-
-        if (data == null || data.length() == 0)
-            return;
+    @Override
+    public void onRequestedIntervalChanged(long interval) {
+        Message message = handler.obtainMessage(LocationService.MESSAGE_UPDATE_INTERVAL,
+                (int) Math.min(interval, Integer.MAX_VALUE), 0);
+        message.sendToTarget();
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(GGA_LENGTH_MAX);
-        buf.clear();
+    @Override
+    protected void onCancelled() {
+        super.onCancelled();
 
-        buf.put(data.getBytes());
-        buf.flip();
+        if (mdns != null)
+            mdns.unregisterService();
 
-        while (buf.hasRemaining()) {
-            client.write(buf);
+        NmeaBroadcastServer s = server;
+        if (s != null) {
+            server = null;
+            s.close();
         }
 
-        pendingData.put(client.socket().getInetAddress().toString(), "");
+        MainActivity.setConnectedDevices(0);
     }
 
-    @Override
-    protected void onCancelled() {
-        super.onCancelled();
+    /**
+     * @param address an IPv4 address as a string, which is parsed without a lookup.
+     * @return the address, or {@code null} if there is none.
+     */
+    private static InetAddress toAddress(String address) {
+        if (address == null)
+            return null;
+
         try {
-            if (mdns != null)
-                mdns.unregisterService();
-            if (server != null)
-                server.close();
-            numberOfClients = 0;
-            MainActivity.setConnectedDevices(numberOfClients);
-
-            if (pendingData != null)
-                pendingData.clear();
-        } catch (IOException e) {
-            e.printStackTrace();
+            return InetAddress.getByName(address);
+        } catch (UnknownHostException e) {
+            return null;
         }
     }
 }
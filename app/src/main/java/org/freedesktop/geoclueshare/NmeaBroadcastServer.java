@@ -0,0 +1,1449 @@
+package org.freedesktop.geoclueshare;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code NmeaBroadcastServer} accepts TCP clients and broadcasts NMEA sentences to them. It has no
+ * Android dependencies, so it can be run and measured on a plain JVM. On the device it is driven
+ * by {@link NetworkListener}.
+ * <p>Call {@link #open()}, then {@link #run()} on the thread that is to serve the clients, until
+ * {@link #close()} is called from any thread or the serving thread is interrupted. Sentences are
+ * handed over with {@link #publish} from any thread.</p>
+ * <p>Clients get GGA sentences only, unless they ask for other sentence types by sending a line
+ * like {@code SUBSCRIBE GGA,RMC,GSA,GSV,VTG}. They can also ask for a fix interval in
+ * milliseconds with {@code INTERVAL 500}, those that don't want the default interval of
+ * {@link GpsScheduler}. The shortest interval any client wants is reported to the
+ * {@link Listener}, but never less than the minimum fix interval: clients asking for less
+ * get fixes estimated by the {@link #getDeadReckoner()} in between the real ones, see
+ * {@link #setMinFixInterval(long)}. The clients asking for the same interval share their
+ * estimates, see {@link SharedEstimate}.</p>
+ * <p>A client that sends {@code FORMAT BINARY} gets {@link FixCodec} frames instead of sentences,
+ * from the next fix on. It should do so right after connecting, as sentences queued before the
+ * request are still sent. {@code SUBSCRIBE} or {@code FORMAT NMEA} switch back to sentences.
+ * With {@code FORMAT DELTA} the frames are sent as {@link DeltaCodec} keyframes and deltas,
+ * encoded for every client against what it got before, see {@link #setKeyframeInterval(int)}.</p>
+ * <p>New clients don't have to wait for the next fix: they get the latest fixes from
+ * {@link #getHistory()} right away, see {@link #setReplayCount(int)}. The fixes can also be
+ * logged, see {@link #setTrackLog(TrackLog)}.</p>
+ * <p>Clients are served by one or more workers, see {@link #setWorkers(int)}. Each worker has
+ * its own selector, thread and {@link BroadcastBuffer}. The first one runs on the thread calling
+ * {@link #run()} and also accepts the connections, which it hands to the worker with the fewest
+ * clients through a lock-free queue. With a single worker everything happens on one thread.</p>
+ * <p>Published sentences go to a {@link SentencePublisher} that keeps only the latest sentence of
+ * every kind, and every worker drains it with its own cursor once per wakeup, so a fix that was
+ * superseded before the clients could be served is never sent.</p>
+ * <p>Sentences can also be sent once per fix as UDP datagrams, to a multicast group or a
+ * broadcast address, through the Wi-Fi interface, see {@link #setDatagramOutput}. The first
+ * worker sends them, whether TCP clients are connected or not.</p>
+ * <p>Clients are only registered for {@link SelectionKey#OP_WRITE} while they have queued data,
+ * so the selectors sleep between fixes instead of spinning on always-writable sockets.</p>
+ * <p>Every write is a gathering write of all the sentences queued for a client. A client that
+ * can live with some latency can send {@code BATCH 5000}: its sentences are then held back and
+ * written together every 5 seconds, or as soon as half its queue is used or its oldest sentence
+ * is about to be overwritten in the {@link BroadcastBuffer}, so that the radio wakes up once per
+ * batch instead of once per sentence. The batches of the clients with the same interval are
+ * written at the same time. See {@link #setBatchInterval(long)} for a default.</p>
+ * <p>The number of clients can be capped, see {@link #setMaxClients(int)}. Connections beyond
+ * the cap get {@link #RESPONSE_BUSY} and are closed. A peer that vanished without closing its
+ * connection, e.g. out of Wi-Fi range, stops draining its queue once its socket buffer is full:
+ * a worker keeps a {@link TimerWheel} of deadlines and evicts clients that took nothing of their
+ * queue in time, see {@link #setWriteTimeout(long)}. A small send buffer makes that happen
+ * sooner, see {@link #setSendBufferSize(int)}.</p>
+ * <p>The server keeps {@link Metrics} about its loops and clients, and how long after
+ * {@link #open()} the first client was accepted, see {@link #getTimeToFirstAccept()}. They can
+ * also be served as plain text on a separate port, see {@link #setStatsPort(int)}.</p>
+ */
+public class NmeaBroadcastServer implements Runnable {
+
+    /**
+     * Receives the events of a server. The methods may be called on any worker thread, but never
+     * concurrently.
+     */
+    public interface Listener {
+        /**
+         * @param connection the new client.
+         * @param clients    the number of connected clients, including the new one.
+         */
+        void onClientConnected(ClientConnection connection, int clients);
+
+        /**
+         * @param connection the client that left or was evicted.
+         * @param clients    the number of clients still connected.
+         */
+        void onClientDisconnected(ClientConnection connection, int clients);
+
+        /**
+         * @param interval the shortest interval between fixes any client wants, in
+         *                 milliseconds, or 0 if no client is connected. A client that didn't
+         *                 ask for one wants {@link GpsScheduler#DEFAULT_INTERVAL}.
+         */
+        void onRequestedIntervalChanged(long interval);
+    }
+
+    /**
+     * The TCP/IP port NMEA 0183 over IP is usually served on.
+     */
+    public static final int DEFAULT_PORT = 10110;
+
+    /**
+     * The request a client sends to choose the sentence types it receives.
+     */
+    public static final String REQUEST_SUBSCRIBE = "SUBSCRIBE";
+
+    /**
+     * The request a client sends to ask for an interval between fixes in milliseconds.
+     */
+    public static final String REQUEST_INTERVAL = "INTERVAL";
+
+    /**
+     * The request a client sends to have its sentences written in batches, with the time they
+     * may be held back for in milliseconds, at most {@link #MAX_BATCH_INTERVAL}, or 0 to have
+     * them written as soon as possible.
+     */
+    public static final String REQUEST_BATCH = "BATCH";
+
+    /**
+     * The longest time sentences are held back for a batch, in milliseconds. A batch is written
+     * earlier if its sentences would otherwise be overwritten in the ring of its worker, which
+     * the sentences, deltas, estimates and replays of all its clients share.
+     */
+    public static final long MAX_BATCH_INTERVAL = 60 * 1000;
+
+    /**
+     * The request a client sends to choose between NMEA sentences, {@code FORMAT NMEA}, and
+     * {@link FixCodec} frames, {@code FORMAT BINARY}.
+     */
+    public static final String REQUEST_FORMAT = "FORMAT";
+
+    /**
+     * The argument of {@link #REQUEST_FORMAT} for NMEA sentences.
+     */
+    public static final String FORMAT_NMEA = "NMEA";
+
+    /**
+     * The argument of {@link #REQUEST_FORMAT} for {@link FixCodec} frames.
+     */
+    public static final String FORMAT_BINARY = "BINARY";
+
+    /**
+     * The argument of {@link #REQUEST_FORMAT} for {@link DeltaCodec} keyframes and deltas.
+     */
+    public static final String FORMAT_DELTA = "DELTA";
+
+    /**
+     * The line sent to a client that is rejected because the server has too many clients, before
+     * the connection is closed.
+     */
+    public static final String RESPONSE_BUSY = "BUSY";
+
+    /**
+     * The precision of the write deadlines, in milliseconds.
+     */
+    private static final long WRITE_TIMER_TICK = 100;
+
+    /**
+     * The number of slots of the wheels of write deadlines, a turn of 25.6 s.
+     */
+    private static final int WRITE_TIMER_SLOTS = 256;
+
+    /**
+     * The precision of the deadlines of estimated fixes, in milliseconds.
+     */
+    private static final long RECKON_TIMER_TICK = 10;
+
+    /**
+     * The number of slots of the wheels of estimated fixes, a turn of 1.28 s.
+     */
+    private static final int RECKON_TIMER_SLOTS = 128;
+
+    /**
+     * The shortest interval between estimated fixes, in milliseconds.
+     */
+    private static final long MIN_ESTIMATE_INTERVAL = 100;
+
+    /**
+     * The size of the ring buffer every outgoing sentence is encoded into, per worker.
+     */
+    private static final int BROADCAST_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The number of recent fixes kept for new clients.
+     */
+    private static final int HISTORY_SIZE = 32;
+
+    /**
+     * The time in milliseconds a connection to the stats port has to send its request and read
+     * the response, if no write timeout is set for the clients.
+     */
+    private static final long STATS_TIMEOUT = 10 * 1000;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] BUSY = (RESPONSE_BUSY + "\r\n").getBytes(ASCII);
+
+    private final int port;
+    private final Listener listener;
+    private final List<ClientConnection> clients = new CopyOnWriteArrayList<ClientConnection>();
+    private final SentencePublisher publisher = new SentencePublisher();
+    private final FixHistory history = new FixHistory(HISTORY_SIZE);
+    private final DeadReckoner reckoner = new DeadReckoner();
+    private SharedEstimate estimates;
+    private Worker[] workers = new Worker[0];
+
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter wakeups = metrics.counter("nmea_wakeups");
+    private final Metrics.Histogram keysPerWakeup = metrics.histogram("nmea_keys_per_wakeup");
+    private final Metrics.Counter sentencesPublished = metrics.counter("nmea_sentences_published");
+    private final Metrics.Counter bytesWritten = metrics.counter("nmea_bytes_written");
+    private final Metrics.Histogram fixLatency = metrics.histogram("nmea_fix_to_socket_us");
+    private final Metrics.Counter clientsRejected = metrics.counter("nmea_clients_rejected");
+    private final Metrics.Counter clientsTimedOut = metrics.counter("nmea_clients_timed_out");
+    private final Metrics.Counter fixesEstimated = metrics.counter("nmea_fixes_estimated");
+    private final Metrics.Counter batchWrites = metrics.counter("nmea_batch_writes");
+    private final Metrics.Counter batchWritesSaved = metrics.counter("nmea_batch_writes_saved");
+    private final Metrics.Histogram batchLatency = metrics.histogram("nmea_batch_fix_to_socket_us");
+    private volatile long retiredPartialWrites = 0;
+    private volatile long retiredSentencesDropped = 0;
+
+    private ServerSocketChannel server;
+    private ServerSocketChannel statsServer;
+    private int statsPort = 0;
+    private DatagramOutput datagramOutput;
+    private TrackLog trackLog;
+    private SentencePublisher.Cursor datagramCursor;
+    private final SentencePublisher.Sink datagramSink = new SentencePublisher.Sink() {
+        @Override
+        public void onSentence(byte[] data, int offset, int length, int type, long time) {
+            datagramOutput.send(data, offset, length, type);
+        }
+    };
+    private volatile boolean closed = false;
+    private long openTime;
+    private volatile long timeToFirstAccept = -1;
+    private volatile int subscribedTypes = 0;
+    private long requestedInterval = 0;
+
+    private int workerCount = 1;
+    private int queueDepth = 8;
+    private ClientConnection.DropPolicy dropPolicy = ClientConnection.DropPolicy.COALESCE_LATEST;
+    private int highWaterMark = 4 * 1024;
+    private ClientConnection.LaggardPolicy laggardPolicy =
+            ClientConnection.LaggardPolicy.DROP_STALE;
+    private int keyframeInterval = DeltaCodec.DEFAULT_KEYFRAME_INTERVAL;
+    private int replayCount = 1;
+    private int backlog = 50;
+    private int maxClients = 0;
+    private boolean keepAlive = true;
+    private int sendBufferSize = 0;
+    private long writeTimeout = 0;
+    private long minFixInterval = 0;
+    private long batchInterval = 0;
+
+    /**
+     * @param port     the port to listen on, or 0 for any free port.
+     * @param listener receives the events of the server.
+     */
+    public NmeaBroadcastServer(int port, Listener listener) {
+        this.port = port;
+        this.listener = listener;
+
+        metrics.gauge("nmea_clients", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return clients.size();
+            }
+        });
+        metrics.gauge("nmea_first_accept_ms", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return timeToFirstAccept;
+            }
+        });
+        metrics.gauge("nmea_partial_writes", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                long total = retiredPartialWrites;
+                for (ClientConnection client : clients)
+                    total += client.getPartialWrites();
+                return total;
+            }
+        });
+        metrics.gauge("nmea_sentences_dropped", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                long total = retiredSentencesDropped;
+                for (ClientConnection client : clients)
+                    total += client.getSentencesDropped();
+                return total;
+            }
+        });
+    }
+
+    /**
+     * @param workers the number of selector threads serving the clients, at least 1. It must be
+     *                set before {@link #open()}.
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("At least one worker is needed");
+
+        this.workerCount = workers;
+    }
+
+    /**
+     * @param queueDepth the maximum number of sentences queued for a single client.
+     */
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * @param dropPolicy what to do with a new sentence when the queue of a client is full.
+     */
+    public void setDropPolicy(ClientConnection.DropPolicy dropPolicy) {
+        this.dropPolicy = dropPolicy;
+    }
+
+    /**
+     * @param highWaterMark the maximum number of bytes that may be pending for a single client.
+     */
+    public void setHighWaterMark(int highWaterMark) {
+        this.highWaterMark = highWaterMark;
+    }
+
+    /**
+     * @param laggardPolicy what to do with a client that would exceed the high-water mark.
+     */
+    public void setLaggardPolicy(ClientConnection.LaggardPolicy laggardPolicy) {
+        this.laggardPolicy = laggardPolicy;
+    }
+
+    /**
+     * @param keyframeInterval the number of fixes between keyframes for the clients that asked
+     *                         for deltas with {@code FORMAT DELTA}.
+     */
+    public void setKeyframeInterval(int keyframeInterval) {
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * @param replayCount the number of recent fixes from {@link #getHistory()} sent to a client
+     *                    as soon as it connects or changes its format, at most 32, or 0 to wait
+     *                    for the next fix.
+     */
+    public void setReplayCount(int replayCount) {
+        this.replayCount = Math.max(0, Math.min(replayCount, HISTORY_SIZE));
+    }
+
+    /**
+     * @param backlog the maximum number of connections waiting to be accepted, beyond which the
+     *                system refuses them. It must be set before {@link #open()}.
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * @param maxClients the maximum number of connected clients, or 0 for no limit. Clients
+     *                   connecting beyond it get {@link #RESPONSE_BUSY} and are disconnected.
+     */
+    public void setMaxClients(int maxClients) {
+        this.maxClients = maxClients;
+    }
+
+    /**
+     * @param keepAlive whether to enable TCP keep-alive on the connections of new clients, so that
+     *                  the system eventually drops those of peers that are gone.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @param sendBufferSize the size of the socket send buffer of new clients in bytes, or 0 for
+     *                       the system default. A client that stops reading can't drain its
+     *                       queue once this much is buffered.
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * @param writeTimeout the time in milliseconds a client with something queued has to make
+     *                     progress, from the moment something is queued for it or the last
+     *                     time anything was written to it, before it is evicted, or 0 to never
+     *                     evict clients for being slow. A slow client that keeps reading is
+     *                     not evicted.
+     */
+    public void setWriteTimeout(long writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * @param minFixInterval the shortest interval between real fixes in milliseconds, or 0 for no
+     *                       minimum. Clients asking for a shorter interval get estimated fixes
+     *                       at their interval between the real ones, and the interval reported
+     *                       to the {@link Listener} is never shorter.
+     */
+    public void setMinFixInterval(long minFixInterval) {
+        this.minFixInterval = minFixInterval;
+    }
+
+    /**
+     * @param batchInterval the time in milliseconds the sentences of new clients may be held back
+     *                      for, so that they are written in batches, or 0 to write them as soon
+     *                      as possible. Clients can change it with {@link #REQUEST_BATCH}.
+     */
+    public void setBatchInterval(long batchInterval) {
+        this.batchInterval = Math.max(0, Math.min(batchInterval, MAX_BATCH_INTERVAL));
+    }
+
+    /**
+     * Connections to the stats port that haven't sent their request and read the response within
+     * the write timeout, or 10 seconds without one, are closed.
+     *
+     * @param statsPort the port to serve the metrics on as plain text, over HTTP so that they can
+     *                  be scraped from the LAN, or 0 to not serve them. It must be set before
+     *                  {@link #open()}.
+     */
+    public void setStatsPort(int statsPort) {
+        this.statsPort = statsPort;
+    }
+
+    /**
+     * Sends sentences as UDP datagrams besides serving them over TCP. It must be set before
+     * {@link #open()}.
+     *
+     * @param target       the multicast group or broadcast address, with the port to send to.
+     * @param localAddress the address of the Wi-Fi interface to send through, or {@code null}
+     *                     to follow the routing table.
+     * @param ttl          the time to live of multicast datagrams, e.g.
+     *                     {@link DatagramOutput#DEFAULT_TTL}.
+     * @param types        the {@code NmeaScanner.TYPE_*} flags of the sentence types to send.
+     */
+    public void setDatagramOutput(InetSocketAddress target, InetAddress localAddress, int ttl,
+                                  int types) {
+        datagramOutput = new DatagramOutput(target, localAddress, ttl, types);
+        datagramCursor = publisher.newCursor();
+
+        metrics.gauge("nmea_datagrams_sent", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return datagramOutput.getSent();
+            }
+        });
+        metrics.gauge("nmea_datagrams_dropped", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return datagramOutput.getDropped();
+            }
+        });
+    }
+
+    /**
+     * Moves the datagrams to another interface, e.g. when the Wi-Fi address changed. It can be
+     * called from any thread, and does nothing without {@link #setDatagramOutput}.
+     *
+     * @param localAddress the address of the interface to send through, or {@code null} to
+     *                     follow the routing table.
+     */
+    public void setDatagramAddress(InetAddress localAddress) {
+        if (datagramOutput != null)
+            datagramOutput.setLocalAddress(localAddress);
+    }
+
+    /**
+     * Logs every fix added with {@link #addFix}, and every estimated fix sent, once, to a track
+     * log.
+     * The records are queued by {@link TrackLog#offer} and appended by the first worker. It must
+     * be set before {@link #open()}. The log is closed with the server.
+     *
+     * @param trackLog an open track log.
+     */
+    public void setTrackLog(final TrackLog trackLog) {
+        this.trackLog = trackLog;
+
+        metrics.gauge("nmea_track_records", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return trackLog.getRecords();
+            }
+        });
+        metrics.gauge("nmea_track_records_dropped", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return trackLog.getDropped();
+            }
+        });
+    }
+
+    /**
+     * Binds the server socket and opens the selectors of the workers.
+     *
+     * @throws IOException if the port can't be bound. Nothing is left open then.
+     */
+    public void open() throws IOException {
+        openTime = System.nanoTime();
+
+        try {
+            estimates = new SharedEstimate(history, trackLog);
+            workers = new Worker[workerCount];
+            for (int i = 0; i < workers.length; i++)
+                workers[i] = new Worker();
+
+            Selector acceptor = workers[0].selector;
+
+            server = ServerSocketChannel.open();
+            server.configureBlocking(false);
+            server.socket().bind(new InetSocketAddress(port), backlog);
+            server.register(acceptor, SelectionKey.OP_ACCEPT);
+
+            if (statsPort != 0) {
+                statsServer = ServerSocketChannel.open();
+                statsServer.configureBlocking(false);
+                statsServer.socket().bind(new InetSocketAddress(statsPort));
+                statsServer.register(acceptor, SelectionKey.OP_ACCEPT);
+            }
+
+            if (datagramOutput != null) {
+                datagramOutput.open();
+                subscribedTypes = datagramOutput.getTypes();
+            }
+        } catch (IOException e) {
+            closeServers();
+            for (Worker worker : workers) {
+                if (worker != null)
+                    worker.shutdown();
+            }
+            workers = new Worker[0];
+            throw e;
+        }
+    }
+
+    /**
+     * @return the port the server is bound to.
+     */
+    public int getLocalPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Serves the clients until {@link #close()} is called or the thread is interrupted. The
+     * other workers are started and stopped with it. Everything is closed on return.
+     */
+    @Override
+    public void run() {
+        Thread[] threads = new Thread[workers.length];
+
+        for (int i = 1; i < workers.length; i++) {
+            threads[i] = new Thread(workers[i], "NmeaBroadcastServer-" + i);
+            threads[i].start();
+        }
+
+        try {
+            workers[0].run();
+        } finally {
+            close();
+            closeServers();
+
+            for (int i = 1; i < threads.length; i++) {
+                try {
+                    threads[i].join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            clients.clear();
+            updateSubscribedTypes();
+        }
+    }
+
+    /**
+     * Stops the server. It can be called from any thread.
+     */
+    public void close() {
+        closed = true;
+
+        for (Worker worker : workers)
+            worker.selector.wakeup();
+    }
+
+    /**
+     * Publishes a sentence for the clients that subscribed to its type.
+     *
+     * @param data   the sentence, optionally followed by line terminators.
+     * @param length the number of characters of the sentence.
+     * @param type   the {@code NmeaScanner.TYPE_*} flag of the sentence type.
+     */
+    public void publish(CharSequence data, int length, int type) {
+        if ((subscribedTypes & type) == 0)
+            return;
+
+        /* Sentences coming from the GPS may already be terminated. */
+        while (length > 0 && (data.charAt(length - 1) == '\n' || data.charAt(length - 1) == '\r'))
+            length--;
+
+        publisher.publish(data, length, type);
+        sentencesPublished.increment();
+        wakeup();
+    }
+
+    /**
+     * Same as {@link #publish(CharSequence, int, int)} for a sentence that is already encoded,
+     * without line terminators.
+     *
+     * @param data   the array holding the sentence.
+     * @param length the length of the sentence.
+     * @param type   the {@code NmeaScanner.TYPE_*} flag of the sentence type.
+     */
+    public void publish(byte[] data, int length, int type) {
+        if ((subscribedTypes & type) == 0)
+            return;
+
+        publisher.publish(data, length, type);
+        sentencesPublished.increment();
+        wakeup();
+    }
+
+    /**
+     * @return the {@code NmeaScanner.TYPE_*} flags of the sentence types at least one client
+     * subscribed to.
+     */
+    public int getSubscribedTypes() {
+        return subscribedTypes;
+    }
+
+    /**
+     * @return the number of connected clients.
+     */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * @return the connected clients, a live read-only view that can be iterated from any thread.
+     */
+    public List<ClientConnection> getClients() {
+        return Collections.unmodifiableList(clients);
+    }
+
+    /**
+     * @return the time in milliseconds from {@link #open()} to the first accepted client, or -1 if
+     * no client was accepted yet.
+     */
+    public long getTimeToFirstAccept() {
+        return timeToFirstAccept;
+    }
+
+    /**
+     * @return the number of times the selector loops have woken up.
+     */
+    public long getWakeups() {
+        return wakeups.get();
+    }
+
+    /**
+     * Adds a fix to the history, and to the track log if there is one. The fixes are not sent,
+     * this is what {@link #publish} is for, but the owner of the server knows them while the
+     * server only sees sentences. A {@link FixCodec} frame of the fix must be encoded with the
+     * sequence number returned, so that it is numbered like the frames the server makes. It can
+     * be called from any thread and doesn't allocate.
+     *
+     * @param time        UTC time of the fix in milliseconds since the epoch.
+     * @param latitude    latitude in degrees.
+     * @param longitude   longitude in degrees.
+     * @param hdop        horizontal dilution of precision.
+     * @param accuracy    accuracy in meters.
+     * @param hasAltitude whether {@code altitude} is known.
+     * @param altitude    altitude in meters.
+     * @param quality     the fix quality, as in GGA.
+     * @return the sequence number of the fix, see {@link FixHistory#add}, or -1 if it was not
+     * added.
+     */
+    public long addFix(long time, double latitude, double longitude, double hdop,
+                       double accuracy, boolean hasAltitude, double altitude, int quality) {
+        long sequence = history.add(time, latitude, longitude, hdop, accuracy, hasAltitude,
+                altitude, quality);
+        if (sequence < 0)
+            return sequence;
+
+        /* The estimate before it is logged first. The fix was just published to the clients
+         * connected now. */
+        if (estimates != null)
+            estimates.log();
+        Worker[] w = workers;
+        if (trackLog != null && trackLog.offer(time, latitude, longitude, hasAltitude, altitude,
+                accuracy, getClientCount(), quality) && w.length > 0)
+            w[0].selector.wakeup();
+        return sequence;
+    }
+
+    /**
+     * @return the recent fixes, replayed to new clients.
+     */
+    public FixHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * @return the reckoner the estimated fixes are taken from. Its owner feeds it the fixes that
+     * are published, with their velocity, received at {@link #now()}.
+     */
+    public DeadReckoner getDeadReckoner() {
+        return reckoner;
+    }
+
+    /**
+     * @return the metrics of the server.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    private void wakeup() {
+        for (int i = 0; i < workers.length; i++) {
+            Worker worker = workers[i];
+
+            if (worker.clientCount > 0 || (i == 0 && datagramOutput != null)) {
+                worker.published.set(true);
+                worker.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Hands a new connection to the worker with the fewest clients.
+     */
+    private void assign(SocketChannel client) throws IOException {
+        Worker target = workers[0];
+
+        for (Worker worker : workers) {
+            if (worker.clientCount + worker.pending.size()
+                    < target.clientCount + target.pending.size())
+                target = worker;
+        }
+
+        try {
+            client.configureBlocking(false);
+
+            Socket socket = client.socket();
+            socket.setKeepAlive(keepAlive);
+            if (sendBufferSize > 0)
+                socket.setSendBufferSize(sendBufferSize);
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+
+        if (target == workers[0]) {
+            target.addClient(client);
+        } else {
+            target.pending.add(client);
+            target.selector.wakeup();
+        }
+    }
+
+    /**
+     * @return the number of clients connected or about to be, including those that are still
+     * queued for a worker.
+     */
+    private int countClients() {
+        int count = 0;
+
+        for (Worker worker : workers)
+            count += worker.clientCount + worker.pending.size();
+
+        return count;
+    }
+
+    /**
+     * Tells a client that there are too many clients, and disconnects it. The response is short
+     * enough for the empty socket buffer of a new connection, so the write doesn't block.
+     */
+    private void reject(SocketChannel client) {
+        try {
+            client.write(ByteBuffer.wrap(BUSY));
+        } catch (IOException e) {
+            /* Rejected either way. */
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                /* Closing anyway. */
+            }
+        }
+
+        clientsRejected.increment();
+    }
+
+    private synchronized void registerClient(ClientConnection connection) {
+        clients.add(connection);
+        updateSubscribedTypes();
+        updateRequestedInterval();
+
+        listener.onClientConnected(connection, clients.size());
+    }
+
+    private synchronized void unregisterClient(ClientConnection connection) {
+        if (!clients.remove(connection))
+            return;
+
+        updateSubscribedTypes();
+        updateRequestedInterval();
+
+        retiredPartialWrites += connection.getPartialWrites();
+        retiredSentencesDropped += connection.getSentencesDropped();
+
+        listener.onClientDisconnected(connection, clients.size());
+    }
+
+    /**
+     * Handles a request line of a client.
+     *
+     * @return {@code true} if the client changed its format, and should get the recent fixes in
+     * the new one.
+     */
+    private synchronized boolean handleRequest(ClientConnection connection, String request) {
+        ClientRequest parsed = ClientRequest.parse(request);
+        if (parsed == null)
+            return false;
+
+        switch (parsed.getType()) {
+            case SUBSCRIBE:
+                connection.setSubscriptions(parsed.getSubscriptions());
+                connection.setDeltaCodec(null);
+                updateSubscribedTypes();
+                return false;
+            case INTERVAL:
+                connection.setRequestedInterval(parsed.getInterval());
+                updateRequestedInterval();
+                return false;
+            case BATCH:
+                connection.setBatchInterval(parsed.getInterval());
+                return false;
+            default:
+                connection.setSubscriptions(parsed.getSubscriptions());
+                connection.setDeltaCodec(
+                        parsed.isDelta() ? new DeltaCodec(keyframeInterval) : null);
+                updateSubscribedTypes();
+                return true;
+        }
+    }
+
+    /**
+     * Tells the listener about the shortest interval between fixes any client wants. Clients
+     * that never sent {@link #REQUEST_INTERVAL}, like Geoclue, want the default one.
+     */
+    private void updateRequestedInterval() {
+        long interval = 0;
+
+        for (ClientConnection client : clients) {
+            long requested = client.getRequestedInterval();
+            if (requested <= 0)
+                requested = GpsScheduler.DEFAULT_INTERVAL;
+            if (interval == 0 || requested < interval)
+                interval = requested;
+        }
+
+        /* The GPS doesn't go faster than the minimum, the estimated fixes fill the gaps. */
+        if (interval > 0 && interval < minFixInterval)
+            interval = minFixInterval;
+
+        if (interval == requestedInterval)
+            return;
+
+        requestedInterval = interval;
+        listener.onRequestedIntervalChanged(interval);
+    }
+
+    private void updateSubscribedTypes() {
+        int types = datagramOutput != null ? datagramOutput.getTypes() : 0;
+
+        for (ClientConnection client : clients)
+            types |= client.getSubscriptions();
+
+        subscribedTypes = types;
+    }
+
+    /**
+     * @return the time in milliseconds of the monotonic clock of the write deadlines and of the
+     * {@link #getDeadReckoner()}.
+     */
+    static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private void closeServers() {
+        if (datagramOutput != null)
+            datagramOutput.close();
+        if (trackLog != null) {
+            /* The workers are done, the estimate and records still queued are written. */
+            if (estimates != null)
+                estimates.log();
+            trackLog.flush();
+            trackLog.close();
+        }
+
+        try {
+            if (server != null)
+                server.close();
+            if (statsServer != null)
+                statsServer.close();
+        } catch (IOException e) {
+            /* Closing anyway. */
+        }
+    }
+
+    /**
+     * A selector thread serving its share of the clients.
+     */
+    private final class Worker implements Runnable {
+        private final Selector selector;
+        private final BroadcastBuffer sentences = new BroadcastBuffer(BROADCAST_BUFFER_SIZE);
+        private final SentencePublisher.Cursor cursor = publisher.newCursor();
+        private final AtomicBoolean published = new AtomicBoolean(false);
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+        private final List<ClientConnection> connections = new ArrayList<ClientConnection>();
+        private final ClientFormatter formatter =
+                new ClientFormatter(sentences, history, reckoner, estimates);
+        private final TimerWheel writeTimers =
+                new TimerWheel(WRITE_TIMER_TICK, WRITE_TIMER_SLOTS, now());
+        private final TimerWheel reckonTimers =
+                new TimerWheel(RECKON_TIMER_TICK, RECKON_TIMER_SLOTS, now());
+        private final TimerWheel.Callback reckonDue = new TimerWheel.Callback() {
+            @Override
+            public void onExpired(TimerWheel.Timer timer) {
+                ClientConnection client = (ClientConnection) timer.attachment();
+                long due = timer.getDeadline();
+
+                /* Keep the cadence, unless the loop fell more than an interval behind. */
+                long interval = getEstimateInterval(client);
+                long next = (due / interval + 1) * interval;
+                reckonTimers.schedule(timer, next > now() ? next : nextEstimate(client, now()));
+                offerEstimate(client, due);
+            }
+        };
+        private final TimerWheel flushTimers =
+                new TimerWheel(WRITE_TIMER_TICK, WRITE_TIMER_SLOTS, now());
+        private final TimerWheel.Callback flushDue = new TimerWheel.Callback() {
+            @Override
+            public void onExpired(TimerWheel.Timer timer) {
+                requestWrite((ClientConnection) timer.attachment());
+            }
+        };
+        private final TimerWheel.Callback writeTimedOut = new TimerWheel.Callback() {
+            @Override
+            public void onExpired(TimerWheel.Timer timer) {
+                if (timer.attachment() instanceof StatsRequest) {
+                    closeStatsRequest((StatsRequest) timer.attachment());
+                    return;
+                }
+
+                ClientConnection client = (ClientConnection) timer.attachment();
+                if (client.isEmpty())
+                    return;
+
+                client.evict();
+                removeClient(client);
+                clientsTimedOut.increment();
+            }
+        };
+        private volatile int clientCount = 0;
+        private final SentencePublisher.Sink sink = new SentencePublisher.Sink() {
+            @Override
+            public void onSentence(byte[] data, int offset, int length, int type, long time) {
+                long position = -1;
+
+                for (int i = 0; i < connections.size(); i++) {
+                    ClientConnection client = connections.get(i);
+                    if ((client.getSubscriptions() & type) == 0)
+                        continue;
+
+                    /* A real fix, the next estimate is due about an interval from now. */
+                    TimerWheel.Timer timer = client.getReckonTimer();
+                    if (timer.isScheduled()
+                            && (type == NmeaScanner.TYPE_GGA || type == NmeaScanner.TYPE_FIX))
+                        reckonTimers.schedule(timer, nextEstimate(client, now()));
+
+                    if (client.getDeltaCodec() != null && type == NmeaScanner.TYPE_FIX) {
+                        formatter.offerDelta(client, data, offset, time);
+                        continue;
+                    }
+
+                    if (position == -1)
+                        position = sentences.put(data, offset, length);
+                    client.offer(position, length + 2, time);
+                }
+            }
+        };
+
+        Worker() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed && !Thread.currentThread().isInterrupted()) {
+                    Iterator<SelectionKey> i;
+
+                    try {
+                        /* Sleep until the next deadline, if there is one. */
+                        selector.select(getTimeout());
+                        wakeups.increment();
+
+                        SocketChannel client;
+                        while ((client = pending.poll()) != null)
+                            addClient(client);
+
+                        if (published.getAndSet(false)) {
+                            publisher.drain(cursor, sink);
+                            enableWrites();
+
+                            if (this == workers[0] && datagramOutput != null)
+                                publisher.drain(datagramCursor, datagramSink);
+                        }
+
+                        if (this == workers[0] && trackLog != null)
+                            trackLog.flush();
+
+                        Set<SelectionKey> keys = selector.selectedKeys();
+                        keysPerWakeup.record(keys.size());
+                        i = keys.iterator();
+                    } catch (IOException e) {
+                        continue;
+                    }
+
+                    while (i.hasNext() && !closed) {
+                        SelectionKey key = i.next();
+                        i.remove();
+
+                        /* Its client was removed when the sentences were written. */
+                        if (!key.isValid())
+                            continue;
+
+                        if (key.attachment() instanceof StatsRequest) {
+                            answerStatsRequest(key);
+                            continue;
+                        }
+
+                        try {
+                            if (key.isAcceptable()) {
+                                if (key.channel() == statsServer)
+                                    acceptStatsRequest();
+                                else
+                                    acceptClient();
+
+                                continue;
+                            }
+
+                            if (key.isReadable()) {
+                                readFromClient((ClientConnection) key.attachment());
+
+                                continue;
+                            }
+
+                            if (key.isWritable()) {
+                                sendDataToClient((ClientConnection) key.attachment());
+                            }
+                        } catch (IOException e) {
+                            if (key.attachment() instanceof ClientConnection)
+                                removeClient((ClientConnection) key.attachment());
+                        }
+                    }
+
+                    if (reckonTimers.size() > 0 && reckonTimers.expire(now(), reckonDue) > 0) {
+                        formatter.endEstimates();
+                        enableWrites();
+                    }
+                    if (flushTimers.size() > 0)
+                        flushTimers.expire(now(), flushDue);
+                    if (writeTimers.size() > 0)
+                        writeTimers.expire(now(), writeTimedOut);
+                }
+            } finally {
+                shutdown();
+            }
+        }
+
+        /**
+         * @return the time until the next write deadline, estimated fix or batch, or 0 if there
+         * is none.
+         */
+        private long getTimeout() {
+            long now = now();
+
+            return earliest(earliest(writeTimers.getTimeout(now), reckonTimers.getTimeout(now)),
+                    flushTimers.getTimeout(now));
+        }
+
+        /**
+         * @return the shorter of two timeouts, 0 meaning none.
+         */
+        private long earliest(long a, long b) {
+            if (a == 0 || b == 0)
+                return Math.max(a, b);
+            return Math.min(a, b);
+        }
+
+        private void acceptClient() throws IOException {
+            SocketChannel client = server.accept();
+            if (client == null)
+                return;
+
+            if (timeToFirstAccept == -1)
+                timeToFirstAccept = (System.nanoTime() - openTime) / 1000000;
+
+            if (maxClients > 0 && countClients() >= maxClients)
+                reject(client);
+            else
+                assign(client);
+        }
+
+        private void addClient(SocketChannel client) throws IOException {
+            ClientConnection connection = new ClientConnection(client, queueDepth, dropPolicy,
+                    highWaterMark, laggardPolicy, sentences.newView());
+
+            try {
+                connection.setKey(client.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                client.close();
+                throw e;
+            }
+
+            connection.setBatchInterval(batchInterval);
+            connections.add(connection);
+            clientCount = connections.size();
+            registerClient(connection);
+            replay(connection);
+        }
+
+        /**
+         * Queues the recent fixes for a client, oldest first, in the format it asked for.
+         */
+        private void replay(ClientConnection client) {
+            formatter.replay(client, replayCount);
+            requestWrite(client);
+            flushAgingBatches();
+        }
+
+        /**
+         * Writes the held back batches whose oldest sentence is about to be overwritten, after
+         * something was put into the ring outside of {@link #enableWrites()}.
+         */
+        private void flushAgingBatches() {
+            for (int i = connections.size() - 1; i >= 0; i--) {
+                ClientConnection client = connections.get(i);
+                TimerWheel.Timer timer = client.getFlushTimer();
+
+                if (timer.isScheduled() && isAging(client)) {
+                    flushTimers.cancel(timer);
+                    requestWrite(client);
+                }
+            }
+        }
+
+        /**
+         * Queues the fix estimated for a due time, in the format the client asked for.
+         */
+        private void offerEstimate(ClientConnection client, long due) {
+            if (formatter.offerEstimate(client, due))
+                fixesEstimated.increment();
+        }
+
+        /**
+         * Starts estimating fixes for a client that asked for a shorter interval than the
+         * minimum fix interval, or stops if it no longer does.
+         */
+        private void updateReckoning(ClientConnection client) {
+            long interval = client.getRequestedInterval();
+            TimerWheel.Timer timer = client.getReckonTimer();
+
+            if (interval > 0 && interval < minFixInterval) {
+                if (!timer.isScheduled())
+                    reckonTimers.schedule(timer, nextEstimate(client, now()));
+            } else {
+                reckonTimers.cancel(timer);
+            }
+        }
+
+        private long getEstimateInterval(ClientConnection client) {
+            return Math.max(client.getRequestedInterval(), MIN_ESTIMATE_INTERVAL);
+        }
+
+        /**
+         * @return the first multiple of the estimate interval of a client more than half an
+         * interval after a time. The clients that asked for the same interval are due together,
+         * and share their estimates.
+         */
+        private long nextEstimate(ClientConnection client, long time) {
+            long interval = getEstimateInterval(client);
+            return ((time + interval / 2) / interval + 1) * interval;
+        }
+
+        /**
+         * Registers {@link SelectionKey#OP_WRITE} for every client that has queued data. It is
+         * called from the worker thread, as changing the interest set from another thread may
+         * block until the current {@code select()} returns on some platforms.
+         */
+        private void enableWrites() {
+            for (int i = connections.size() - 1; i >= 0; i--) {
+                ClientConnection client = connections.get(i);
+
+                if (client.isEvicted()) {
+                    removeClient(client);
+                    continue;
+                }
+
+                /* A batch is held back until it is due, unless it would have to be cut. */
+                long batch = client.getBatchInterval();
+                if (batch > 0 && !client.isEmpty() && !client.isHalfFull() && !isAging(client)) {
+                    TimerWheel.Timer timer = client.getFlushTimer();
+                    if (!timer.isScheduled())
+                        flushTimers.schedule(timer, (now() / batch + 1) * batch);
+                    continue;
+                }
+
+                requestWrite(client);
+            }
+        }
+
+        /**
+         * @return {@code true} if the oldest sentence of a client is about to be overwritten in
+         * the ring. Half of its time in the ring is left, for what is put between two checks.
+         */
+        private boolean isAging(ClientConnection client) {
+            long oldest = client.getOldestPosition();
+            return oldest != -1 && sentences.isAging(oldest);
+        }
+
+        /**
+         * Writes what a client has queued right away, and registers {@link SelectionKey#OP_WRITE}
+         * for what its socket buffer didn't take. Besides saving a wakeup, a client that isn't
+         * selected costs nothing: the selector allocates an entry of its selected keys for every
+         * client that is ready.
+         */
+        private void requestWrite(ClientConnection client) {
+            SelectionKey key = client.getKey();
+            if (key == null || !key.isValid() || client.isEmpty())
+                return;
+
+            /* It is already waiting for room in its socket buffer. */
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0)
+                return;
+
+            try {
+                sendDataToClient(client);
+            } catch (IOException e) {
+                removeClient(client);
+                return;
+            }
+
+            if (key.isValid() && !client.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                startWriteTimer(client);
+            }
+        }
+
+        /**
+         * Gives a client that has something queued until the write timeout to take some of it,
+         * unless it already has a deadline. The deadline is moved whenever something is written,
+         * and cancelled once the queue is empty.
+         */
+        private void startWriteTimer(ClientConnection client) {
+            TimerWheel.Timer timer = client.getWriteTimer();
+
+            if (writeTimeout > 0 && !timer.isScheduled())
+                writeTimers.schedule(timer, now() + writeTimeout);
+        }
+
+        private void readFromClient(ClientConnection connection) {
+            try {
+                if (connection.read() == -1) {
+                    removeClient(connection);
+                    return;
+                }
+            } catch (IOException e) {
+                removeClient(connection);
+                return;
+            }
+
+            String line;
+            while ((line = connection.nextLine()) != null) {
+                if (handleRequest(connection, line))
+                    replay(connection);
+            }
+
+            /* Writing the replay failed, and removed it. */
+            if (!connection.getChannel().isOpen())
+                return;
+
+            updateReckoning(connection);
+
+            /* A client that stopped batching gets what is held back right away. */
+            if (connection.getBatchInterval() == 0 && connection.getFlushTimer().isScheduled()) {
+                flushTimers.cancel(connection.getFlushTimer());
+                requestWrite(connection);
+            }
+        }
+
+        private void removeClient(ClientConnection connection) {
+            if (!connections.remove(connection))
+                return;
+
+            clientCount = connections.size();
+            writeTimers.cancel(connection.getWriteTimer());
+            reckonTimers.cancel(connection.getReckonTimer());
+            flushTimers.cancel(connection.getFlushTimer());
+
+            connection.clear();
+            try {
+                connection.getChannel().close();
+            } catch (IOException e) {
+                /* The client is gone either way. */
+            }
+
+            unregisterClient(connection);
+        }
+
+        private void sendDataToClient(ClientConnection connection) throws IOException {
+            long bytes;
+
+            if (connection.getBatchInterval() > 0) {
+                /* Every sentence of the batch would have been a write of its own. */
+                long written = connection.getSentencesWritten();
+                bytes = connection.write(sentences, batchLatency);
+                batchWrites.increment();
+                batchWritesSaved.add(Math.max(0, connection.getSentencesWritten() - written - 1));
+            } else {
+                bytes = connection.write(sentences, fixLatency);
+            }
+            bytesWritten.add(bytes);
+
+            /* Its partly written sentence was overwritten before it could be kept. */
+            if (connection.isEvicted()) {
+                removeClient(connection);
+                return;
+            }
+
+            /* Keep OP_WRITE while a partly written sentence is waiting for the socket buffer. */
+            if (connection.isEmpty()) {
+                connection.getKey().interestOps(SelectionKey.OP_READ);
+                writeTimers.cancel(connection.getWriteTimer());
+            } else if (bytes > 0 && writeTimeout > 0) {
+                /* It is slow but keeps reading, the deadline starts over. */
+                writeTimers.schedule(connection.getWriteTimer(), now() + writeTimeout);
+            }
+        }
+
+        private void acceptStatsRequest() throws IOException {
+            SocketChannel client = statsServer.accept();
+            if (client == null)
+                return;
+
+            client.configureBlocking(false);
+            StatsRequest request = new StatsRequest(client);
+            client.register(selector, SelectionKey.OP_READ, request);
+
+            /* A connection that never sends its request or reads the response is closed. */
+            writeTimers.schedule(request.getTimer(),
+                    now() + (writeTimeout > 0 ? writeTimeout : STATS_TIMEOUT));
+        }
+
+        /**
+         * Answers any request on the stats port with the current metrics, then closes the
+         * connection.
+         */
+        private void answerStatsRequest(SelectionKey key) {
+            StatsRequest request = (StatsRequest) key.attachment();
+
+            try {
+                if (request.answer(metrics))
+                    closeStatsRequest(request);
+                else
+                    key.interestOps(SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                closeStatsRequest(request);
+            }
+        }
+
+        private void closeStatsRequest(StatsRequest request) {
+            writeTimers.cancel(request.getTimer());
+            try {
+                request.getChannel().close();
+            } catch (IOException e) {
+                /* Closing anyway. */
+            }
+        }
+
+        private void shutdown() {
+            for (ClientConnection client : connections) {
+                client.clear();
+                try {
+                    client.getChannel().close();
+                } catch (IOException e) {
+                    /* Closing anyway. */
+                }
+            }
+            connections.clear();
+            clientCount = 0;
+
+            SocketChannel client;
+            while ((client = pending.poll()) != null) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    /* Closing anyway. */
+                }
+            }
+
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof StatsRequest)
+                        key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                /* Closing anyway. */
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.freedesktop.geoclueshare;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code NmeaFileSource} replays a recorded NMEA log, one sentence per line, like a receiver
+ * capture or a file saved from a client. It makes load and timing reproducible without a device,
+ * the sentences going through the same {@link NmeaRelay} as those of the GPS.
+ * <p>Sentences are grouped in epochs by the UTC time of their GGA and RMC sentences, and an
+ * epoch is sent when its time has come: at the pace of the recording, faster by some factor, or
+ * as fast as possible with a speed of {@link #MAX_SPEED}. The schedule is kept against the start
+ * of the replay, so sleeping late doesn't make the replay drift. Gaps of more than
+ * {@value #MAX_GAP_MS} ms in the recording are skipped, as is the gap when looping.</p>
+ * <p>The log is read on a thread of its own, which calls the listener.</p>
+ */
+public class NmeaFileSource implements FixSource, Runnable {
+
+    /**
+     * The speed at which sentences are sent without waiting.
+     */
+    public static final double MAX_SPEED = 0;
+
+    /**
+     * The longest gap between two epochs that is replayed, in milliseconds.
+     */
+    public static final long MAX_GAP_MS = 60 * 1000;
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    private final File file;
+    private final double speed;
+    private final boolean loop;
+    private final NmeaScanner scanner = new NmeaScanner();
+    private volatile Listener listener;
+    private volatile Thread thread;
+    private volatile long sentences = 0;
+    private volatile IOException error;
+    private long epochTime = -1;
+    private long epochNanos;
+
+    /**
+     * @param file  the log to replay.
+     * @param speed how many times faster than recorded to replay, or {@link #MAX_SPEED}.
+     * @param loop  whether to start over at the end of the log, instead of stopping.
+     */
+    public NmeaFileSource(File file, double speed, boolean loop) {
+        if (!(speed >= 0))
+            throw new IllegalArgumentException("Invalid speed: " + speed);
+
+        this.file = file;
+        this.speed = speed;
+        this.loop = loop;
+    }
+
+    @Override
+    public synchronized void start(Listener listener) {
+        if (thread != null)
+            throw new IllegalStateException("Already started");
+
+        this.listener = listener;
+        thread = new Thread(this, "NmeaFileSource");
+        thread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        Thread t = thread;
+        if (t == null)
+            return;
+
+        listener = null;
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * Waits until the end of the log has been replayed, when not looping.
+     *
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public void join() throws InterruptedException {
+        Thread t = thread;
+        if (t != null)
+            t.join();
+    }
+
+    /**
+     * @return the number of sentences sent so far.
+     */
+    public long getSentences() {
+        return sentences;
+    }
+
+    /**
+     * @return the error that ended the replay early, or {@code null}.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public void run() {
+        try {
+            long before;
+            do {
+                before = sentences;
+                if (!replay())
+                    return;
+                /* An empty log would loop forever. */
+            } while (loop && sentences > before);
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Replays the log once.
+     *
+     * @return {@code false} if the replay was stopped.
+     */
+    private boolean replay() throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0)
+                    continue;
+
+                if (!waitFor(line))
+                    return false;
+
+                Listener l = listener;
+                if (l == null)
+                    return false;
+
+                l.onNmeaReceived(System.currentTimeMillis(), line);
+                sentences++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Sleeps until the epoch of a sentence is due, if it starts a new one.
+     *
+     * @return {@code false} if the replay was stopped meanwhile.
+     */
+    private boolean waitFor(String sentence) {
+        long time = parseTime(sentence);
+        if (time < 0 || time == epochTime)
+            return !Thread.currentThread().isInterrupted();
+
+        long now = System.nanoTime();
+
+        if (epochTime < 0 || speed == MAX_SPEED) {
+            epochNanos = now;
+        } else {
+            long gap = time - epochTime;
+            if (gap < 0)
+                gap += DAY_MS;
+            if (gap > MAX_GAP_MS)
+                gap = 0;
+
+            epochNanos += (long) (TimeUnit.MILLISECONDS.toNanos(gap) / speed);
+            /* Don't try to catch up with epochs that were missed by more than a gap. */
+            epochNanos = Math.max(epochNanos, now - TimeUnit.MILLISECONDS.toNanos(MAX_GAP_MS));
+
+            while (now < epochNanos && !Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(epochNanos - now);
+                now = System.nanoTime();
+            }
+        }
+        epochTime = time;
+
+        return !Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * @return the UTC time of day of a GGA or RMC sentence in milliseconds, or -1 if it isn't one
+     * or its time can't be read.
+     */
+    private long parseTime(String sentence) {
+        if (scanner.scan(sentence, NmeaScanner.TYPE_GGA | NmeaScanner.TYPE_RMC)
+                == NmeaScanner.TYPE_NONE || scanner.getFieldCount() < 2)
+            return -1;
+
+        int start = scanner.fieldStart(1);
+        int end = scanner.fieldEnd(1);
+        if (end - start < 6)
+            return -1;
+
+        long time = 0;
+        for (int i = start; i < start + 6; i++) {
+            char c = sentence.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            time = time * 10 + (c - '0');
+        }
+        time = (time / 10000 * 3600 + time / 100 % 100 * 60 + time % 100) * 1000;
+
+        /* Milliseconds from the fraction of a second, e.g. hhmmss.25 */
+        if (end - start > 7 && sentence.charAt(start + 6) == '.') {
+            int scale = 100;
+            for (int i = start + 7; i < end && scale > 0; i++, scale /= 10) {
+                char c = sentence.charAt(i);
+                if (c < '0' || c > '9')
+                    return -1;
+                time += (c - '0') * scale;
+            }
+        }
+
+        return time;
+    }
+}
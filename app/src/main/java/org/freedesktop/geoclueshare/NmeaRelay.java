@@ -0,0 +1,146 @@
+package org.freedesktop.geoclueshare;
+
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code NmeaRelay} forwards the sentences of a {@link FixSource} to the clients. Sentence types
+ * nobody subscribed to are dropped, and GGA sentences are only relayed from the GPS talker.
+ * <p>Some receivers send GGA sentences without a proper UTC time, which clients can't use, and
+ * indoors they send GGA sentences without a fix. Those are replaced by a GGA sentence encoded
+ * from the last fix given to {@link #setFallback}, e.g. a fused fix, sent at most once per fix.</p>
+ * <p>A relay is not thread safe, it should be fed from a single thread. It doesn't allocate.</p>
+ */
+public class NmeaRelay implements FixSource.Listener {
+
+    /**
+     * Where the sentences are relayed to, usually a {@link NmeaBroadcastServer}.
+     */
+    public interface Output {
+        /**
+         * @return the {@code NmeaScanner.TYPE_*} flags of the sentence types at least one client
+         * subscribed to.
+         */
+        int getSubscribedTypes();
+
+        /**
+         * @see NmeaBroadcastServer#publish(CharSequence, int, int)
+         */
+        void publish(CharSequence data, int length, int type);
+
+        /**
+         * @see NmeaBroadcastServer#publish(byte[], int, int)
+         */
+        void publish(byte[] data, int length, int type);
+    }
+
+    /**
+     * The field of the fix quality in a GGA sentence.
+     */
+    private static final int GGA_QUALITY = 6;
+
+    private final NmeaScanner scanner = new NmeaScanner();
+    private final GgaEncoder fallback = new GgaEncoder();
+    private final Output output;
+    private boolean hasFallback = false;
+    private long relayed = 0;
+    private long ggaReceived = 0;
+
+    /**
+     * @param output where the sentences are relayed to.
+     */
+    public NmeaRelay(Output output) {
+        this.output = output;
+    }
+
+    @Override
+    public void onNmeaReceived(long timestamp, String nmea) {
+        /* Sentence types nobody subscribed to are rejected by the scanner right away. */
+        int type = scanner.scan(nmea, NmeaScanner.TYPE_GGA | output.getSubscribedTypes());
+
+        if (type == NmeaScanner.TYPE_NONE)
+            return;
+
+        if (type != NmeaScanner.TYPE_GGA) {
+            output.publish(nmea, nmea.length(), type);
+            relayed++;
+            return;
+        }
+
+        if (scanner.getTalker() != NmeaScanner.TALKER_GP)
+            return;
+
+        ggaReceived++;
+
+        if (scanner.hasValidTime() && hasFix(nmea)) {
+            output.publish(nmea, nmea.length(), NmeaScanner.TYPE_GGA);
+            relayed++;
+            hasFallback = false;
+        } else if (hasFallback) {
+            output.publish(fallback.getBuffer(), fallback.length(), NmeaScanner.TYPE_GGA);
+            relayed++;
+            hasFallback = false;
+        }
+    }
+
+    /**
+     * Sets the fix that replaces the next GGA sentence without a valid time.
+     *
+     * @param time        UTC time of the fix in milliseconds since the epoch.
+     * @param latitude    latitude in degrees.
+     * @param longitude   longitude in degrees.
+     * @param hdop        horizontal dilution of precision.
+     * @param hasAltitude whether {@code altitude} is known.
+     * @param altitude    altitude in meters.
+     * @param quality     the fix quality, e.g. {@link FixCodec#QUALITY_GPS}.
+     */
+    public void setFallback(long time, double latitude, double longitude, double hdop,
+                            boolean hasAltitude, double altitude, int quality) {
+        fallback.encode(time, latitude, longitude, hdop, hasAltitude, altitude, quality);
+        hasFallback = true;
+    }
+
+    /**
+     * @return the number of GGA sentences received from the GPS talker, relayed or not. While it
+     * doesn't change, the source isn't sending any and a fallback fix is never used.
+     */
+    public long getGgaReceived() {
+        return ggaReceived;
+    }
+
+    /**
+     * @return the number of sentences relayed.
+     */
+    public long getRelayed() {
+        return relayed;
+    }
+
+    /**
+     * @return {@code false} if the fix quality of the scanned GGA sentence is 0 or empty.
+     */
+    private boolean hasFix(String nmea) {
+        if (scanner.getFieldCount() <= GGA_QUALITY)
+            return false;
+
+        int start = scanner.fieldStart(GGA_QUALITY);
+        return scanner.fieldEnd(GGA_QUALITY) > start && nmea.charAt(start) != '0';
+    }
+}
@@ -0,0 +1,250 @@
+package org.freedesktop.geoclueshare;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code NmeaScanner} classifies NMEA sentences and finds their fields in a single pass, without
+ * regular expressions or substrings.
+ * <p>The sentence type is read from the first characters, so sentences of a type the caller is
+ * not interested in are rejected before the rest is looked at. Accepted sentences have their
+ * checksum verified and the offsets of their fields recorded, see {@link #fieldStart(int)} and
+ * {@link #fieldEnd(int)}.</p>
+ * <p>A scanner is not thread safe. Its state describes the last scanned sentence.</p>
+ */
+public class NmeaScanner {
+
+    /**
+     * Returned by {@link #scan} for sentences that are not accepted or not valid.
+     */
+    public static final int TYPE_NONE = 0;
+
+    /**
+     * Global positioning system fix data.
+     */
+    public static final int TYPE_GGA = 1;
+
+    /**
+     * Recommended minimum specific GNSS data.
+     */
+    public static final int TYPE_RMC = 1 << 1;
+
+    /**
+     * GNSS DOP and active satellites.
+     */
+    public static final int TYPE_GSA = 1 << 2;
+
+    /**
+     * GNSS satellites in view.
+     */
+    public static final int TYPE_GSV = 1 << 3;
+
+    /**
+     * Course over ground and ground speed.
+     */
+    public static final int TYPE_VTG = 1 << 4;
+
+    /**
+     * Not a sentence: a binary fix frame encoded by {@link FixCodec}, for the clients that asked
+     * for them. {@link #scan} and {@link #parseType} never return it.
+     */
+    public static final int TYPE_FIX = 1 << 5;
+
+    /**
+     * The talker id of GPS receivers, as returned by {@link #getTalker()}.
+     */
+    public static final int TALKER_GP = ('G' << 8) | 'P';
+
+    /**
+     * The maximum number of fields recorded, including the address field.
+     */
+    public static final int MAX_FIELDS = 32;
+
+    private final int[] fieldStarts = new int[MAX_FIELDS];
+    private final int[] fieldEnds = new int[MAX_FIELDS];
+    private CharSequence sentence;
+    private int fieldCount = 0;
+    private int length = 0;
+    private int talker = 0;
+
+    /**
+     * Scans a sentence.
+     *
+     * @param nmea          the sentence, optionally followed by line terminators.
+     * @param acceptedTypes the {@code TYPE_*} flags of the sentence types to accept.
+     * @return the type of the sentence, or {@link #TYPE_NONE} if it is of a type that is not
+     * accepted, is malformed or its checksum doesn't match.
+     */
+    public int scan(CharSequence nmea, int acceptedTypes) {
+        sentence = nmea;
+        fieldCount = 0;
+        length = 0;
+
+        int n = nmea.length();
+        if (n < 7 || nmea.charAt(0) != '$' || nmea.charAt(6) != ',')
+            return TYPE_NONE;
+
+        int type = typeOf(nmea.charAt(3), nmea.charAt(4), nmea.charAt(5));
+        if ((type & acceptedTypes) == 0)
+            return TYPE_NONE;
+
+        talker = (nmea.charAt(1) << 8) | nmea.charAt(2);
+
+        int checksum = 0;
+        int start = 1;
+        int i = 1;
+
+        for (; i < n; i++) {
+            char c = nmea.charAt(i);
+
+            if (c == '*' || c == '\r' || c == '\n')
+                break;
+
+            if (c == ',')
+                start = addField(start, i);
+
+            checksum ^= c;
+        }
+        addField(start, i);
+        length = i;
+
+        if (i < n && nmea.charAt(i) == '*') {
+            if (i + 2 >= n)
+                return TYPE_NONE;
+
+            int expected = (hexValue(nmea.charAt(i + 1)) << 4) | hexValue(nmea.charAt(i + 2));
+            if (expected != checksum)
+                return TYPE_NONE;
+
+            length = i + 3;
+        }
+
+        return type;
+    }
+
+    /**
+     * @return the talker id of the last scanned sentence, e.g. {@link #TALKER_GP}.
+     */
+    public int getTalker() {
+        return talker;
+    }
+
+    /**
+     * @return the length of the last scanned sentence, including its checksum but not the line
+     * terminators.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the number of fields of the last scanned sentence, including the address field.
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @param field the index of the field, the address field being 0.
+     * @return the offset of the first character of the field.
+     */
+    public int fieldStart(int field) {
+        return fieldStarts[field];
+    }
+
+    /**
+     * @param field the index of the field, the address field being 0.
+     * @return the offset just past the last character of the field.
+     */
+    public int fieldEnd(int field) {
+        return fieldEnds[field];
+    }
+
+    /**
+     * @return {@code true} if the UTC time field of the last scanned sentence is made of exactly
+     * six digits, {@code hhmmss}.
+     */
+    public boolean hasValidTime() {
+        if (fieldCount < 2 || fieldEnds[1] - fieldStarts[1] != 6)
+            return false;
+
+        for (int i = fieldStarts[1]; i < fieldEnds[1]; i++) {
+            char c = sentence.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+
+        return true;
+    }
+
+    private int addField(int start, int end) {
+        if (fieldCount < MAX_FIELDS) {
+            fieldStarts[fieldCount] = start;
+            fieldEnds[fieldCount] = end;
+            fieldCount++;
+        }
+
+        return end + 1;
+    }
+
+    /**
+     * Parses the name of a sentence type, e.g. {@code "RMC"}, case insensitively.
+     *
+     * @param name the name of the sentence type, without talker id.
+     * @return the {@code TYPE_*} flag of the sentence type, or {@link #TYPE_NONE} if it is not
+     * known.
+     */
+    public static int parseType(CharSequence name) {
+        if (name.length() != 3)
+            return TYPE_NONE;
+
+        return typeOf(Character.toUpperCase(name.charAt(0)),
+                Character.toUpperCase(name.charAt(1)),
+                Character.toUpperCase(name.charAt(2)));
+    }
+
+    private static int typeOf(char a, char b, char c) {
+        switch ((a << 16) | (b << 8) | c) {
+            case ('G' << 16) | ('G' << 8) | 'A':
+                return TYPE_GGA;
+            case ('R' << 16) | ('M' << 8) | 'C':
+                return TYPE_RMC;
+            case ('G' << 16) | ('S' << 8) | 'A':
+                return TYPE_GSA;
+            case ('G' << 16) | ('S' << 8) | 'V':
+                return TYPE_GSV;
+            case ('V' << 16) | ('T' << 8) | 'G':
+                return TYPE_VTG;
+            default:
+                return TYPE_NONE;
+        }
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+
+        return 0x100;
+    }
+}
@@ -0,0 +1,340 @@
+package org.freedesktop.geoclueshare;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code SentencePublisher} hands sentences from the thread that produces them to the network
+ * thread without locks. It keeps only the latest value of every kind of sentence: publishing a
+ * sentence replaces the previous one of the same talker and type, so a fix that has been
+ * superseded before the network thread got to it is never sent.
+ * <p>Every slot holds a sentence with a sequence number, written in place so that publishing
+ * allocates nothing. A slot has a version that is odd while it is written: consumers copy the
+ * slots that changed into their own {@link Cursor}, and copy again if the version moved in the
+ * meantime. The cursor also remembers what they have already seen, so nothing is sent twice.</p>
+ * <p>Some types come as a run of sentences, like the parts of GSV or the per constellation GSA of
+ * multi-GNSS receivers. Consecutive sentences of such a type are published as one growing group,
+ * of at most {@link #MAX_RUN} sentences, and the first part of a GSV message always starts a new
+ * one. A consumer that drained part of a group only gets the rest of it later, and a newer group
+ * replaces an older one as a whole.</p>
+ * <p>Sentences may be published from several threads, e.g. the GPS callbacks and a replayed log.
+ * Publishers take a lock to build their groups, consumers never do.</p>
+ */
+public class SentencePublisher {
+
+    /**
+     * A published sentence, or group of sentences. The sentence of a slot is only changed with
+     * the lock held, the copies in a cursor only by its consumer.
+     */
+    private static final class Sentence {
+        long sequence;
+        long group;
+        int type;
+        long time;
+        byte[] data = EMPTY;
+        int length;
+        final int[] ends = new int[MAX_RUN];
+        int size;
+        int slot;
+
+        /**
+         * Copies the sentence of a slot, which may be written at the same time. The copy is then
+         * garbage, but never out of bounds, and is read again.
+         */
+        void copy(Sentence source) {
+            byte[] bytes = source.data;
+            int count = Math.min(source.length, bytes.length);
+            if (data.length < count)
+                data = new byte[Math.max(count, 2 * data.length)];
+
+            System.arraycopy(bytes, 0, data, 0, count);
+            length = count;
+            size = Math.max(0, Math.min(source.size, MAX_RUN));
+            System.arraycopy(source.ends, 0, ends, 0, size);
+            sequence = source.sequence;
+            group = source.group;
+            type = source.type;
+            time = source.time;
+        }
+    }
+
+    /**
+     * A slot and its version.
+     */
+    private static final class Slot {
+        final AtomicLong version = new AtomicLong(0);
+        final Sentence sentence = new Sentence();
+    }
+
+    /**
+     * Receives the sentences drained by {@link #drain(Cursor, Sink)}.
+     */
+    public interface Sink {
+        /**
+         * @param data   the array holding the sentence, without line terminators. It belongs to
+         *               the cursor and is only valid during the call.
+         * @param offset the offset of the sentence in {@code data}.
+         * @param length the length of the sentence.
+         * @param type   the {@code NmeaScanner.TYPE_*} flag of the sentence type.
+         * @param time   the {@link System#nanoTime()} at which the sentence was published.
+         */
+        void onSentence(byte[] data, int offset, int length, int type, long time);
+    }
+
+    /**
+     * What a consumer has already drained, see {@link #newCursor()}.
+     */
+    public static final class Cursor {
+        private final long[] versions = new long[SLOTS];
+        private final long[] groups = new long[SLOTS];
+        private final int[] sizes = new int[SLOTS];
+        private final Sentence[] copies = new Sentence[SLOTS];
+        private final Sentence[] pending = new Sentence[SLOTS];
+
+        private Cursor() {
+            for (int slot = 0; slot < SLOTS; slot++)
+                copies[slot] = new Sentence();
+        }
+    }
+
+    /**
+     * Talker ids with a slot of their own, anything else shares the last one.
+     */
+    private static final int[] TALKERS = {
+            ('G' << 8) | 'P', ('G' << 8) | 'L', ('G' << 8) | 'A', ('G' << 8) | 'B',
+            ('B' << 8) | 'D', ('G' << 8) | 'N'
+    };
+    private static final int TYPES = 6;
+    private static final int SLOTS = (TALKERS.length + 1) * TYPES;
+    private static final int GROUPED_TYPES = NmeaScanner.TYPE_GSA | NmeaScanner.TYPE_GSV;
+
+    /**
+     * The most sentences in a group, as many as a GSV message can have parts. A run that goes on,
+     * e.g. GSA sentences with nothing else published in between, is split into groups this long,
+     * so that a group is never copied over and over again or outgrows the ring of a worker.
+     */
+    public static final int MAX_RUN = 9;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Slot[] slots = new Slot[SLOTS];
+    private long sequence = 0;
+    private int lastSlot = -1;
+    private byte[] encoded = new byte[128];
+
+    public SentencePublisher() {
+        for (int slot = 0; slot < SLOTS; slot++)
+            slots[slot] = new Slot();
+    }
+
+    /**
+     * Publishes a sentence.
+     *
+     * @param data   the sentence, which must start with {@code '$'} followed by the talker id.
+     * @param length the number of characters of the sentence, without line terminators.
+     * @param type   the {@code NmeaScanner.TYPE_*} flag of the sentence type.
+     */
+    public synchronized void publish(CharSequence data, int length, int type) {
+        if (encoded.length < length)
+            encoded = new byte[Math.max(length, 2 * encoded.length)];
+
+        for (int i = 0; i < length; i++) {
+            char c = data.charAt(i);
+            encoded[i] = (byte) (c < 0x80 ? c : '?');
+        }
+
+        publish(talkerOf(data.charAt(1), data.charAt(2)), type, encoded, length);
+    }
+
+    /**
+     * Same as {@link #publish(CharSequence, int, int)} for an already encoded sentence. The bytes
+     * are copied. This is also how {@link FixCodec} frames are published: their header never
+     * changes, so they all go to the same slot.
+     */
+    public synchronized void publish(byte[] data, int length, int type) {
+        publish(talkerOf((char) data[1], (char) data[2]), type, data, length);
+    }
+
+    /**
+     * Creates a cursor for a new consumer. Sentences published before are considered drained, so a
+     * consumer never starts with what an earlier one left behind.
+     *
+     * @return the cursor.
+     */
+    public synchronized Cursor newCursor() {
+        Cursor cursor = new Cursor();
+
+        for (int slot = 0; slot < SLOTS; slot++) {
+            Sentence sentence = slots[slot].sentence;
+
+            cursor.versions[slot] = slots[slot].version.get();
+            cursor.groups[slot] = sentence.group;
+            cursor.sizes[slot] = sentence.size;
+        }
+
+        return cursor;
+    }
+
+    /**
+     * Sends every sentence that was published since the last call with the same cursor to a sink,
+     * oldest first.
+     *
+     * @param cursor the consumer's cursor.
+     * @param sink   where to send the sentences.
+     * @return the number of sentences sent.
+     */
+    public int drain(Cursor cursor, Sink sink) {
+        int count = 0;
+
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (slots[slot].version.get() == cursor.versions[slot])
+                continue;
+
+            Sentence sentence = cursor.copies[slot];
+            cursor.versions[slot] = read(slots[slot], sentence);
+            sentence.slot = slot;
+
+            /* Keep the pending slots ordered by sequence, so types go out in publishing order. */
+            int i = count++;
+            while (i > 0 && cursor.pending[i - 1].sequence > sentence.sequence) {
+                cursor.pending[i] = cursor.pending[i - 1];
+                i--;
+            }
+            cursor.pending[i] = sentence;
+        }
+
+        int sent = 0;
+
+        for (int i = 0; i < count; i++) {
+            Sentence sentence = cursor.pending[i];
+            int slot = sentence.slot;
+            cursor.pending[i] = null;
+
+            int first = sentence.group == cursor.groups[slot] ? cursor.sizes[slot] : 0;
+
+            for (int line = first; line < sentence.size; line++) {
+                int start = line == 0 ? 0 : sentence.ends[line - 1];
+                sink.onSentence(sentence.data, start, sentence.ends[line] - start, sentence.type,
+                        sentence.time);
+                sent++;
+            }
+
+            cursor.groups[slot] = sentence.group;
+            cursor.sizes[slot] = sentence.size;
+        }
+
+        return sent;
+    }
+
+    /**
+     * Copies the sentence of a slot, until it wasn't written while it was copied.
+     *
+     * @return the version of the slot that was copied.
+     */
+    private static long read(Slot slot, Sentence copy) {
+        while (true) {
+            long version = slot.version.get();
+
+            if ((version & 1) == 0) {
+                copy.copy(slot.sentence);
+
+                /* A read-modify-write rather than a read, so the copy can't move past it. */
+                if (slot.version.getAndAdd(0) == version)
+                    return version;
+            }
+
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Writes a sentence into its slot, with the lock held.
+     */
+    private void publish(int talker, int type, byte[] bytes, int length) {
+        int slot = talker * TYPES + typeIndex(type);
+        long next = ++sequence;
+        Sentence sentence = slots[slot].sentence;
+
+        /* Another sentence of the same run, publish the run so far as a whole. */
+        boolean append = (type & GROUPED_TYPES) != 0 && slot == lastSlot
+                && sentence.sequence != 0 && sentence.size < MAX_RUN
+                && !isFirstPart(type, bytes, length);
+        int start = append ? sentence.length : 0;
+
+        AtomicLong version = slots[slot].version;
+        version.incrementAndGet();
+
+        if (sentence.data.length < start + length) {
+            byte[] data = new byte[Math.max(start + length, 2 * sentence.data.length)];
+            System.arraycopy(sentence.data, 0, data, 0, start);
+            sentence.data = data;
+        }
+        System.arraycopy(bytes, 0, sentence.data, start, length);
+
+        sentence.length = start + length;
+        sentence.size = append ? sentence.size + 1 : 1;
+        sentence.ends[sentence.size - 1] = sentence.length;
+        sentence.sequence = next;
+        sentence.group = append ? sentence.group : next;
+        sentence.type = type;
+        sentence.time = System.nanoTime();
+
+        version.incrementAndGet();
+        lastSlot = slot;
+    }
+
+    /**
+     * @return {@code true} if a sentence is the first part of a GSV message,
+     * {@code $xxGSV,total,1,...}.
+     */
+    private static boolean isFirstPart(int type, byte[] bytes, int length) {
+        if (type != NmeaScanner.TYPE_GSV)
+            return false;
+
+        int commas = 0;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != ',' || ++commas < 2)
+                continue;
+
+            int end = i + 2;
+            return end <= length && bytes[i + 1] == '1'
+                    && (end == length || bytes[end] == ',' || bytes[end] == '*');
+        }
+
+        return false;
+    }
+
+    private static int talkerOf(char a, char b) {
+        int talker = (a << 8) | b;
+
+        for (int i = 0; i < TALKERS.length; i++) {
+            if (TALKERS[i] == talker)
+                return i;
+        }
+
+        return TALKERS.length;
+    }
+
+    private static int typeIndex(int type) {
+        return Integer.numberOfTrailingZeros(type) % TYPES;
+    }
+}
@@ -0,0 +1,98 @@
+package org.freedesktop.geoclueshare;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+
+/**
+ * {@code SharedEstimate} numbers and logs the fixes a {@link DeadReckoner} estimates for the
+ * clients of {@link NmeaBroadcastServer}. Estimates are due at multiples of the interval a client
+ * asked for, so the clients due at the same time, on any worker, get the same estimate under a
+ * single sequence number, and it is logged once with the number of clients it was queued to.
+ * <p>An estimate is logged when the next one is numbered, or by {@link #log()} before a real fix
+ * is, so that the records stay in order. It is thread safe and doesn't allocate.</p>
+ */
+public class SharedEstimate {
+
+    private final FixHistory history;
+    private final TrackLog trackLog;
+    private final double[] fix = new double[5];
+    private long due = -1;
+    private long time;
+    private int sequence;
+    private int clients;
+    private boolean logged = true;
+
+    /**
+     * @param history  the history the sequence numbers are taken from.
+     * @param trackLog the log the estimates are queued to, or {@code null}.
+     */
+    public SharedEstimate(FixHistory history, TrackLog trackLog) {
+        this.history = history;
+        this.trackLog = trackLog;
+    }
+
+    /**
+     * Numbers the estimate due at a time. The first worker to ask for it takes a new sequence
+     * number, and logs the previous estimate.
+     *
+     * @param due  the time the estimate is due, on the clock of the reckoner.
+     * @param time UTC time of the estimate in milliseconds since the epoch.
+     * @param fix  the estimate, see {@link DeadReckoner#estimate}.
+     * @return the sequence number of the estimate.
+     */
+    public synchronized int number(long due, long time, double[] fix) {
+        if (due != this.due) {
+            log();
+            this.due = due;
+            this.time = time;
+            System.arraycopy(fix, 0, this.fix, 0, this.fix.length);
+            sequence = history.nextSequence();
+            clients = 0;
+            logged = false;
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Counts the clients an estimate was queued to.
+     *
+     * @param due     the time the estimate is due, as passed to {@link #number}.
+     * @param clients the number of clients.
+     */
+    public synchronized void addClients(long due, int clients) {
+        if (due == this.due && !logged)
+            this.clients += clients;
+    }
+
+    /**
+     * Logs the latest estimate, unless it was or it wasn't queued to any client.
+     */
+    public synchronized void log() {
+        if (logged)
+            return;
+        logged = true;
+
+        if (trackLog != null && clients > 0)
+            trackLog.offer(time, fix[0], fix[1], !Double.isNaN(fix[4]), fix[4], fix[3], clients,
+                    FixCodec.QUALITY_ESTIMATED);
+    }
+}
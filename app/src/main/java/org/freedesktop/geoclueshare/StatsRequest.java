@@ -0,0 +1,91 @@
+package org.freedesktop.geoclueshare;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code StatsRequest} is a connection to the stats port of {@link NmeaBroadcastServer}. Any
+ * request is answered with the current {@link Metrics} as plain text, then the connection is
+ * closed.
+ */
+public class StatsRequest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String HEADER = "HTTP/1.0 200 OK\r\n"
+            + "Content-Type: text/plain; charset=us-ascii\r\n"
+            + "Connection: close\r\n\r\n";
+
+    private final SocketChannel channel;
+    private final TimerWheel.Timer timer = new TimerWheel.Timer(this);
+    private ByteBuffer response;
+
+    /**
+     * @param channel the non blocking connection.
+     */
+    public StatsRequest(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @return the connection.
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the timer the connection is closed with if it stalls.
+     */
+    public TimerWheel.Timer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Reads the request, then writes as much of the response as the socket takes. The request is
+     * read first, as closing a socket with unread data resets it.
+     *
+     * @param metrics the metrics to answer with.
+     * @return {@code true} if the connection is done with and can be closed, {@code false} if the
+     * rest of the response has to be written once the socket is writable.
+     * @throws IOException if reading or writing failed.
+     */
+    public boolean answer(Metrics metrics) throws IOException {
+        if (response == null) {
+            ByteBuffer input = ByteBuffer.allocate(1024);
+            if (channel.read(input) == -1)
+                return true;
+
+            String text = metrics.appendTo(new StringBuilder(HEADER)).toString();
+            response = ByteBuffer.wrap(text.getBytes(ASCII));
+        }
+
+        channel.write(response);
+        if (response.hasRemaining())
+            return false;
+
+        channel.socket().shutdownOutput();
+        return true;
+    }
+}
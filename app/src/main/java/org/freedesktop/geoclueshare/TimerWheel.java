@@ -0,0 +1,202 @@
+package org.freedesktop.geoclueshare;
+
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code TimerWheel} keeps deadlines for a selector loop, which has no timers of its own. It is a
+ * hashed wheel: a deadline goes into the slot of its tick, so scheduling and cancelling are
+ * constant time, and {@link #expire(long, Callback)} only looks at the slots of the ticks that
+ * have passed.
+ * <p>The {@link Timer}s are linked into the slots directly, they are allocated once by their
+ * owner and can be scheduled again and again without allocating.</p>
+ * <p>Times are in milliseconds of any monotonic clock, e.g. {@link System#nanoTime()} / 1e6.
+ * A wheel is not thread safe, it belongs to the thread of its selector loop.</p>
+ */
+public class TimerWheel {
+
+    /**
+     * A deadline that can be scheduled on a wheel.
+     */
+    public static final class Timer {
+        private final Object attachment;
+        private long deadline;
+        private boolean scheduled = false;
+        private int slot;
+        private Timer previous;
+        private Timer next;
+
+        /**
+         * @param attachment what the timer is for, see {@link #attachment()}.
+         */
+        public Timer(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public Object attachment() {
+            return attachment;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isScheduled() {
+            return scheduled;
+        }
+    }
+
+    /**
+     * Receives the timers that expired.
+     */
+    public interface Callback {
+        /**
+         * @param timer the expired timer, already removed from the wheel. It may be scheduled
+         *              again.
+         */
+        void onExpired(Timer timer);
+    }
+
+    private final long tick;
+    private final Timer[] slots;
+    private long current;
+    private int size = 0;
+
+    /**
+     * @param tick  the duration of a tick in milliseconds, the precision of the deadlines.
+     * @param slots the number of slots. Deadlines further than a turn of the wheel ahead are
+     *              looked at once per turn until they expire.
+     * @param now   the current time.
+     */
+    public TimerWheel(long tick, int slots, long now) {
+        if (tick < 1 || slots < 1)
+            throw new IllegalArgumentException("A wheel needs at least one tick and slot");
+
+        this.tick = tick;
+        this.slots = new Timer[slots];
+        this.current = now / tick;
+    }
+
+    /**
+     * Schedules a timer, replacing its previous deadline if it is scheduled already. A deadline
+     * that has passed expires on the next tick.
+     *
+     * @param timer    the timer.
+     * @param deadline the time the timer expires at.
+     */
+    public void schedule(Timer timer, long deadline) {
+        cancel(timer);
+
+        /* The first tick at or after the deadline, but the current one has been expired. */
+        int slot = (int) (Math.max((deadline + tick - 1) / tick, current + 1) % slots.length);
+
+        timer.deadline = deadline;
+        timer.scheduled = true;
+        timer.slot = slot;
+        timer.previous = null;
+        timer.next = slots[slot];
+        if (timer.next != null)
+            timer.next.previous = timer;
+        slots[slot] = timer;
+        size++;
+    }
+
+    /**
+     * Cancels a timer, if it is scheduled.
+     *
+     * @param timer the timer.
+     */
+    public void cancel(Timer timer) {
+        if (!timer.scheduled)
+            return;
+
+        if (timer.previous != null)
+            timer.previous.next = timer.next;
+        else
+            slots[timer.slot] = timer.next;
+
+        if (timer.next != null)
+            timer.next.previous = timer.previous;
+
+        timer.previous = null;
+        timer.next = null;
+        timer.scheduled = false;
+        size--;
+    }
+
+    /**
+     * Expires the timers whose deadline has passed.
+     *
+     * @param now      the current time.
+     * @param callback receives every expired timer.
+     * @return the number of expired timers.
+     */
+    public int expire(long now, Callback callback) {
+        long target = now / tick;
+        int expired = 0;
+
+        /* After a long sleep every slot is looked at once, not every tick that passed. */
+        long first = Math.max(current + 1, target - slots.length + 1);
+
+        for (long t = first; t <= target && size > 0; t++) {
+            int slot = (int) (t % slots.length);
+            Timer timer = slots[slot];
+
+            while (timer != null) {
+                Timer next = timer.next;
+
+                if (timer.deadline <= now) {
+                    cancel(timer);
+                    expired++;
+                    callback.onExpired(timer);
+                }
+                timer = next;
+            }
+        }
+
+        current = Math.max(current, target);
+        return expired;
+    }
+
+    /**
+     * @param now the current time.
+     * @return the time until the next tick that has a timer to look at, so that a selector can
+     * sleep until then, at least 1, or 0 if no timer is scheduled.
+     */
+    public long getTimeout(long now) {
+        if (size == 0)
+            return 0;
+
+        for (long t = current + 1; t <= current + slots.length; t++) {
+            if (slots[(int) (t % slots.length)] != null)
+                return Math.max(1, t * tick - now);
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return the number of scheduled timers.
+     */
+    public int size() {
+        return size;
+    }
+}
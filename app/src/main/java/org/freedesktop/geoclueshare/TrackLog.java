@@ -0,0 +1,462 @@
+package org.freedesktop.geoclueshare;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * {@code TrackLog} is an append-only log of the fixes that were served, kept as fixed-size
+ * records in segment files of a directory. Segments are written through a
+ * {@link MappedByteBuffer}, so appending a record is a few memory writes: no system call and no
+ * allocation. When a segment is full the next one is created, and the oldest ones are deleted
+ * beyond a maximum number of segments.
+ * <p>A segment is named {@code track-NNNNNNNN.log} and starts with a header of
+ * {@value #RECORD_SIZE} bytes, the magic {@code "GCTL"} followed by the version and the record
+ * size as little-endian ints. Records follow, all numbers little-endian:</p>
+ * <pre>
+ *  0  8  UTC time of the fix in milliseconds since the epoch, never 0
+ *  8  4  latitude in 1e-7 degrees
+ * 12  4  longitude in 1e-7 degrees
+ * 16  4  altitude in millimeters, or 0x80000000 if unknown
+ * 20  4  accuracy in centimeters
+ * 24  4  number of clients the fix was served to
+ * 28  1  fix quality, as in GGA
+ * 29  3  reserved, 0
+ * </pre>
+ * <p>Segments are created at their full size and filled with zeros, so the first record with a
+ * time of 0 ends the data. A log can therefore be reopened after a crash and continued where it
+ * stopped.</p>
+ * <p>A log is written by a single thread. Opening and rotating segments does I/O, so that should
+ * be a background thread. Other threads queue their records with {@link #offer}, and the writing
+ * thread appends them with {@link #flush()}. The queue holds {@link #QUEUE_RECORDS} records, the
+ * records offered while it is full are counted by {@link #getDropped()}. Use a {@link Reader} to
+ * scan the log.</p>
+ */
+public class TrackLog {
+
+    /**
+     * The size of a record, and of the header of a segment, in bytes.
+     */
+    public static final int RECORD_SIZE = 32;
+
+    /**
+     * The version of the segment layout.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The number of records {@link #offer} can queue between two calls to {@link #flush()}.
+     */
+    public static final int QUEUE_RECORDS = 1024;
+
+    private static final int MAGIC = ('G') | ('C' << 8) | ('T' << 16) | ('L' << 24);
+    private static final int NO_ALTITUDE = Integer.MIN_VALUE;
+    private static final String PREFIX = "track-";
+    private static final String SUFFIX = ".log";
+    private static final FilenameFilter SEGMENTS = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+        }
+    };
+
+    private final File directory;
+    private final int segmentRecords;
+    private final int maxSegments;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int segment = -1;
+    private volatile long records = 0;
+    private volatile long dropped = 0;
+
+    /* Records are queued in the layout of the segments, the writer swaps the two buffers. */
+    private ByteBuffer queue = newQueue();
+    private ByteBuffer flushing = newQueue();
+    private int queued = 0;
+
+    /**
+     * @param directory      the directory of the segments. It is created if needed.
+     * @param segmentRecords the number of records of a segment.
+     * @param maxSegments    the number of segments kept.
+     */
+    public TrackLog(File directory, int segmentRecords, int maxSegments) {
+        if (segmentRecords < 1 || maxSegments < 1)
+            throw new IllegalArgumentException("A log needs at least one record and segment");
+
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Opens the last segment and continues after its last record, or starts a new one.
+     *
+     * @throws IOException if the segment can't be created or mapped.
+     */
+    public void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create " + directory);
+
+        int[] segments = listSegments(directory);
+        if (segments.length == 0) {
+            openSegment(0);
+            return;
+        }
+
+        openSegment(segments[segments.length - 1]);
+        while (buffer.remaining() >= RECORD_SIZE && buffer.getLong(buffer.position()) != 0)
+            buffer.position(buffer.position() + RECORD_SIZE);
+    }
+
+    /**
+     * Appends a record, moving to a new segment first if the current one is full.
+     *
+     * @param time        UTC time of the fix in milliseconds since the epoch. Records with a time
+     *                    of 0 are ignored, as 0 marks the end of the data.
+     * @param latitude    latitude in degrees.
+     * @param longitude   longitude in degrees.
+     * @param hasAltitude whether {@code altitude} is known.
+     * @param altitude    altitude in meters.
+     * @param accuracy    accuracy in meters.
+     * @param clients     the number of clients the fix was served to.
+     * @param quality     the fix quality.
+     * @return {@code false} if the record could not be written, because the log isn't open or a
+     * new segment could not be created.
+     */
+    public boolean append(long time, double latitude, double longitude, boolean hasAltitude,
+                          double altitude, double accuracy, int clients, int quality) {
+        if (time == 0 || !reserve())
+            return false;
+
+        int index = buffer.position();
+        putRecord(buffer, index, time, latitude, longitude, hasAltitude, altitude, accuracy,
+                clients, quality);
+        buffer.position(index + RECORD_SIZE);
+
+        records++;
+        return true;
+    }
+
+    /**
+     * Queues a record, to be appended by the next {@link #flush()}. It can be called from any
+     * thread and doesn't allocate.
+     *
+     * @return {@code false} if the queue is full and the record was dropped.
+     * @see #append
+     */
+    public synchronized boolean offer(long time, double latitude, double longitude,
+                                      boolean hasAltitude, double altitude, double accuracy,
+                                      int clients, int quality) {
+        if (time == 0)
+            return false;
+
+        if (queued == QUEUE_RECORDS) {
+            dropped++;
+            return false;
+        }
+
+        putRecord(queue, queued * RECORD_SIZE, time, latitude, longitude, hasAltitude, altitude,
+                accuracy, clients, quality);
+        queued++;
+        return true;
+    }
+
+    /**
+     * Appends the records queued by {@link #offer}, from the thread that writes the log. The
+     * records that can't be appended, because the log isn't open or a new segment could not be
+     * created, are dropped and counted.
+     *
+     * @return the number of records appended.
+     */
+    public int flush() {
+        ByteBuffer pending;
+        int count;
+
+        synchronized (this) {
+            pending = queue;
+            count = queued;
+            queue = flushing;
+            flushing = pending;
+            queued = 0;
+        }
+
+        int appended = 0;
+        for (int i = 0; i < count && reserve(); i++) {
+            int source = i * RECORD_SIZE;
+            int index = buffer.position();
+            for (int offset = 8; offset < RECORD_SIZE; offset += 8)
+                buffer.putLong(index + offset, pending.getLong(source + offset));
+            buffer.putLong(index, pending.getLong(source));
+            buffer.position(index + RECORD_SIZE);
+
+            records++;
+            appended++;
+        }
+
+        if (appended < count) {
+            synchronized (this) {
+                dropped += count - appended;
+            }
+        }
+        return appended;
+    }
+
+    /**
+     * @return the number of records appended since the log was opened.
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the number of records {@link #offer} dropped because the queue was full, and the
+     * queued records {@link #flush()} could not append.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Writes the current segment to storage and closes it.
+     */
+    public void close() {
+        if (buffer != null)
+            buffer.force();
+        buffer = null;
+
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                /* Closing anyway. */
+            }
+        }
+        file = null;
+    }
+
+    /**
+     * Moves to a new segment if the current one is full.
+     *
+     * @return {@code false} if the log isn't open or a new segment could not be created.
+     */
+    private boolean reserve() {
+        if (buffer == null)
+            return false;
+
+        if (buffer.remaining() < RECORD_SIZE) {
+            try {
+                openSegment(segment + 1);
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer newQueue() {
+        return ByteBuffer.allocate(QUEUE_RECORDS * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void putRecord(ByteBuffer buffer, int index, long time, double latitude,
+                                  double longitude, boolean hasAltitude, double altitude,
+                                  double accuracy, int clients, int quality) {
+        buffer.putInt(index + 8, (int) Math.round(latitude * 1e7));
+        buffer.putInt(index + 12, (int) Math.round(longitude * 1e7));
+        buffer.putInt(index + 16, hasAltitude ? (int) Math.round(altitude * 1000) : NO_ALTITUDE);
+        buffer.putInt(index + 20, (int) Math.min(Math.round(accuracy * 100), Integer.MAX_VALUE));
+        buffer.putInt(index + 24, clients);
+        buffer.put(index + 28, (byte) quality);
+        /* The time goes last, a record only counts once it is set. */
+        buffer.putLong(index, time);
+    }
+
+    private void openSegment(int index) throws IOException {
+        close();
+
+        File path = segmentFile(directory, index);
+        boolean created = !path.exists();
+
+        file = new RandomAccessFile(path, "rw");
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                (long) (segmentRecords + 1) * RECORD_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        segment = index;
+
+        if (created) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, RECORD_SIZE);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            close();
+            throw new IOException("Not a track log segment: " + path);
+        }
+        buffer.position(RECORD_SIZE);
+
+        int[] segments = listSegments(directory);
+        for (int i = 0; i < segments.length - maxSegments; i++) {
+            if (!segmentFile(directory, segments[i]).delete())
+                break;
+        }
+    }
+
+    private static File segmentFile(File directory, int index) {
+        /* Not String.format, which would use the digits of the default locale. */
+        StringBuilder name = new StringBuilder(PREFIX).append(index);
+        while (name.length() < PREFIX.length() + 8)
+            name.insert(PREFIX.length(), '0');
+
+        return new File(directory, name.append(SUFFIX).toString());
+    }
+
+    /**
+     * @return the indexes of the segments of a directory, in increasing order.
+     */
+    private static int[] listSegments(File directory) {
+        String[] names = directory.list(SEGMENTS);
+        if (names == null)
+            return new int[0];
+
+        int[] segments = new int[names.length];
+        int count = 0;
+
+        for (String name : names) {
+            try {
+                segments[count] = Integer.parseInt(
+                        name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                /* Not one of ours. */
+            }
+        }
+
+        int[] sorted = new int[count];
+        System.arraycopy(segments, 0, sorted, 0, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Reads the records of a log, oldest first. Segments are mapped read-only one at a time, and
+     * records are read in place: {@link #next()} moves to the next record, whose fields are then
+     * returned by the getters. Nothing is allocated per record.
+     * <p>A reader can be used while the log is being written, it sees the records appended
+     * before it reached the end.</p>
+     */
+    public static class Reader {
+        private final File directory;
+        private final int[] segments;
+        private int segment = -1;
+        private MappedByteBuffer buffer;
+        private int index;
+
+        /**
+         * @param directory the directory of the segments.
+         */
+        public Reader(File directory) {
+            this.directory = directory;
+            this.segments = listSegments(directory);
+        }
+
+        /**
+         * Moves to the next record.
+         *
+         * @return {@code false} if there are no more records.
+         * @throws IOException if a segment can't be read.
+         */
+        public boolean next() throws IOException {
+            if (buffer != null) {
+                index += RECORD_SIZE;
+                if (index + RECORD_SIZE <= buffer.limit() && buffer.getLong(index) != 0)
+                    return true;
+            }
+
+            /* Segments are only created when the previous one is full, skip empty ones. */
+            while (++segment < segments.length) {
+                if (map(segmentFile(directory, segments[segment]))
+                        && buffer.limit() >= 2 * RECORD_SIZE && buffer.getLong(RECORD_SIZE) != 0) {
+                    index = RECORD_SIZE;
+                    return true;
+                }
+            }
+
+            buffer = null;
+            return false;
+        }
+
+        public long getTime() {
+            return buffer.getLong(index);
+        }
+
+        public double getLatitude() {
+            return buffer.getInt(index + 8) / 1e7;
+        }
+
+        public double getLongitude() {
+            return buffer.getInt(index + 12) / 1e7;
+        }
+
+        public boolean hasAltitude() {
+            return buffer.getInt(index + 16) != NO_ALTITUDE;
+        }
+
+        public double getAltitude() {
+            return hasAltitude() ? buffer.getInt(index + 16) / 1000.0 : 0;
+        }
+
+        public double getAccuracy() {
+            return buffer.getInt(index + 20) / 100.0;
+        }
+
+        public int getClients() {
+            return buffer.getInt(index + 24);
+        }
+
+        public int getQuality() {
+            return buffer.get(index + 28) & 0xFF;
+        }
+
+        /**
+         * Maps a segment, if it is one.
+         */
+        private boolean map(File path) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path, "r");
+
+            try {
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+            } finally {
+                file.close();
+            }
+
+            return buffer.limit() >= RECORD_SIZE && buffer.getInt(0) == MAGIC
+                    && buffer.getInt(4) == VERSION && buffer.getInt(8) == RECORD_SIZE;
+        }
+    }
+}
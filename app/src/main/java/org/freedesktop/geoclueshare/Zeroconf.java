@@ -2,12 +2,19 @@ package org.freedesktop.geoclueshare;
 
 import android.content.Context;
 import android.net.wifi.WifiManager;
-import android.text.format.Formatter;
 import android.util.Log;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceInfo;
@@ -32,12 +39,55 @@ import javax.jmdns.ServiceInfo;
  * Author: Ankit (Verma) <ankitstarski@gmail.com>
  */
 
+/**
+ * {@code Zeroconf} advertises the location service over mDNS with JmDNS.
+ * <p>Starting JmDNS and probing the network for name conflicts take seconds, so none of it
+ * happens on the caller's thread: the methods queue their work for a single background thread,
+ * which also keeps them in order. The server can accept clients while the service is being
+ * registered.</p>
+ * <p>The JmDNS instance is shared and kept warm: it is started as soon as the multicast lock is
+ * attained, reused by every {@code Zeroconf} while the IP address is the same, and only closed
+ * after being idle for {@link #KEEP_WARM}, so that restarting the service doesn't start mDNS all
+ * over again.</p>
+ * <p>When the address changes, {@link #rebind(String)} starts a new instance on the new address
+ * and registers the services there again.</p>
+ */
 public class Zeroconf {
     private static final String TAG = "Zeroconf";
     private static WifiManager.MulticastLock multicastLock;
+    private static volatile String ip;
+
+    /**
+     * How long JmDNS is kept running after the last service was unregistered, in milliseconds.
+     */
+    public static final long KEEP_WARM = 5 * 60 * 1000;
+
+    /**
+     * The thread every JmDNS call is made on. The shared instance below belongs to it.
+     */
+    private static final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private static JmDNS sharedJmdns;
+    private static String sharedIp;
+    private static ScheduledFuture<?> idleClose;
+    private static final List<Zeroconf> registered = new ArrayList<Zeroconf>();
+
     private JmDNS jmdns;
+    private String serviceName;
+    private int port;
+    private InetSocketAddress datagramTarget;
     private ServiceInfo serviceInfo;
-    private static String ip;
+    private ServiceInfo datagramServiceInfo;
+    private final HashMap<String, byte[]> properties = new HashMap<String, byte[]>();
+    private HashMap<String, byte[]> datagramProperties;
+    private volatile long registrationTime = -1;
 
     /**
      * The default tag string for Multicast, used in {@link Zeroconf#attainLock(Context)}.
@@ -47,17 +97,12 @@ public class Zeroconf {
     /**
      * This function is to be called before Using {@link Zeroconf} class is to be used. <br/>
      * This attains Multicast lock from WiFi service which is requred for mDNS broadcasting or
-     * listening.
+     * listening, and starts JmDNS in the background if it isn't running.
      *
      * @param context the context from where it is being called.
      */
     public static void attainLock(Context context) {
-        WifiManager wifi = (WifiManager)context.getSystemService(Context.WIFI_SERVICE);
-        ip = Formatter.formatIpAddress(wifi.getConnectionInfo().getIpAddress());
-
-        multicastLock = wifi.createMulticastLock(DEFAULT_MULTICAST_TAG_STRING);
-        multicastLock.setReferenceCounted(true);
-        multicastLock.acquire();
+        attainLock(context, DEFAULT_MULTICAST_TAG_STRING);
     }
 
     /**
@@ -69,11 +114,45 @@ public class Zeroconf {
      */
     public static void attainLock(Context context, String tag) {
         WifiManager wifi = (WifiManager)context.getSystemService(Context.WIFI_SERVICE);
-        ip = Formatter.formatIpAddress(wifi.getConnectionInfo().getIpAddress());
+        final String address = ConnectivityWatcher.getWifiAddress(wifi);
+        ip = address;
 
         multicastLock = wifi.createMulticastLock(tag);
         multicastLock.setReferenceCounted(true);
         multicastLock.acquire();
+
+        /* The address may have changed while nothing was watching it. */
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                bind(address, false);
+            }
+        });
+    }
+
+    /**
+     * Moves mDNS to a new address of the Wi-Fi interface, in the background: JmDNS is restarted
+     * on it and the registered services are registered again.
+     *
+     * @param address the new address.
+     */
+    public static void rebind(final String address) {
+        ip = address;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                bind(address, true);
+            }
+        });
+    }
+
+    /**
+     * @return the IPv4 address of the Wi-Fi interface mDNS is bound to, or {@code null} if it has
+     * none.
+     */
+    public static String getAddress() {
+        return ip;
     }
 
     /**
@@ -86,12 +165,72 @@ public class Zeroconf {
         }
     }
 
-    public Zeroconf() {
+    /**
+     * @return the shared JmDNS instance, started if it isn't yet, or {@code null} if it can't be
+     * started. It must be called on the executor thread.
+     */
+    private static JmDNS acquireJmdns() {
+        if (idleClose != null) {
+            idleClose.cancel(false);
+            idleClose = null;
+        }
+
+        if (sharedJmdns == null)
+            bind(ip, false);
+
+        return sharedJmdns;
+    }
+
+    /**
+     * Starts the shared JmDNS instance on an address, unless it runs there already, and
+     * registers the services of the previous instance on it. It must be called on the executor
+     * thread.
+     *
+     * @param address the address, or {@code null} to let JmDNS choose one.
+     * @param force   whether to restart an instance that runs on the same address, e.g. because
+     *                the interface went down in between.
+     */
+    private static void bind(String address, boolean force) {
+        if (sharedJmdns != null && !force
+                && (address == null ? sharedIp == null : address.equals(sharedIp)))
+            return;
+
+        /* Nothing to move, the next service starts it. */
+        if (sharedJmdns == null && registered.isEmpty() && force)
+            return;
+
+        closeJmdns();
+
         try {
-            jmdns = JmDNS.create(InetAddress.getByName(ip));
+            long start = System.nanoTime();
+            sharedJmdns = address != null ? JmDNS.create(InetAddress.getByName(address))
+                    : JmDNS.create();
+            sharedIp = address;
+            Log.d(TAG, "mDNS started on " + address + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
         } catch (IOException e) {
             Log.d(TAG, "Can't start mDNS service");
+            return;
+        }
+
+        for (Zeroconf zeroconf : new ArrayList<Zeroconf>(registered))
+            zeroconf.register(zeroconf.serviceName, zeroconf.port, zeroconf.datagramTarget);
+    }
+
+    /**
+     * Closes the shared JmDNS instance, on the executor thread.
+     */
+    private static void closeJmdns() {
+        if (sharedJmdns == null)
+            return;
+
+        try {
+            sharedJmdns.close();
+        } catch (IOException e) {
+            /* Closing anyway. */
         }
+        sharedJmdns = null;
+        sharedIp = null;
     }
 
     /**
@@ -101,13 +240,53 @@ public class Zeroconf {
      * @param port port number
      */
     public void broadcastService(String serviceName, int port) {
+        broadcastService(serviceName, port, null);
+    }
+
+    /**
+     * Same as {@link Zeroconf#broadcastService(String, int)}, also broadcasting
+     * {@code "_nmea-0183._udp.local."} for sentences sent as UDP datagrams. The group or
+     * broadcast address they are sent to is given in the {@code "group"} TXT record.
+     * <p>It returns at once, the service is registered in the background, see
+     * {@link #getRegistrationTime()}.</p>
+     *
+     * @param serviceName    name of the service to be shoown to other devices.
+     * @param port           port number
+     * @param datagramTarget where the datagrams are sent to, or {@code null} if they aren't.
+     */
+    public void broadcastService(final String serviceName, final int port,
+                                 final InetSocketAddress datagramTarget) {
+        final long start = System.nanoTime();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                register(serviceName, port, datagramTarget);
+                if (serviceInfo != null) {
+                    registrationTime = (System.nanoTime() - start) / 1000000;
+                    Log.d(TAG, "Service registered in " + registrationTime + " ms");
+                }
+            }
+        });
+    }
+
+    private void register(String serviceName, int port, InetSocketAddress datagramTarget) {
+        this.serviceName = serviceName;
+        this.port = port;
+        this.datagramTarget = datagramTarget;
+        serviceInfo = null;
+        datagramServiceInfo = null;
+
+        jmdns = acquireJmdns();
+        if (jmdns == null)
+            return;
+
         try {
 
             /*
              * Beware of this bug in JmDNS
              * http://stackoverflow.com/questions/12726801/avahi-not-able-to-find-service-creted-by-jmdns
              */
-            HashMap<String, byte[]> properties = new HashMap<String, byte[]>();
             String serviceText = "Location Server for Geoclue";
             properties.put("description", serviceText.getBytes());
             properties.put("accuracy", LocationService.accuracy.getBytes());
@@ -115,11 +294,26 @@ public class Zeroconf {
             if (serviceName == null || serviceName.length() == 0)
                 serviceName = DEFAULT_MULTICAST_TAG_STRING;
 
-            serviceInfo = ServiceInfo.create("_nmea-0183._tcp.local.",
+            ServiceInfo info = ServiceInfo.create("_nmea-0183._tcp.local.",
                     serviceName, port, 0, 0, true,
                     properties);
 
-            jmdns.registerService(serviceInfo);
+            jmdns.registerService(info);
+            serviceInfo = info;
+            if (!registered.contains(this))
+                registered.add(this);
+
+            if (datagramTarget != null) {
+                datagramProperties = new HashMap<String, byte[]>(properties);
+                datagramProperties.put("group",
+                        datagramTarget.getAddress().getHostAddress().getBytes());
+
+                datagramServiceInfo = ServiceInfo.create("_nmea-0183._udp.local.",
+                        serviceName, datagramTarget.getPort(), 0, 0, true,
+                        datagramProperties);
+
+                jmdns.registerService(datagramServiceInfo);
+            }
 
         } catch (Exception e) {
             Log.d(TAG, "Can't register Service");
@@ -127,15 +321,74 @@ public class Zeroconf {
     }
 
     /**
-     * Unregisters the service being broadcasted by {@link Zeroconf#broadcastService}.
+     * @return the time in milliseconds it took from {@link #broadcastService} to the service
+     * being registered, or -1 if it isn't registered yet.
+     */
+    public long getRegistrationTime() {
+        return registrationTime;
+    }
+
+    /**
+     * Changes the {@code "accuracy"} TXT record of the registered services. JmDNS announces the
+     * new records from its own threads.
+     *
+     * @param accuracy the new accuracy level.
+     */
+    public void updateAccuracy(final String accuracy) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (serviceInfo == null)
+                    return;
+
+                try {
+                    properties.put("accuracy", accuracy.getBytes());
+                    serviceInfo.setText(properties);
+
+                    if (datagramServiceInfo != null) {
+                        datagramProperties.put("accuracy", accuracy.getBytes());
+                        datagramServiceInfo.setText(datagramProperties);
+                    }
+                } catch (IllegalStateException e) {
+                    Log.d(TAG, "Can't update the accuracy of the service");
+                }
+            }
+        });
+    }
+
+    /**
+     * Unregisters the service being broadcasted by {@link Zeroconf#broadcastService}, in the
+     * background. JmDNS keeps running for {@link #KEEP_WARM} in case it is broadcasted again.
      */
     public void unregisterService() {
-        if(serviceInfo != null) {
-            try {
-                jmdns.unregisterService(serviceInfo);
-            } catch (NullPointerException e) {
-                Log.w(TAG, "Can't close a null mDNS service.");
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                registered.remove(Zeroconf.this);
+
+                /* If the instance was closed meanwhile, the service went with it. */
+                if (serviceInfo != null && jmdns == sharedJmdns) {
+                    jmdns.unregisterService(serviceInfo);
+                    if (datagramServiceInfo != null)
+                        jmdns.unregisterService(datagramServiceInfo);
+                }
+                serviceInfo = null;
+                datagramServiceInfo = null;
+
+                if (!registered.isEmpty() || sharedJmdns == null)
+                    return;
+
+                if (idleClose != null)
+                    idleClose.cancel(false);
+                idleClose = executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d(TAG, "Closing idle mDNS service");
+                        idleClose = null;
+                        closeJmdns();
+                    }
+                }, KEEP_WARM, TimeUnit.MILLISECONDS);
             }
-        }
+        });
     }
 }
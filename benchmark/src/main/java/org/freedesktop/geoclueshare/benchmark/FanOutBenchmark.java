@@ -0,0 +1,184 @@
+package org.freedesktop.geoclueshare.benchmark;
+
+import org.freedesktop.geoclueshare.ClientConnection;
+import org.freedesktop.geoclueshare.NmeaBroadcastServer;
+import org.freedesktop.geoclueshare.NmeaScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * Measures the fan-out of {@link NmeaBroadcastServer}, the server behind {@code NetworkListener},
+ * to loopback clients. One operation publishes a GGA sentence and waits until every client has
+ * read it, so the score in operations per second is the number of sentences per second the server
+ * can deliver to all of them. Multiply by {@code clients} for the number of lines written.
+ * <p>{@code workers} is the number of selector threads of the server.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    private static final String GGA =
+            "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,,M,,*52";
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    @Param({"1", "10", "100", "1000"})
+    public int clients;
+
+    @Param({"1", "4"})
+    public int workers;
+
+    private NmeaBroadcastServer server;
+    private Thread serverThread;
+    private Selector selector;
+    private Thread reader;
+    private volatile boolean running;
+    private volatile long lines = 0;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        server = new NmeaBroadcastServer(0, new NmeaBroadcastServer.Listener() {
+            @Override
+            public void onClientConnected(ClientConnection connection, int count) {
+            }
+
+            @Override
+            public void onClientDisconnected(ClientConnection connection, int count) {
+            }
+
+            @Override
+            public void onRequestedIntervalChanged(long interval) {
+            }
+        });
+        server.setWorkers(workers);
+        server.open();
+        serverThread = new Thread(server, "server");
+        serverThread.start();
+
+        selector = Selector.open();
+        for (int i = 0; i < clients; i++) {
+            SocketChannel channel = SocketChannel.open(
+                    new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        while (server.getClientCount() < clients)
+            Thread.sleep(10);
+
+        running = true;
+        reader = new Thread("clients") {
+            @Override
+            public void run() {
+                try {
+                    read();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        running = false;
+        selector.wakeup();
+        reader.join();
+
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+
+        server.close();
+        serverThread.join();
+    }
+
+    @Benchmark
+    public long fanOut() {
+        long target = lines + clients;
+        long start = System.nanoTime();
+
+        server.publish(GGA, GGA.length(), NmeaScanner.TYPE_GGA);
+
+        long now;
+        while ((now = lines) < target) {
+            if (System.nanoTime() - start > TIMEOUT)
+                throw new IllegalStateException("Only " + (now - target + clients) + " of "
+                        + clients + " clients got the sentence");
+        }
+
+        return now;
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        while (running) {
+            selector.select(100);
+
+            Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+            while (i.hasNext()) {
+                SelectionKey key = i.next();
+                i.remove();
+
+                buffer.clear();
+                if (((SocketChannel) key.channel()).read(buffer) == -1) {
+                    key.cancel();
+                    continue;
+                }
+
+                long count = 0;
+                for (int j = 0, n = buffer.position(); j < n; j++) {
+                    if (buffer.get(j) == '\n')
+                        count++;
+                }
+
+                /* Only this thread writes the counter. */
+                lines += count;
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.freedesktop.geoclueshare.benchmark;
+
+import org.freedesktop.geoclueshare.FixCodec;
+import org.freedesktop.geoclueshare.GgaEncoder;
+import org.freedesktop.geoclueshare.NmeaScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * Compares {@link FixCodec} frames with GGA sentences, on both ends: encoding a fix on the device
+ * and decoding it again in a client. The NMEA client checks the sentence with
+ * {@link NmeaScanner} and parses the fields with {@link Double#parseDouble}, as most consumers do.
+ * <p>On the wire a frame is {@value FixCodec#FRAME_LENGTH} bytes. The GGA sentences of the same
+ * fixes are 61 bytes on average as {@link GgaEncoder} writes them, and 70 to 80 bytes from a
+ * receiver that fills in the satellite count and geoid separation.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FixCodecBenchmark {
+
+    private static final int FIXES = 1024;
+
+    private final long[] times = new long[FIXES];
+    private final double[] latitudes = new double[FIXES];
+    private final double[] longitudes = new double[FIXES];
+    private final float[] accuracies = new float[FIXES];
+    private final double[] altitudes = new double[FIXES];
+    private final String[] sentences = new String[FIXES];
+    private final byte[][] frames = new byte[FIXES][];
+    private final GgaEncoder ggaEncoder = new GgaEncoder();
+    private final FixCodec codec = new FixCodec();
+    private final NmeaScanner scanner = new NmeaScanner();
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+
+        for (int i = 0; i < FIXES; i++) {
+            times[i] = 1435600519000L + i * 1000L;
+            latitudes[i] = random.nextDouble() * 180 - 90;
+            longitudes[i] = random.nextDouble() * 360 - 180;
+            accuracies[i] = random.nextFloat() * 120;
+            altitudes[i] = random.nextDouble() * 2000;
+
+            ggaEncoder.encode(times[i], latitudes[i], longitudes[i],
+                    LegacyGga.getHdopFromAccuracy(accuracies[i]), true, altitudes[i]);
+            sentences[i] = ggaEncoder.toString();
+
+            codec.encode(times[i], latitudes[i], longitudes[i],
+                    LegacyGga.getHdopFromAccuracy(accuracies[i]), accuracies[i], true,
+                    altitudes[i], FixCodec.QUALITY_GPS);
+            frames[i] = codec.getBuffer().clone();
+        }
+    }
+
+    @Benchmark
+    public int encodeNmea() {
+        int i = next++ & (FIXES - 1);
+
+        return ggaEncoder.encode(times[i], latitudes[i], longitudes[i],
+                LegacyGga.getHdopFromAccuracy(accuracies[i]), true, altitudes[i]);
+    }
+
+    @Benchmark
+    public int encodeBinary() {
+        int i = next++ & (FIXES - 1);
+
+        return codec.encode(times[i], latitudes[i], longitudes[i],
+                LegacyGga.getHdopFromAccuracy(accuracies[i]), accuracies[i], true, altitudes[i],
+                FixCodec.QUALITY_GPS);
+    }
+
+    @Benchmark
+    public double decodeNmea() {
+        String nmea = sentences[next++ & (FIXES - 1)];
+
+        if (scanner.scan(nmea, NmeaScanner.TYPE_GGA) != NmeaScanner.TYPE_GGA)
+            return Double.NaN;
+
+        double latitude = parseCoordinate(nmea, 2, 2);
+        double longitude = parseCoordinate(nmea, 4, 3);
+        double hdop = parseField(nmea, 8);
+        double altitude = parseField(nmea, 9);
+
+        return latitude + longitude + hdop + altitude;
+    }
+
+    @Benchmark
+    public double decodeBinary() {
+        byte[] frame = frames[next++ & (FIXES - 1)];
+
+        if (!codec.decode(frame, 0, frame.length))
+            return Double.NaN;
+
+        return codec.getLatitude() + codec.getLongitude() + codec.getHdop() + codec.getAltitude();
+    }
+
+    private double parseField(String nmea, int field) {
+        return Double.parseDouble(nmea.substring(scanner.fieldStart(field),
+                scanner.fieldEnd(field)));
+    }
+
+    /**
+     * Parses a {@code ddmm.mmm} coordinate followed by its hemisphere.
+     */
+    private double parseCoordinate(String nmea, int field, int degreeDigits) {
+        int start = scanner.fieldStart(field);
+        double degrees = Integer.parseInt(nmea.substring(start, start + degreeDigits));
+        double minutes = Double.parseDouble(nmea.substring(start + degreeDigits,
+                scanner.fieldEnd(field)));
+        double value = degrees + minutes / 60;
+
+        char hemisphere = nmea.charAt(scanner.fieldStart(field + 1));
+        return hemisphere == 'S' || hemisphere == 'W' ? -value : value;
+    }
+}
@@ -0,0 +1,108 @@
+package org.freedesktop.geoclueshare.benchmark;
+
+import org.freedesktop.geoclueshare.GgaEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * Compares {@link GgaEncoder} with {@link LegacyGga}, as a whole and for each of the legacy
+ * helpers. Run with {@code -prof gc} to see the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GgaEncoderBenchmark {
+
+    private static final int FIXES = 1024;
+
+    private final long[] times = new long[FIXES];
+    private final double[] latitudes = new double[FIXES];
+    private final double[] longitudes = new double[FIXES];
+    private final float[] accuracies = new float[FIXES];
+    private final double[] altitudes = new double[FIXES];
+    private final String[] unsigned = new String[FIXES];
+    private final GgaEncoder encoder = new GgaEncoder();
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+
+        for (int i = 0; i < FIXES; i++) {
+            times[i] = 1435600519000L + i * 1000L;
+            latitudes[i] = random.nextDouble() * 180 - 90;
+            longitudes[i] = random.nextDouble() * 360 - 180;
+            accuracies[i] = random.nextFloat() * 120;
+            altitudes[i] = random.nextDouble() * 2000;
+
+            String gga = LegacyGga.getGgaFromLocation(times[i], latitudes[i], longitudes[i],
+                    accuracies[i], true, altitudes[i]);
+            unsigned[i] = gga.substring(0, gga.lastIndexOf('*'));
+        }
+    }
+
+    @Benchmark
+    public String legacy() {
+        int i = next++ & (FIXES - 1);
+
+        return LegacyGga.getGgaFromLocation(times[i], latitudes[i], longitudes[i],
+                accuracies[i], true, altitudes[i]);
+    }
+
+    @Benchmark
+    public String legacyLatitude() {
+        return LegacyGga.getLatitudeString(latitudes[next++ & (FIXES - 1)]);
+    }
+
+    @Benchmark
+    public String legacyLongitude() {
+        return LegacyGga.getLongitudeString(longitudes[next++ & (FIXES - 1)]);
+    }
+
+    @Benchmark
+    public String legacyChecksum() {
+        return LegacyGga.addChecksumToGga(unsigned[next++ & (FIXES - 1)]);
+    }
+
+    @Benchmark
+    public int encoder() {
+        int i = next++ & (FIXES - 1);
+
+        return encoder.encode(times[i], latitudes[i], longitudes[i],
+                LegacyGga.getHdopFromAccuracy(accuracies[i]), true, altitudes[i]);
+    }
+}
@@ -0,0 +1,113 @@
+package org.freedesktop.geoclueshare.benchmark;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * The {@code String.format} based GGA encoding that {@code LocationService} used before
+ * {@link org.freedesktop.geoclueshare.GgaEncoder}, kept as a baseline for the benchmarks. It takes
+ * the fields of an {@code android.location.Location} instead of the object itself.
+ */
+public class LegacyGga {
+
+    public static String getGgaFromLocation(long time, double latitude, double longitude,
+                                            float accuracy, boolean hasAltitude,
+                                            double altitude) {
+        String gga;
+
+        Date date = new Date(time);
+        DateFormat format = new SimpleDateFormat("HHmmss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String timeStr = format.format(date);
+
+        if (hasAltitude) {
+            gga = "$GPGGA,%s,%s,%s,1,,%.1f,%.1f,M,,M,,";
+            gga = String.format(gga,
+                    timeStr,
+                    getLatitudeString(latitude),
+                    getLongitudeString(longitude),
+                    getHdopFromAccuracy(accuracy),
+                    altitude);
+        } else {
+            gga = "$GPGGA,%s,%s,%s,1,,%.1f,,M,,M,,";
+            gga = String.format(gga,
+                    timeStr,
+                    getLatitudeString(latitude),
+                    getLongitudeString(longitude),
+                    getHdopFromAccuracy(accuracy));
+        }
+
+        gga = addChecksumToGga(gga);
+
+        return gga;
+    }
+
+    public static double getHdopFromAccuracy(double accuracy) {
+        if (accuracy <= 0.5)
+            return 0.5;
+        else if (accuracy <= 1.0)
+            return 1.5;
+        else if (accuracy <= 3.0)
+            return 3.5;
+        else if (accuracy <= 50.0)
+            return 7.5;
+        else if (accuracy <= 100.0)
+            return 15.0;
+        else
+            return 30.0;
+    }
+
+    public static String getLatitudeString(double lat) {
+        String latStr = "%02d%06.3f,%s";
+
+        int degrees = (int) Math.abs(lat);
+        double minutes = Math.abs((lat - (int) lat) * 60);
+        String symbol = lat >= 0 ? "N" : "S";
+
+        latStr = String.format(latStr, degrees, minutes, symbol);
+        return latStr;
+    }
+
+    public static String getLongitudeString(double lon) {
+        String lonStr = "%03d%06.3f,%s";
+
+        int degrees = (int) Math.abs(lon);
+        double minutes = Math.abs((lon - (int) lon) * 60);
+        String symbol = lon >= 0 ? "E" : "W";
+
+        lonStr = String.format(lonStr, degrees, minutes, symbol);
+        return lonStr;
+    }
+
+    public static String addChecksumToGga(String gga) {
+        int checksum = 0;
+
+        for (int i = 1, n = gga.length(); i < n; i++) {
+            checksum ^= (int) gga.charAt(i);
+        }
+
+        return String.format("%s*%02X", gga, checksum);
+    }
+}
@@ -0,0 +1,303 @@
+package org.freedesktop.geoclueshare.benchmark;
+
+import org.freedesktop.geoclueshare.ClientConnection;
+import org.freedesktop.geoclueshare.NmeaBroadcastServer;
+import org.freedesktop.geoclueshare.NmeaScanner;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * Runs a {@link NmeaBroadcastServer} in this JVM, connects many local TCP clients to it and
+ * publishes GGA sentences at a fixed rate. Every sentence carries the time it was published, so
+ * the clients can measure how long it took to reach them.
+ * <p>Reports the latency of every delivered sentence, the time until a sentence reached all the
+ * clients, and the throughput. With a batch interval, the clients get their sentences in
+ * batches and the writes saved are reported too.</p>
+ * <p>Run with:
+ * {@code ./gradlew :benchmark:loadTest -Pargs="clients rate seconds port workers batch"}, all
+ * optional.</p>
+ */
+public class LoadGenerator {
+
+    private static final int MAX_SAMPLES = 16 * 1024 * 1024;
+    private static final int MAX_LINE = 128;
+
+    private final int clients;
+    private final int rate;
+    private final int seconds;
+    private final int port;
+    private final int workers;
+    private final long batch;
+
+    private final long[] latencies;
+    private final long[] published;
+    private final long[] completed;
+    private final int[] receivers;
+    private int samples = 0;
+    private long delivered = 0;
+    private long bytes = 0;
+    private volatile boolean running = true;
+
+    /**
+     * The line being read by a client.
+     */
+    private static final class Line {
+        final byte[] data = new byte[MAX_LINE];
+        int length = 0;
+    }
+
+    public LoadGenerator(int clients, int rate, int seconds, int port, int workers, long batch) {
+        this.clients = clients;
+        this.rate = rate;
+        this.seconds = seconds;
+        this.port = port;
+        this.workers = workers;
+        this.batch = batch;
+
+        int sentences = rate * seconds;
+        this.latencies = new long[(int) Math.min((long) sentences * clients, MAX_SAMPLES)];
+        this.published = new long[sentences];
+        this.completed = new long[sentences];
+        this.receivers = new int[sentences];
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : NmeaBroadcastServer.DEFAULT_PORT;
+        int workers = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        long batch = args.length > 5 ? Long.parseLong(args[5]) : 0;
+
+        new LoadGenerator(clients, rate, seconds, port, workers, batch).run();
+    }
+
+    public void run() throws IOException, InterruptedException {
+        NmeaBroadcastServer server = new NmeaBroadcastServer(port,
+                new NmeaBroadcastServer.Listener() {
+                    @Override
+                    public void onClientConnected(ClientConnection connection, int count) {
+                    }
+
+                    @Override
+                    public void onClientDisconnected(ClientConnection connection, int count) {
+                    }
+
+                    @Override
+                    public void onRequestedIntervalChanged(long interval) {
+                    }
+                });
+        server.setWorkers(workers);
+        server.setBatchInterval(batch);
+        server.open();
+
+        Thread serverThread = new Thread(server, "server");
+        serverThread.start();
+
+        final Selector selector = Selector.open();
+        for (int i = 0; i < clients; i++) {
+            SocketChannel channel = SocketChannel.open(
+                    new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Line());
+        }
+
+        while (server.getClientCount() < clients)
+            Thread.sleep(10);
+
+        System.out.println(clients + " clients connected to " + workers
+                + " workers, publishing " + rate + " sentences per second for " + seconds + " s"
+                + (batch > 0 ? " in batches of " + batch + " ms" : ""));
+
+        Thread reader = new Thread("clients") {
+            @Override
+            public void run() {
+                try {
+                    read(selector);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+
+        long period = 1000000000L / rate;
+        long start = System.nanoTime();
+
+        for (int sequence = 0; sequence < published.length; sequence++) {
+            long next = start + sequence * period;
+            long delay = next - System.nanoTime();
+            if (delay > 0)
+                LockSupport.parkNanos(delay);
+
+            long now = System.nanoTime();
+            published[sequence] = now;
+
+            String sentence = "$GPGGA," + sequence + "," + now
+                    + ",4807.038,N,01131.000,E,1,08,0.9,545.4,M,,M,,";
+            server.publish(sentence, sentence.length(), NmeaScanner.TYPE_GGA);
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        /* Leave the clients some time to read what is still in flight. */
+        Thread.sleep(1000);
+        running = false;
+        selector.wakeup();
+        reader.join();
+
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+
+        server.close();
+        serverThread.join();
+
+        report(elapsed);
+
+        if (batch > 0) {
+            System.out.println();
+            System.out.print(server.getMetrics());
+        }
+    }
+
+    private void read(Selector selector) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        while (running) {
+            selector.select(100);
+
+            Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+            while (i.hasNext()) {
+                SelectionKey key = i.next();
+                i.remove();
+
+                buffer.clear();
+                int n = ((SocketChannel) key.channel()).read(buffer);
+                if (n == -1) {
+                    key.cancel();
+                    continue;
+                }
+
+                long now = System.nanoTime();
+                Line line = (Line) key.attachment();
+                bytes += n;
+
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+
+                    if (b == '\n') {
+                        onLine(line, now);
+                        line.length = 0;
+                    } else if (line.length < MAX_LINE) {
+                        line.data[line.length++] = b;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the sequence number and publishing time from the first two fields of a line.
+     */
+    private void onLine(Line line, long now) {
+        long sequence = 0;
+        long time = 0;
+        int field = 0;
+
+        for (int i = 0; i < line.length && field <= 2; i++) {
+            byte b = line.data[i];
+
+            if (b == ',')
+                field++;
+            else if (field == 1 && b >= '0' && b <= '9')
+                sequence = sequence * 10 + (b - '0');
+            else if (field == 2 && b >= '0' && b <= '9')
+                time = time * 10 + (b - '0');
+        }
+
+        long latency = now - time;
+
+        delivered++;
+        if (samples < latencies.length)
+            latencies[samples++] = latency;
+
+        if (sequence >= 0 && sequence < completed.length) {
+            receivers[(int) sequence]++;
+            completed[(int) sequence] = Math.max(completed[(int) sequence], now);
+        }
+    }
+
+    private void report(long elapsed) {
+        double secondsElapsed = elapsed / 1e9;
+        int reachedAll = 0;
+        int reachedAny = 0;
+        long[] fanOut = new long[published.length];
+
+        for (int i = 0; i < published.length; i++) {
+            if (receivers[i] > 0)
+                reachedAny++;
+            if (receivers[i] == clients)
+                fanOut[reachedAll++] = completed[i] - published[i];
+        }
+
+        System.out.println();
+        System.out.println("Published:  " + published.length + " sentences");
+        System.out.println("Reached any client: " + reachedAny + ", all clients: " + reachedAll
+                + " (the others were superseded or dropped)");
+        System.out.println("Delivered:  " + delivered + " sentences, " + bytes + " bytes");
+        System.out.printf("Throughput: %.0f sentences/s, %.2f MB/s%n",
+                delivered / secondsElapsed, bytes / secondsElapsed / 1e6);
+        System.out.println();
+        printPercentiles("Latency per client", latencies, samples);
+        printPercentiles("Fan-out to all clients", fanOut, reachedAll);
+    }
+
+    private static void printPercentiles(String title, long[] values, int count) {
+        if (count == 0) {
+            System.out.println(title + ": no samples");
+            return;
+        }
+
+        Arrays.sort(values, 0, count);
+
+        System.out.printf("%s (us): p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n", title,
+                percentile(values, count, 0.5), percentile(values, count, 0.9),
+                percentile(values, count, 0.99), percentile(values, count, 0.999),
+                values[count - 1] / 1e3);
+    }
+
+    private static double percentile(long[] sorted, int count, double p) {
+        int index = (int) Math.min(count - 1, Math.ceil(p * count) - 1);
+        return sorted[Math.max(index, 0)] / 1e3;
+    }
+}
@@ -0,0 +1,112 @@
+package org.freedesktop.geoclueshare.benchmark;
+
+import org.freedesktop.geoclueshare.NmeaScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * Runs the GGA filter of {@code LocationService.onNmeaReceived} over the sample NMEA stream, one
+ * sentence per operation, with the old {@code split}/{@code matches} code and with
+ * {@link NmeaScanner}. {@link #allTypes()} is the filter with clients subscribed to every type,
+ * where every sentence has its checksum verified.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NmeaScannerBenchmark {
+
+    private static final int RELAY = 1;
+    private static final int FALLBACK = 2;
+    private static final int IGNORE = 0;
+    private static final int ALL_TYPES = NmeaScanner.TYPE_GGA | NmeaScanner.TYPE_RMC
+            | NmeaScanner.TYPE_GSA | NmeaScanner.TYPE_GSV | NmeaScanner.TYPE_VTG;
+
+    private final NmeaScanner scanner = new NmeaScanner();
+    private String[] stream;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        stream = NmeaStream.load();
+    }
+
+    @Benchmark
+    public int legacy() {
+        String nmea = nextSentence();
+
+        String nmeaTimestamp = nmea.split(",")[1];
+        if (nmea.startsWith("$GPGGA") && nmeaTimestamp.matches("[0-9]{6}"))
+            return RELAY;
+        else if (nmea.startsWith("$GPGGA"))
+            return FALLBACK;
+
+        return IGNORE;
+    }
+
+    @Benchmark
+    public int scanner() {
+        String nmea = nextSentence();
+
+        if (scanner.scan(nmea, NmeaScanner.TYPE_GGA) != NmeaScanner.TYPE_GGA
+                || scanner.getTalker() != NmeaScanner.TALKER_GP)
+            return IGNORE;
+
+        return scanner.hasValidTime() ? RELAY : FALLBACK;
+    }
+
+    @Benchmark
+    public int allTypes() {
+        String nmea = nextSentence();
+        int type = scanner.scan(nmea, ALL_TYPES);
+
+        if (type != NmeaScanner.TYPE_GGA)
+            return type != NmeaScanner.TYPE_NONE ? RELAY : IGNORE;
+
+        if (scanner.getTalker() != NmeaScanner.TALKER_GP)
+            return IGNORE;
+
+        return scanner.hasValidTime() ? RELAY : FALLBACK;
+    }
+
+    private String nextSentence() {
+        String nmea = stream[next];
+
+        if (++next == stream.length)
+            next = 0;
+
+        return nmea;
+    }
+}
@@ -0,0 +1,60 @@
+package org.freedesktop.geoclueshare.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * Loads the sample NMEA stream shipped with the benchmarks. It holds ten minutes of GGA, GSA, GSV,
+ * RMC and VTG sentences at 1 Hz, the way Android passes them to {@code onNmeaReceived}: one
+ * sentence per string, terminated with {@code "\r\n"}.
+ */
+public class NmeaStream {
+
+    private static final String SAMPLE = "/nmea/sample.nmea";
+
+    public static String[] load() {
+        InputStream in = NmeaStream.class.getResourceAsStream(SAMPLE);
+        if (in == null)
+            throw new IllegalStateException("Missing resource " + SAMPLE);
+
+        List<String> sentences = new ArrayList<String>();
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+            String line;
+
+            while ((line = reader.readLine()) != null)
+                sentences.add(line + "\r\n");
+
+            reader.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't read " + SAMPLE, e);
+        }
+
+        return sentences.toArray(new String[sentences.size()]);
+    }
+}
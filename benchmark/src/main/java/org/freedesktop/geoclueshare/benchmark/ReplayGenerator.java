@@ -0,0 +1,237 @@
+package org.freedesktop.geoclueshare.benchmark;
+
+import org.freedesktop.geoclueshare.ClientConnection;
+import org.freedesktop.geoclueshare.NmeaBroadcastServer;
+import org.freedesktop.geoclueshare.NmeaFileSource;
+import org.freedesktop.geoclueshare.NmeaRelay;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * Replays a recorded NMEA log into a {@link NmeaBroadcastServer} running in this JVM, through
+ * the same {@link NmeaRelay} as the GPS of the device, with many local TCP clients subscribed to
+ * all the sentence types. The log is looped for the given time, at the given speed or as fast as
+ * possible with a speed of 0, so a real stream of sentences can be pushed at thousands of
+ * sentences per second.
+ * <p>Reports the sentences replayed, relayed and delivered, and the metrics of the server.
+ * Superseded sentences are not sent by the server, so at high speeds fewer are delivered than
+ * relayed.</p>
+ * <p>Run with:
+ * {@code ./gradlew :benchmark:replayTest -Pargs="clients speed seconds file port workers"}, all
+ * optional. Without a file the sample log of the benchmarks is replayed.</p>
+ */
+public class ReplayGenerator {
+
+    private static final String SUBSCRIBE = NmeaBroadcastServer.REQUEST_SUBSCRIBE
+            + " GGA,RMC,GSA,GSV,VTG\n";
+
+    private final int clients;
+    private final double speed;
+    private final int seconds;
+    private final File file;
+    private final int port;
+    private final int workers;
+
+    private long delivered = 0;
+    private long bytes = 0;
+    private volatile boolean running = true;
+
+    public ReplayGenerator(int clients, double speed, int seconds, File file, int port,
+                           int workers) {
+        this.clients = clients;
+        this.speed = speed;
+        this.seconds = seconds;
+        this.file = file;
+        this.port = port;
+        this.workers = workers;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : NmeaFileSource.MAX_SPEED;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        File file = args.length > 3 ? new File(args[3]) : sampleFile();
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : NmeaBroadcastServer.DEFAULT_PORT;
+        int workers = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+
+        new ReplayGenerator(clients, speed, seconds, file, port, workers).run();
+    }
+
+    public void run() throws IOException, InterruptedException {
+        final NmeaBroadcastServer server = new NmeaBroadcastServer(port,
+                new NmeaBroadcastServer.Listener() {
+                    @Override
+                    public void onClientConnected(ClientConnection connection, int count) {
+                    }
+
+                    @Override
+                    public void onClientDisconnected(ClientConnection connection, int count) {
+                    }
+
+                    @Override
+                    public void onRequestedIntervalChanged(long interval) {
+                    }
+                });
+        server.setWorkers(workers);
+        server.open();
+
+        Thread serverThread = new Thread(server, "server");
+        serverThread.start();
+
+        final Selector selector = Selector.open();
+        ByteBuffer request = ByteBuffer.wrap(SUBSCRIBE.getBytes("US-ASCII"));
+        for (int i = 0; i < clients; i++) {
+            SocketChannel channel = SocketChannel.open(
+                    new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+            request.rewind();
+            channel.write(request);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        while (server.getClientCount() < clients || server.getSubscribedTypes() == 0)
+            Thread.sleep(10);
+        /* Let the workers read all the subscriptions. */
+        Thread.sleep(500);
+
+        System.out.println(clients + " clients connected to " + workers + " workers, replaying "
+                + file + (speed == NmeaFileSource.MAX_SPEED ? " as fast as possible"
+                : " at " + speed + "x") + " for " + seconds + " s");
+
+        Thread reader = new Thread("clients") {
+            @Override
+            public void run() {
+                try {
+                    read(selector);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+
+        NmeaRelay relay = new NmeaRelay(new NmeaRelay.Output() {
+            @Override
+            public int getSubscribedTypes() {
+                return server.getSubscribedTypes();
+            }
+
+            @Override
+            public void publish(CharSequence data, int length, int type) {
+                server.publish(data, length, type);
+            }
+
+            @Override
+            public void publish(byte[] data, int length, int type) {
+                server.publish(data, length, type);
+            }
+        });
+
+        NmeaFileSource source = new NmeaFileSource(file, speed, true);
+        long start = System.nanoTime();
+        source.start(relay);
+        Thread.sleep(seconds * 1000L);
+        source.stop();
+        long elapsed = System.nanoTime() - start;
+
+        if (source.getError() != null)
+            source.getError().printStackTrace();
+
+        /* Leave the clients some time to read what is still in flight. */
+        Thread.sleep(1000);
+        running = false;
+        selector.wakeup();
+        reader.join();
+
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+
+        server.close();
+        serverThread.join();
+
+        double secondsElapsed = elapsed / 1e9;
+        System.out.println();
+        System.out.printf("Replayed:   %d sentences, %.0f/s%n", source.getSentences(),
+                source.getSentences() / secondsElapsed);
+        System.out.printf("Relayed:    %d sentences, %.0f/s%n", relay.getRelayed(),
+                relay.getRelayed() / secondsElapsed);
+        System.out.printf("Delivered:  %d sentences, %.0f/s, %.2f MB/s%n", delivered,
+                delivered / secondsElapsed, bytes / secondsElapsed / 1e6);
+        System.out.println();
+        System.out.print(server.getMetrics());
+    }
+
+    private void read(Selector selector) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        while (running) {
+            selector.select(100);
+
+            Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+            while (i.hasNext()) {
+                SelectionKey key = i.next();
+                i.remove();
+
+                buffer.clear();
+                int n = ((SocketChannel) key.channel()).read(buffer);
+                if (n == -1) {
+                    key.cancel();
+                    continue;
+                }
+
+                bytes += n;
+                for (int j = 0; j < n; j++) {
+                    if (buffer.get(j) == '\n')
+                        delivered++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the sample log of the benchmarks to a temporary file.
+     */
+    private static File sampleFile() throws IOException {
+        File file = File.createTempFile("sample", ".nmea");
+        file.deleteOnExit();
+
+        FileWriter writer = new FileWriter(file);
+        try {
+            for (String sentence : NmeaStream.load())
+                writer.write(sentence);
+        } finally {
+            writer.close();
+        }
+
+        return file;
+    }
+}
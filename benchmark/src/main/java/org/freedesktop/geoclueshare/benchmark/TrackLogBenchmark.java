@@ -0,0 +1,105 @@
+package org.freedesktop.geoclueshare.benchmark;
+
+import org.freedesktop.geoclueshare.TrackLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (C) 2015 Ankit (Verma)
+ *
+ * GeoclueShare is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * GeoclueShare is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with GeoclueShare; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author: Ankit (Verma) <ankitstarski@gmail.com>
+ */
+
+/**
+ * Measures {@link TrackLog}: appending a record, and scanning a log of a million records with a
+ * {@link TrackLog.Reader}, as an export would. The log is written to a temporary directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackLogBenchmark {
+
+    private static final int RECORDS = 1000 * 1000;
+    private static final int SEGMENT_RECORDS = 32 * 1024;
+
+    private File directory;
+    private TrackLog log;
+    private long time = 1435600519000L;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = new File(System.getProperty("java.io.tmpdir"),
+                "TrackLogBenchmark-" + System.nanoTime());
+
+        /* Enough segments for the scanned records, and as many for the appended ones. */
+        log = new TrackLog(directory, SEGMENT_RECORDS, 2 * RECORDS / SEGMENT_RECORDS + 2);
+        log.open();
+        for (int i = 0; i < RECORDS; i++)
+            append();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        log.close();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean append() {
+        time += 1000;
+        return log.append(time, 48.1173 + (time % 1000) * 1e-7, 11.516666667, true, 545.4, 4.5,
+                3, 1);
+    }
+
+    /**
+     * Reads the first million records. The score is the time of a whole scan.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double scan() throws IOException {
+        TrackLog.Reader reader = new TrackLog.Reader(directory);
+        double sum = 0;
+
+        for (int i = 0; i < RECORDS && reader.next(); i++)
+            sum += reader.getLatitude() + reader.getLongitude() + reader.getTime();
+
+        return sum;
+    }
+}